@@ -0,0 +1,589 @@
+package com.buaisociety.neat;
+
+import com.buaisociety.neat.genome.Activation;
+import com.buaisociety.neat.genome.ConnectionGene;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.InnovationRegistry;
+import com.buaisociety.neat.genome.NodeGene;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Saves and loads a whole population in a compact binary format, so a long
+ * run can be stopped and resumed later.
+ *
+ * <p>A checkpoint holds everything {@link Neat#evolve()} depends on: the
+ * {@link InnovationRegistry} (so innovation ids keep matching), every client's
+ * genome and score, every species with its representative and members, and
+ * the seed, generation number, species counter and the allowed
+ * {@link Neat#getActivations() activations}. Since {@link Neat#evolve()}
+ * only draws from {@link RandomStreams} created from the seed and generation,
+ * a loaded population evolves exactly like the saved one would have. The
+ * shared {@link Neat#getRandom() random} is reset to the seed, and the
+ * {@link Neat#getEvaluator() evaluator} is not saved.
+ *
+ * <p>Checkpoints are written through a {@link FileChannel} into a temporary
+ * file, which replaces the target only once it is complete, so a crash while
+ * saving never destroys the previous checkpoint. They are read through
+ * memory-mapped buffers, with genome arrays copied out in bulk.
+ *
+ * <p>The file starts with a magic number and a format version. Readers must
+ * keep accepting every older version, so a new version should only ever add
+ * a new case to {@link #load(Path)}.
+ *
+ * <pre>
+ * header:   int magic, int version, int inputs, int outputs,
+ *           byte precision (since version 2), long seed, int generation,
+ *           int speciesCounter, double threshold, byte verifying,
+ *           byte recurrent (since version 4),
+ *           int n, n * byte activation (since version 5)
+ * registry: int n, n * (int id, double x, double y, double bias)
+ *           int n, n * (int id, int from, int to)
+ *           int n, n * (long key, int nodeId)
+ * clients:  int n, n * (int id, double score, genome)
+ * species:  int n, n * (int id, int baseId, double score, int generations,
+ *                       genome representative, int n, n * int clientId)
+ * genome:   int nodes (-1 for null), int[] ids, value[] biases,
+ *           byte[] activations (since version 3),
+ *           int connections, int[] innovations, int[] froms, int[] tos,
+ *           value[] weights, long[] enabled bits
+ * </pre>
+ *
+ * <p>Genome values are floats for {@link Precision#FLOAT} populations and
+ * doubles otherwise, like in {@link
+ * com.buaisociety.neat.evaluation.WorkerProtocol}. Before version 6 they were
+ * always doubles.
+ */
+public final class Checkpoint {
+
+    /**
+     * "NEAT" in ASCII.
+     */
+    public static final int MAGIC = 0x4E454154;
+    public static final int VERSION = 6;
+
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /**
+     * The largest region mapped at once. Files larger than this are mapped
+     * 1 window at a time.
+     */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private Checkpoint() {
+    }
+
+    /**
+     * Saves the population of the given instance. Should not be called while
+     * the population is being evaluated or evolved.
+     *
+     * @param neat The instance to save.
+     * @param path The file to save to. Replaced if it already exists.
+     * @throws IOException If the file could not be written.
+     */
+    public static void save(Neat neat, Path path) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            Output out = new Output(channel);
+            writeHeader(neat, out);
+            writeRegistry(neat.getRegistry(), out);
+
+            List<Client> clients = neat.getClients();
+            out.putInt(clients.size());
+            for (Client client : clients) {
+                out.putInt(client.getId());
+                out.putDouble(client.getScore());
+                writeGenome(client.getGenome(), out);
+            }
+
+            List<Species> allSpecies = neat.getAllSpecies();
+            out.putInt(allSpecies.size());
+            for (Species species : allSpecies) {
+                out.putInt(species.getId());
+                out.putInt(species.getBase().getId());
+                out.putDouble(species.getScore());
+                out.putInt(species.getGenerations());
+                writeGenome(species.getRepresentative(), out);
+                out.putInt(species.getClients().size());
+                for (Client client : species.getClients()) {
+                    out.putInt(client.getId());
+                }
+            }
+
+            out.flush();
+            channel.force(true);
+        }
+
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Loads a population saved by {@link #save(Neat, Path)}.
+     *
+     * @param path The file to load from.
+     * @return A new instance holding the saved population.
+     * @throws IOException If the file could not be read, or is not a checkpoint.
+     */
+    public static Neat load(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Input in = new Input(channel);
+            int magic = in.getInt();
+            if (magic != MAGIC) {
+                throw new IOException("Not a checkpoint: " + path);
+            }
+
+            int version = in.getInt();
+            return switch (version) {
+                case 1, 2, 3, 4, 5, 6 -> read(in, version);
+                default -> throw new IOException("Unsupported checkpoint version " + version + " (newest supported is " + VERSION + ")");
+            };
+        } catch (IllegalStateException | IllegalArgumentException e) {
+            throw new IOException("Corrupt checkpoint: " + path, e);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Writing
+    // ---------------------------------------------------------------------
+
+    private static void writeHeader(Neat neat, Output out) throws IOException {
+        Speciator speciator = neat.getSpeciator();
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(neat.getNumInputNodes());
+        out.putInt(neat.getNumOutputNodes());
+        out.putByte((byte) neat.getPrecision().ordinal());
+        out.putLong(neat.getSeed());
+        out.putInt(neat.getGenerationNumber());
+        out.putInt(speciator.getSpeciesCounter());
+        out.putDouble(speciator.getThreshold());
+        out.putByte(speciator.isVerifying() ? (byte) 1 : (byte) 0);
+        out.putByte(neat.isRecurrent() ? (byte) 1 : (byte) 0);
+        List<Activation> activations = neat.getActivations();
+        out.putInt(activations.size());
+        for (Activation activation : activations) {
+            out.putByte((byte) activation.ordinal());
+        }
+    }
+
+    private static void writeRegistry(InnovationRegistry registry, Output out) throws IOException {
+        // Nodes must be written in id order, so connections and replacement
+        // nodes can always refer back to nodes that were already read
+        List<NodeGene> nodes = new ArrayList<>(registry.getNodes());
+        nodes.sort(Comparator.comparingInt(NodeGene::getId));
+        out.putInt(nodes.size());
+        for (NodeGene node : nodes) {
+            out.putInt(node.getId());
+            out.putDouble(node.getX());
+            out.putDouble(node.getY());
+            out.putDouble(node.getBias());
+        }
+
+        List<ConnectionGene> connections = new ArrayList<>(registry.getConnections());
+        connections.sort(Comparator.comparingInt(ConnectionGene::getId));
+        out.putInt(connections.size());
+        for (ConnectionGene connection : connections) {
+            out.putInt(connection.getId());
+            out.putInt(connection.getFrom().getId());
+            out.putInt(connection.getTo().getId());
+        }
+
+        List<Map.Entry<Long, NodeGene>> replacements = registry.getReplacementNodes();
+        replacements.sort(Map.Entry.comparingByKey());
+        out.putInt(replacements.size());
+        for (Map.Entry<Long, NodeGene> entry : replacements) {
+            out.putLong(entry.getKey());
+            out.putInt(entry.getValue().getId());
+        }
+    }
+
+    private static void writeGenome(Genome genome, Output out) throws IOException {
+        if (genome == null) {
+            out.putInt(-1);
+            return;
+        }
+
+        boolean floats = genome.getPrecision() == Precision.FLOAT;
+        int nodeCount = genome.getNodeCount();
+        out.putInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            out.putInt(genome.getNodeId(i));
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            if (floats) {
+                out.putFloat((float) genome.getBias(i));
+            } else {
+                out.putDouble(genome.getBias(i));
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            out.putByte((byte) genome.getActivation(i).ordinal());
+        }
+
+        int connectionCount = genome.getConnectionCount();
+        out.putInt(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            out.putInt(genome.getInnovation(i));
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            out.putInt(genome.getFrom(i));
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            out.putInt(genome.getTo(i));
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            if (floats) {
+                out.putFloat((float) genome.getWeight(i));
+            } else {
+                out.putDouble(genome.getWeight(i));
+            }
+        }
+        for (int word = 0; word < words(connectionCount); word++) {
+            long bits = 0;
+            int end = Math.min(connectionCount, (word + 1) << 6);
+            for (int i = word << 6; i < end; i++) {
+                if (genome.isEnabled(i)) {
+                    bits |= 1L << i;
+                }
+            }
+            out.putLong(bits);
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Reading
+    // ---------------------------------------------------------------------
+
+    private static Neat read(Input in, int version) throws IOException {
+        // Step 1: Header. Checkpoints from before version 2 always used doubles.
+        int inputs = in.getInt();
+        int outputs = in.getInt();
+        Precision precision = Precision.DOUBLE;
+        if (version >= 2) {
+            int ordinal = in.getByte();
+            if (ordinal < 0 || ordinal >= Precision.values().length) {
+                throw new IOException("Unknown precision: " + ordinal);
+            }
+            precision = Precision.values()[ordinal];
+        }
+        Neat neat = new Neat(inputs, outputs, precision);
+        neat.setSeed(in.getLong());
+        neat.setGenerationNumber(in.getInt());
+        Speciator speciator = neat.getSpeciator();
+        speciator.setSpeciesCounter(in.getInt());
+        speciator.setThreshold(in.getDouble());
+        speciator.setVerifying(in.getByte() != 0);
+        neat.setRecurrent(version >= 4 && in.getByte() != 0);
+        if (version >= 5) {
+            byte[] ordinals = in.getBytes(in.getCount());
+            List<Activation> activations = new ArrayList<>(ordinals.length);
+            for (byte ordinal : ordinals) {
+                activations.add(Activation.of(ordinal));
+            }
+            neat.setActivations(activations);
+        }
+
+        // Step 2: Registry
+        InnovationRegistry registry = neat.getRegistry();
+        int nodeCount = in.getCount();
+        for (int i = 0; i < nodeCount; i++) {
+            registry.restoreNode(in.getInt(), in.getDouble(), in.getDouble(), in.getDouble());
+        }
+        int connectionCount = in.getCount();
+        for (int i = 0; i < connectionCount; i++) {
+            registry.restoreConnection(in.getInt(), in.getInt(), in.getInt());
+        }
+        int replacementCount = in.getCount();
+        for (int i = 0; i < replacementCount; i++) {
+            registry.restoreReplacementNode(in.getLong(), in.getInt());
+        }
+
+        // Step 3: Clients
+        int clientCount = in.getCount();
+        Map<Integer, Client> clientsById = new HashMap<>(clientCount * 2);
+        for (int i = 0; i < clientCount; i++) {
+            Client client = new Client(neat, in.getInt(), null);
+            client.setScore(in.getDouble());
+            client.setGenome(readGenome(neat, in, version));
+            neat.getClients().add(client);
+            if (clientsById.put(client.getId(), client) != null) {
+                throw new IOException("Duplicate client id: " + client.getId());
+            }
+        }
+
+        // Step 4: Species
+        int speciesCount = in.getCount();
+        for (int i = 0; i < speciesCount; i++) {
+            int id = in.getInt();
+            Client base = client(clientsById, in.getInt());
+            double score = in.getDouble();
+            int generations = in.getInt();
+            Genome representative = readGenome(neat, in, version);
+            Species species = new Species(neat, id, base, representative, score, generations);
+
+            int memberCount = in.getCount();
+            for (int j = 0; j < memberCount; j++) {
+                species.add(client(clientsById, in.getInt()), true);
+            }
+            neat.getAllSpecies().add(species);
+        }
+
+        return neat;
+    }
+
+    private static Client client(Map<Integer, Client> clientsById, int id) throws IOException {
+        Client client = clientsById.get(id);
+        if (client == null) {
+            throw new IOException("Unknown client id: " + id);
+        }
+        return client;
+    }
+
+    private static Genome readGenome(Neat neat, Input in, int version) throws IOException {
+        int nodeCount = in.getInt();
+        if (nodeCount == -1) {
+            return null;
+        }
+        if (nodeCount < 0) {
+            throw new IOException("Negative node count: " + nodeCount);
+        }
+
+        // Nodes and connections were saved sorted, so every add below is an
+        // append and the whole genome is read in linear time
+        // Float genomes were saved with doubles before version 6
+        boolean floats = version >= 6 && neat.getPrecision() == Precision.FLOAT;
+        Genome genome = new Genome(neat);
+        int[] ids = in.getInts(nodeCount);
+        double[] biases = floats ? in.getFloats(nodeCount) : in.getDoubles(nodeCount);
+
+        // Every node used the sigmoid before activations were genes
+        byte[] activations = version >= 3 ? in.getBytes(nodeCount) : new byte[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            genome.addNode(ids[i], biases[i], Activation.of(activations[i]));
+        }
+
+        int connectionCount = in.getCount();
+        int[] innovations = in.getInts(connectionCount);
+        int[] froms = in.getInts(connectionCount);
+        int[] tos = in.getInts(connectionCount);
+        double[] weights = floats ? in.getFloats(connectionCount) : in.getDoubles(connectionCount);
+        long[] enabled = in.getLongs(words(connectionCount));
+        for (int i = 0; i < connectionCount; i++) {
+            boolean isEnabled = (enabled[i >>> 6] & (1L << i)) != 0;
+            genome.addConnection(innovations[i], froms[i], tos[i], weights[i], isEnabled);
+        }
+        return genome;
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * Buffers writes into a direct buffer, which is written to the channel
+     * whenever it fills up.
+     */
+    private static final class Output {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ORDER);
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putByte(byte value) throws IOException {
+            ensure(Byte.BYTES);
+            buffer.put(value);
+        }
+
+        void putInt(int value) throws IOException {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) throws IOException {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            ensure(Float.BYTES);
+            buffer.putFloat(value);
+        }
+
+        void putDouble(double value) throws IOException {
+            ensure(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Reads from a memory-mapped window of the file, mapping the next window
+     * whenever the current one runs out.
+     */
+    private static final class Input {
+
+        private final FileChannel channel;
+        private final long size;
+        private long windowStart;
+        private MappedByteBuffer buffer;
+
+        Input(FileChannel channel) throws IOException {
+            this.channel = channel;
+            this.size = channel.size();
+            map(0);
+        }
+
+        byte getByte() throws IOException {
+            ensure(Byte.BYTES);
+            return buffer.get();
+        }
+
+        int getInt() throws IOException {
+            ensure(Integer.BYTES);
+            return buffer.getInt();
+        }
+
+        /**
+         * Reads the length of the array or list that follows.
+         */
+        int getCount() throws IOException {
+            int count = getInt();
+            if (count < 0) {
+                throw new IOException("Negative count: " + count);
+            }
+            return count;
+        }
+
+        long getLong() throws IOException {
+            ensure(Long.BYTES);
+            return buffer.getLong();
+        }
+
+        double getDouble() throws IOException {
+            ensure(Double.BYTES);
+            return buffer.getDouble();
+        }
+
+        byte[] getBytes(int count) throws IOException {
+            byte[] values = new byte[count];
+            int offset = 0;
+            while (offset < count) {
+                ensure(Byte.BYTES);
+                int n = Math.min(count - offset, buffer.remaining());
+                buffer.get(values, offset, n);
+                offset += n;
+            }
+            return values;
+        }
+
+        int[] getInts(int count) throws IOException {
+            int[] values = new int[count];
+            int offset = 0;
+            while (offset < count) {
+                ensure(Integer.BYTES);
+                int n = Math.min(count - offset, buffer.remaining() / Integer.BYTES);
+                buffer.asIntBuffer().get(values, offset, n);
+                buffer.position(buffer.position() + n * Integer.BYTES);
+                offset += n;
+            }
+            return values;
+        }
+
+        long[] getLongs(int count) throws IOException {
+            long[] values = new long[count];
+            int offset = 0;
+            while (offset < count) {
+                ensure(Long.BYTES);
+                int n = Math.min(count - offset, buffer.remaining() / Long.BYTES);
+                buffer.asLongBuffer().get(values, offset, n);
+                buffer.position(buffer.position() + n * Long.BYTES);
+                offset += n;
+            }
+            return values;
+        }
+
+        /**
+         * Reads an array of floats, widened to doubles.
+         */
+        double[] getFloats(int count) throws IOException {
+            double[] values = new double[count];
+            int offset = 0;
+            while (offset < count) {
+                ensure(Float.BYTES);
+                int n = Math.min(count - offset, buffer.remaining() / Float.BYTES);
+                FloatBuffer floats = buffer.asFloatBuffer();
+                for (int i = 0; i < n; i++) {
+                    values[offset + i] = floats.get(i);
+                }
+                buffer.position(buffer.position() + n * Float.BYTES);
+                offset += n;
+            }
+            return values;
+        }
+
+        double[] getDoubles(int count) throws IOException {
+            double[] values = new double[count];
+            int offset = 0;
+            while (offset < count) {
+                ensure(Double.BYTES);
+                int n = Math.min(count - offset, buffer.remaining() / Double.BYTES);
+                buffer.asDoubleBuffer().get(values, offset, n);
+                buffer.position(buffer.position() + n * Double.BYTES);
+                offset += n;
+            }
+            return values;
+        }
+
+        private void ensure(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                map(windowStart + buffer.position());
+                if (buffer.remaining() < bytes) {
+                    throw new EOFException("Checkpoint ends unexpectedly");
+                }
+            }
+        }
+
+        private void map(long start) throws IOException {
+            windowStart = start;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, size - start));
+            buffer.order(ORDER);
+        }
+    }
+}
@@ -2,6 +2,9 @@ package com.buaisociety.neat;
 
 import com.buaisociety.neat.calculator.Calculator;
 import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.metrics.Timing;
+
+import java.util.random.RandomGenerator;
 
 /**
  * Represents 1 client in the NEAT algorithm. A client is basically just a
@@ -25,6 +28,21 @@ public class Client {
         this.genome = neat.newGenome(false);
     }
 
+    /**
+     * Creates a client with an existing genome. Used by {@link Checkpoint}
+     * to restore a saved population, and by evaluation workers to score
+     * genomes sent from another process.
+     *
+     * @param neat The instance the genome belongs to.
+     * @param id The id of the client.
+     * @param genome The genome of the client.
+     */
+    public Client(Neat neat, int id, Genome genome) {
+        this.neat = neat;
+        this.id = id;
+        this.genome = genome;
+    }
+
     public Neat getNeat() {
         return neat;
     }
@@ -50,9 +68,22 @@ public class Client {
         calculator = null;
     }
 
+    /**
+     * Returns the calculator for the current genome, creating it if needed.
+     * Changing the genome with {@link #setGenome(Genome)} or
+     * {@link #mutate()} drops the calculator, along with its
+     * {@link Calculator#compile() compiled} class, if it has one. The
+     * calculator of a {@link Calculator#isRecurrent() recurrent} genome
+     * remembers its previous prediction, so call {@link Calculator#reset()}
+     * at the start of every episode.
+     *
+     * @return The calculator.
+     */
     public Calculator getCalculator() {
         if (calculator == null) {
+            long start = neat.getMetrics().start();
             calculator = new Calculator(genome);
+            neat.getMetrics().stop(Timing.CALCULATOR, start);
         }
 
         return calculator;
@@ -73,4 +104,15 @@ public class Client {
         genome.mutate();
         calculator = null;
     }
+
+    /**
+     * Mutates the genome stored by this client, drawing from the given random
+     * stream instead of the shared random.
+     *
+     * @param random The random stream to draw from.
+     */
+    public void mutate(RandomGenerator random) {
+        genome.mutate(random);
+        calculator = null;
+    }
 }
@@ -0,0 +1,305 @@
+package com.buaisociety.neat;
+
+import com.buaisociety.neat.evaluation.FitnessFunction;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.InnovationRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+/**
+ * Evolves several {@link Neat} populations ("islands") side by side, and
+ * every few generations sends the best clients of each island to its
+ * neighbours. Islands evolve apart from each other most of the time, which
+ * keeps the whole run more diverse than 1 big population, and each island
+ * evolves on its own thread, so a big machine is used fully.
+ *
+ * <p>Every island shares 1 {@link InnovationRegistry}, so the same structure
+ * gets the same innovation id on every island, and migrants can be copied
+ * between islands without remapping anything. Only structural mutations
+ * touch the shared registry. Those run 1 island at a time, in island order,
+ * so a run is still reproducible from its seed. Speciation, selection and
+ * every other mutation run on all islands at once.
+ *
+ * <p>Migration happens at the start of {@link #evolve()}, every
+ * {@link #getMigrationInterval()} generations. The {@link #getMigrants()}
+ * best clients of each island are copied (along with their scores) over the
+ * worst clients of every island the {@link MigrationTopology} sends them to.
+ * Migrations are not recorded in the islands' {@link Journal journals}.
+ *
+ * <p>Island models should be {@link #close() closed} when they are no longer
+ * needed, which stops their threads.
+ */
+public class IslandModel implements AutoCloseable {
+
+    private final List<Neat> islands;
+    private final InnovationRegistry registry;
+    private final ExecutorService executor;
+
+    private MigrationTopology topology = MigrationTopology.RING;
+    private int migrationInterval = 10;
+    private int migrants = 2;
+    private int generationNumber = 0;
+    private long seed;
+
+    public IslandModel(int islands, int numInputNodes, int numOutputNodes, int clientsPerIsland) {
+        this(islands, numInputNodes, numOutputNodes, clientsPerIsland, Precision.DOUBLE);
+    }
+
+    /**
+     * Creates the islands, which all start out like a new {@link Neat}.
+     *
+     * @param islands The number of islands.
+     * @param numInputNodes The number of inputs of every network.
+     * @param numOutputNodes The number of outputs of every network.
+     * @param clientsPerIsland The size of each island's population.
+     * @param precision The precision of weights, biases and neuron values.
+     */
+    public IslandModel(int islands, int numInputNodes, int numOutputNodes, int clientsPerIsland, Precision precision) {
+        if (islands < 1) {
+            throw new IllegalArgumentException("islands must be at least 1, got " + islands);
+        }
+
+        List<Neat> list = new ArrayList<>(islands);
+        Neat first = new Neat(numInputNodes, numOutputNodes, clientsPerIsland, precision);
+        list.add(first);
+        for (int i = 1; i < islands; i++) {
+            list.add(new Neat(numInputNodes, numOutputNodes, clientsPerIsland, precision, first.getRegistry()));
+        }
+        this.islands = Collections.unmodifiableList(list);
+        this.registry = first.getRegistry();
+
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(islands, task -> {
+            Thread thread = new Thread(task, "neat-island-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        setSeed(first.getSeed());
+    }
+
+    public List<Neat> getIslands() {
+        return islands;
+    }
+
+    public InnovationRegistry getRegistry() {
+        return registry;
+    }
+
+    public int getGenerationNumber() {
+        return generationNumber;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed of the whole run. Each island gets its own seed, derived
+     * from this one, so the islands do not all evolve the same way.
+     *
+     * @param seed The seed of the run.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        for (int i = 0; i < islands.size(); i++) {
+            islands.get(i).setSeed(RandomStreams.forIsland(seed, i));
+        }
+    }
+
+    public MigrationTopology getTopology() {
+        return topology;
+    }
+
+    public void setTopology(MigrationTopology topology) {
+        this.topology = topology;
+    }
+
+    public int getMigrationInterval() {
+        return migrationInterval;
+    }
+
+    /**
+     * Sets how many generations pass between migrations.
+     *
+     * @param migrationInterval The number of generations, or 0 to never migrate.
+     */
+    public void setMigrationInterval(int migrationInterval) {
+        if (migrationInterval < 0) {
+            throw new IllegalArgumentException("migrationInterval must be at least 0, got " + migrationInterval);
+        }
+        this.migrationInterval = migrationInterval;
+    }
+
+    public int getMigrants() {
+        return migrants;
+    }
+
+    /**
+     * Sets how many of its best clients each island sends to each of its
+     * destinations.
+     *
+     * @param migrants The number of clients sent per destination.
+     */
+    public void setMigrants(int migrants) {
+        if (migrants < 0) {
+            throw new IllegalArgumentException("migrants must be at least 0, got " + migrants);
+        }
+        this.migrants = migrants;
+    }
+
+    /**
+     * Returns the client with the highest score on any island. Ties go to
+     * the lowest island.
+     *
+     * @return The best client.
+     */
+    public Client getBest() {
+        Client best = null;
+        for (Neat island : islands) {
+            for (Client client : island.getClients()) {
+                if (best == null || client.getScore() > best.getScore()) {
+                    best = client;
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Scores every client of every island. Islands are evaluated at the same
+     * time, each with its own {@link Neat#getEvaluator() evaluator}.
+     *
+     * @param fitness The fitness function to score each client with.
+     */
+    public void evaluate(FitnessFunction fitness) {
+        onEveryIsland(i -> {
+            islands.get(i).evaluate(fitness);
+            return null;
+        });
+    }
+
+    /**
+     * Migrates clients if it is time to, then evolves every island by 1
+     * generation.
+     */
+    public void evolve() {
+        // Step 1: Migrate, using the scores of the generation that was just
+        // evaluated
+        if (migrationInterval > 0 && (generationNumber + 1) % migrationInterval == 0) {
+            migrate();
+        }
+
+        // Step 2: Speciation, selection and cloning, on every island at once
+        List<Neat.Evolution> evolutions = onEveryIsland(i -> islands.get(i).beginEvolution());
+
+        // Step 3: Structural mutations discover innovations in the shared
+        // registry, so islands take turns
+        for (Neat.Evolution evolution : evolutions) {
+            evolution.mutateStructure();
+        }
+
+        // Step 4: Everything else, on every island at once
+        onEveryIsland(i -> {
+            evolutions.get(i).finish();
+            return null;
+        });
+
+        generationNumber++;
+    }
+
+    /**
+     * Copies the best clients of every island over the worst clients of the
+     * islands they are sent to. Champions are chosen before any island
+     * changes, so the result does not depend on the island order.
+     */
+    public void migrate() {
+        Comparator<Client> byScore = Comparator.comparingDouble(Client::getScore).thenComparingInt(Client::getId);
+
+        // Step 1: Choose the champions of every island
+        List<List<Migrant>> incoming = new ArrayList<>();
+        for (int i = 0; i < islands.size(); i++) {
+            incoming.add(new ArrayList<>());
+        }
+        for (int i = 0; i < islands.size(); i++) {
+            List<Client> ranked = new ArrayList<>(islands.get(i).getClients());
+            ranked.sort(byScore.reversed());
+
+            int count = Math.min(migrants, ranked.size());
+            for (int destination : topology.destinations(i, islands.size())) {
+                for (int c = 0; c < count; c++) {
+                    Client champion = ranked.get(c);
+                    incoming.get(destination).add(new Migrant(champion.getGenome(), champion.getScore()));
+                }
+            }
+        }
+
+        // Step 2: Replace the worst clients of every island. Clients only get
+        // new genomes, so the genomes chosen above are never changed.
+        for (int i = 0; i < islands.size(); i++) {
+            Neat island = islands.get(i);
+            List<Migrant> arriving = incoming.get(i);
+            if (arriving.size() >= island.getClients().size()) {
+                throw new IllegalStateException("Island " + i + " would receive " + arriving.size()
+                    + " migrants, but only has " + island.getClients().size() + " clients");
+            }
+
+            List<Client> ranked = new ArrayList<>(island.getClients());
+            ranked.sort(byScore);
+            for (int m = 0; m < arriving.size(); m++) {
+                Client client = ranked.get(m);
+                client.setGenome(arriving.get(m).genome.copyTo(island));
+                client.setScore(arriving.get(m).score);
+            }
+        }
+    }
+
+    /**
+     * Runs a task for every island index on the island threads, and returns
+     * the results in island order.
+     */
+    private <T> List<T> onEveryIsland(IntFunction<T> task) {
+        List<Callable<T>> tasks = new ArrayList<>(islands.size());
+        for (int i = 0; i < islands.size(); i++) {
+            int island = i;
+            tasks.add(() -> task.apply(island));
+        }
+
+        List<T> results = new ArrayList<>(islands.size());
+        try {
+            for (Future<T> future : executor.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted in generation " + generationNumber, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException("Failed to update an island in generation " + generationNumber, e.getCause());
+        }
+        return results;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    /**
+     * A champion on its way to another island.
+     */
+    private record Migrant(Genome genome, double score) {
+    }
+}
@@ -0,0 +1,684 @@
+package com.buaisociety.neat;
+
+import com.buaisociety.neat.genome.Activation;
+import com.buaisociety.neat.genome.ConnectionGene;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.InnovationRegistry;
+import com.buaisociety.neat.genome.NodeGene;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32C;
+
+/**
+ * An append-only log of what {@link Neat#evolve()} changed in each
+ * generation. Saving a full {@link Checkpoint} every generation is too
+ * expensive for large populations, so instead a checkpoint is saved once in a
+ * while, and the journal records the generations in between.
+ *
+ * <p>Each generation is 1 record, holding:
+ * <ul>
+ *     <li>the nodes, connections and replacement nodes that were discovered,</li>
+ *     <li>the order of the clients, their scores, and which client each
+ *     client's genome was copied from (itself, if it survived),</li>
+ *     <li>for every client, the nodes and connections its genome gained, and
+ *     which biases, activations (since version 2), weights and enabled flags
+ *     differ from the copied genome.</li>
+ * </ul>
+ *
+ * <p>Species are not recorded, since speciation is deterministic: {@link
+ * #replay(Neat, Path)} runs it again, exactly like {@link Neat#evolve()} did.
+ * This only holds as long as nothing but {@link Neat#evaluate(
+ * com.buaisociety.neat.evaluation.FitnessFunction) evaluate} and evolve change
+ * the population between generations.
+ *
+ * <p>Records are encoded on the evolving thread, then written by a background
+ * thread, so evolution only waits for the disk if the previous generation has
+ * not finished writing yet. The file is only forced to disk every few
+ * records (and when {@link #flush() flushed} or {@link #close() closed}), so
+ * the last few generations may be lost in a crash. Every record carries its
+ * length and a checksum, so a record that was only partially written is
+ * detected and ignored.
+ */
+public class Journal implements AutoCloseable {
+
+    /**
+     * "NJRN" in ASCII.
+     */
+    public static final int MAGIC = 0x4E4A524E;
+    public static final int VERSION = 2;
+
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    private static final int FILE_HEADER_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * The length and checksum of the record that follows.
+     */
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+
+    private final FileChannel channel;
+    private final int syncInterval;
+    private final ExecutorService writer;
+
+    /**
+     * The write of the most recent record. Records are written 1 at a time,
+     * in order.
+     */
+    private Future<?> lastWrite = CompletableFuture.completedFuture(null);
+
+    /**
+     * The number of records written since the last sync. Only used by the
+     * writer thread.
+     */
+    private int unsynced;
+
+    /**
+     * Opens a journal to append to, creating it if it does not exist. If the
+     * journal ends with a partially written record, that record is removed.
+     *
+     * @param path The file of the journal.
+     * @param syncInterval The number of records to write between forcing the
+     *                     file to disk. 1 syncs after every generation.
+     * @throws IOException If the file could not be opened, or is not a journal.
+     */
+    public Journal(Path path, int syncInterval) throws IOException {
+        if (syncInterval < 1) {
+            throw new IllegalArgumentException("syncInterval must be at least 1: " + syncInterval);
+        }
+
+        this.syncInterval = syncInterval;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ORDER);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(channel, header);
+                channel.force(true);
+            } else {
+                int version = readVersion(channel);
+                if (version != VERSION) {
+                    throw new IOException("Cannot append to a version " + version + " journal, start a new one instead");
+                }
+                long end = scan(channel, (payload, recordVersion) -> {
+                });
+                channel.truncate(end);
+                channel.position(end);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        this.writer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "neat-journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // ---------------------------------------------------------------------
+    // Recording, called by Neat.evolve()
+    // ---------------------------------------------------------------------
+
+    /**
+     * The state needed to record 1 generation, collected while it is evolved.
+     */
+    static final class Generation {
+
+        private final int nodeCount;
+        private final int connectionCount;
+
+        /**
+         * The unmutated genomes of the survivors, which every genome of the
+         * next generation is copied from.
+         */
+        private final Map<Integer, Genome> sources = new HashMap<>();
+
+        private Generation(InnovationRegistry registry) {
+            this.nodeCount = registry.getNodeCount();
+            this.connectionCount = registry.getConnectionCount();
+        }
+
+        /**
+         * Remembers the genomes of the survivors. Must be called before
+         * anything is mutated.
+         */
+        void capture(List<Client> survivors) {
+            for (Client client : survivors) {
+                sources.put(client.getId(), client.getGenome().clone());
+            }
+        }
+    }
+
+    /**
+     * Starts recording a generation. Must be called before anything is
+     * evolved.
+     */
+    Generation begin(Neat neat) {
+        return new Generation(neat.getRegistry());
+    }
+
+    /**
+     * Encodes the changes made while evolving, and queues them to be written.
+     *
+     * @param generation The state collected while evolving.
+     * @param neat The evolved instance.
+     * @param parents For each client, the id of the client whose genome it
+     *                was copied from.
+     */
+    void append(Generation generation, Neat neat, int[] parents) {
+        if (writer.isShutdown()) {
+            throw new IllegalStateException("Cannot append to a closed journal");
+        }
+
+        Record record = new Record();
+        record.putInt(neat.getGenerationNumber());
+        writeInnovations(generation, neat.getRegistry(), record);
+
+        List<Client> clients = neat.getClients();
+        record.putInt(clients.size());
+        for (int i = 0; i < clients.size(); i++) {
+            Client client = clients.get(i);
+            record.putInt(client.getId());
+            record.putDouble(client.getScore());
+            record.putInt(parents[i]);
+        }
+        for (int i = 0; i < clients.size(); i++) {
+            writeDiff(generation.sources.get(parents[i]), clients.get(i).getGenome(), record);
+        }
+
+        ByteBuffer buffer = record.finish();
+        waitFor(lastWrite);
+        lastWrite = writer.submit(() -> {
+            writeFully(channel, buffer);
+            if (++unsynced >= syncInterval) {
+                channel.force(false);
+                unsynced = 0;
+            }
+            return null;
+        });
+    }
+
+    private static void writeInnovations(Generation generation, InnovationRegistry registry, Record record) {
+        int nodeCount = registry.getNodeCount();
+        record.putInt(nodeCount - generation.nodeCount);
+        for (int id = generation.nodeCount; id < nodeCount; id++) {
+            NodeGene node = registry.getNode(id);
+            record.putInt(id);
+            record.putDouble(node.getX());
+            record.putDouble(node.getY());
+            record.putDouble(node.getBias());
+        }
+
+        List<ConnectionGene> connections = new ArrayList<>();
+        for (ConnectionGene connection : registry.getConnections()) {
+            if (connection.getId() >= generation.connectionCount) {
+                connections.add(connection);
+            }
+        }
+        connections.sort(Comparator.comparingInt(ConnectionGene::getId));
+        record.putInt(connections.size());
+        for (ConnectionGene connection : connections) {
+            record.putInt(connection.getId());
+            record.putInt(connection.getFrom().getId());
+            record.putInt(connection.getTo().getId());
+        }
+
+        // Replacement nodes are always new nodes
+        List<Map.Entry<Long, NodeGene>> replacements = new ArrayList<>();
+        for (Map.Entry<Long, NodeGene> entry : registry.getReplacementNodes()) {
+            if (entry.getValue().getId() >= generation.nodeCount) {
+                replacements.add(entry);
+            }
+        }
+        replacements.sort(Map.Entry.comparingByKey());
+        record.putInt(replacements.size());
+        for (Map.Entry<Long, NodeGene> entry : replacements) {
+            record.putLong(entry.getKey());
+            record.putInt(entry.getValue().getId());
+        }
+    }
+
+    /**
+     * Writes how the result differs from the genome it was copied from.
+     * Genomes only ever gain nodes and connections while evolving, so only
+     * added genes are written, and every value is written as a bitmap of
+     * which indices changed followed by the new values.
+     */
+    private static void writeDiff(Genome source, Genome result, Record record) {
+        // Step 1: Match every node and connection of the result to the source
+        int[] nodeMatches = new int[result.getNodeCount()];
+        int addedNodes = 0;
+        int s = 0;
+        for (int i = 0; i < result.getNodeCount(); i++) {
+            if (s < source.getNodeCount() && source.getNodeId(s) == result.getNodeId(i)) {
+                nodeMatches[i] = s++;
+            } else {
+                nodeMatches[i] = -1;
+                addedNodes++;
+            }
+        }
+
+        int[] connectionMatches = new int[result.getConnectionCount()];
+        int addedConnections = 0;
+        int c = 0;
+        for (int i = 0; i < result.getConnectionCount(); i++) {
+            if (c < source.getConnectionCount() && source.getInnovation(c) == result.getInnovation(i)) {
+                connectionMatches[i] = c++;
+            } else {
+                connectionMatches[i] = -1;
+                addedConnections++;
+            }
+        }
+
+        if (s != source.getNodeCount() || c != source.getConnectionCount()) {
+            throw new IllegalStateException("Cannot journal a genome that lost genes while evolving");
+        }
+
+        // Step 2: Added nodes and connections
+        record.putInt(addedNodes);
+        for (int i = 0; i < result.getNodeCount(); i++) {
+            if (nodeMatches[i] < 0) {
+                record.putInt(result.getNodeId(i));
+            }
+        }
+        record.putInt(addedConnections);
+        for (int i = 0; i < result.getConnectionCount(); i++) {
+            if (connectionMatches[i] < 0) {
+                record.putInt(result.getInnovation(i));
+                record.putInt(result.getFrom(i));
+                record.putInt(result.getTo(i));
+            }
+        }
+
+        // Step 3: Changed biases, activations and weights
+        long[] changedBiases = new long[words(result.getNodeCount())];
+        for (int i = 0; i < result.getNodeCount(); i++) {
+            int match = nodeMatches[i];
+            if (match < 0 || Double.doubleToRawLongBits(source.getBias(match)) != Double.doubleToRawLongBits(result.getBias(i))) {
+                changedBiases[i >>> 6] |= 1L << i;
+            }
+        }
+        record.putLongs(changedBiases);
+        for (int i = 0; i < result.getNodeCount(); i++) {
+            if ((changedBiases[i >>> 6] & (1L << i)) != 0) {
+                record.putDouble(result.getBias(i));
+            }
+        }
+
+        long[] changedActivations = new long[words(result.getNodeCount())];
+        for (int i = 0; i < result.getNodeCount(); i++) {
+            int match = nodeMatches[i];
+            if (match < 0 ? result.getActivation(i) != Activation.SIGMOID : source.getActivation(match) != result.getActivation(i)) {
+                changedActivations[i >>> 6] |= 1L << i;
+            }
+        }
+        record.putLongs(changedActivations);
+        for (int i = 0; i < result.getNodeCount(); i++) {
+            if ((changedActivations[i >>> 6] & (1L << i)) != 0) {
+                record.putByte((byte) result.getActivation(i).ordinal());
+            }
+        }
+
+        long[] changedWeights = new long[words(result.getConnectionCount())];
+        for (int i = 0; i < result.getConnectionCount(); i++) {
+            int match = connectionMatches[i];
+            if (match < 0 || Double.doubleToRawLongBits(source.getWeight(match)) != Double.doubleToRawLongBits(result.getWeight(i))) {
+                changedWeights[i >>> 6] |= 1L << i;
+            }
+        }
+        record.putLongs(changedWeights);
+        for (int i = 0; i < result.getConnectionCount(); i++) {
+            if ((changedWeights[i >>> 6] & (1L << i)) != 0) {
+                record.putDouble(result.getWeight(i));
+            }
+        }
+
+        // Step 4: Enabled flags, which are only 1 bit each anyway
+        long[] enabled = new long[words(result.getConnectionCount())];
+        for (int i = 0; i < result.getConnectionCount(); i++) {
+            if (result.isEnabled(i)) {
+                enabled[i >>> 6] |= 1L << i;
+            }
+        }
+        record.putLongs(enabled);
+    }
+
+    /**
+     * Waits until every record so far has been written, then forces the
+     * journal to disk.
+     *
+     * @throws IOException If the journal could not be written.
+     */
+    public void flush() throws IOException {
+        waitFor(lastWrite);
+        lastWrite = writer.submit(() -> {
+            channel.force(false);
+            unsynced = 0;
+            return null;
+        });
+        waitFor(lastWrite);
+    }
+
+    /**
+     * Flushes the journal, and closes the file.
+     *
+     * @throws IOException If the journal could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            writer.shutdown();
+            channel.close();
+        }
+    }
+
+    private static void waitFor(Future<?> write) {
+        try {
+            write.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the journal", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not write the journal", e.getCause());
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Replaying
+    // ---------------------------------------------------------------------
+
+    /**
+     * Applies every generation recorded in the journal to the given
+     * population, which is usually just {@link Checkpoint#load(Path) loaded}.
+     * Records of generations the population already reached are skipped, so
+     * a journal may be replayed on top of any checkpoint saved while it was
+     * being written. A partially written record at the end is ignored.
+     *
+     * @param neat The population to bring up to date.
+     * @param path The file of the journal.
+     * @return The number of generations applied.
+     * @throws IOException If the journal could not be read, or is missing a
+     *                     generation the population needs.
+     */
+    public static int replay(Neat neat, Path path) throws IOException {
+        int[] applied = new int[1];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            scan(channel, (payload, version) -> {
+                int generation = payload.getInt();
+                if (generation <= neat.getGenerationNumber()) {
+                    return;
+                }
+                if (generation != neat.getGenerationNumber() + 1) {
+                    throw new IOException("Journal skips from generation " + neat.getGenerationNumber() + " to " + generation);
+                }
+
+                apply(neat, generation, payload, version);
+                applied[0]++;
+            });
+        } catch (IllegalStateException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            throw new IOException("Corrupt journal: " + path, e);
+        }
+        return applied[0];
+    }
+
+    private static void apply(Neat neat, int generation, ByteBuffer payload, int version) {
+        // Step 1: New innovations
+        InnovationRegistry registry = neat.getRegistry();
+        int nodeCount = payload.getInt();
+        for (int i = 0; i < nodeCount; i++) {
+            registry.restoreNode(payload.getInt(), payload.getDouble(), payload.getDouble(), payload.getDouble());
+        }
+        int connectionCount = payload.getInt();
+        for (int i = 0; i < connectionCount; i++) {
+            registry.restoreConnection(payload.getInt(), payload.getInt(), payload.getInt());
+        }
+        int replacementCount = payload.getInt();
+        for (int i = 0; i < replacementCount; i++) {
+            registry.restoreReplacementNode(payload.getLong(), payload.getInt());
+        }
+
+        // Step 2: Restore the scores the clients were evolved with, and sort
+        // them into species just like evolve() did
+        Map<Integer, Client> clientsById = new HashMap<>();
+        Map<Integer, Genome> genomesById = new HashMap<>();
+        for (Client client : neat.getClients()) {
+            clientsById.put(client.getId(), client);
+            genomesById.put(client.getId(), client.getGenome());
+        }
+
+        int clientCount = payload.getInt();
+        Client[] order = new Client[clientCount];
+        int[] parents = new int[clientCount];
+        for (int i = 0; i < clientCount; i++) {
+            int id = payload.getInt();
+            order[i] = clientsById.get(id);
+            if (order[i] == null) {
+                throw new IllegalStateException("Unknown client " + id);
+            }
+            order[i].setScore(payload.getDouble());
+            parents[i] = payload.getInt();
+            if (!genomesById.containsKey(parents[i])) {
+                throw new IllegalStateException("Unknown client " + parents[i]);
+            }
+        }
+
+        neat.sortIntoSpecies();
+        neat.setGenerationNumber(generation);
+
+        // Step 3: Copy every genome from its parent, and apply the changes
+        for (int i = 0; i < clientCount; i++) {
+            Genome genome = genomesById.get(parents[i]).clone();
+            applyDiff(genome, payload, version);
+            order[i].setGenome(genome);
+        }
+
+        List<Client> clients = neat.getClients();
+        clients.clear();
+        clients.addAll(List.of(order));
+    }
+
+    private static void applyDiff(Genome genome, ByteBuffer payload, int version) {
+        int addedNodes = payload.getInt();
+        for (int i = 0; i < addedNodes; i++) {
+            genome.addNode(payload.getInt(), 0.0);
+        }
+        int addedConnections = payload.getInt();
+        for (int i = 0; i < addedConnections; i++) {
+            genome.addConnection(payload.getInt(), payload.getInt(), payload.getInt(), 0.0, true);
+        }
+
+        long[] changedBiases = getLongs(payload, words(genome.getNodeCount()));
+        for (int i = 0; i < genome.getNodeCount(); i++) {
+            if ((changedBiases[i >>> 6] & (1L << i)) != 0) {
+                genome.setBias(i, payload.getDouble());
+            }
+        }
+
+        // Added nodes use the sigmoid until set otherwise, and every node
+        // used the sigmoid before version 2
+        if (version >= 2) {
+            long[] changedActivations = getLongs(payload, words(genome.getNodeCount()));
+            for (int i = 0; i < genome.getNodeCount(); i++) {
+                if ((changedActivations[i >>> 6] & (1L << i)) != 0) {
+                    genome.setActivation(i, Activation.of(payload.get()));
+                }
+            }
+        }
+
+        long[] changedWeights = getLongs(payload, words(genome.getConnectionCount()));
+        for (int i = 0; i < genome.getConnectionCount(); i++) {
+            if ((changedWeights[i >>> 6] & (1L << i)) != 0) {
+                genome.setWeight(i, payload.getDouble());
+            }
+        }
+
+        long[] enabled = getLongs(payload, words(genome.getConnectionCount()));
+        for (int i = 0; i < genome.getConnectionCount(); i++) {
+            boolean isEnabled = (enabled[i >>> 6] & (1L << i)) != 0;
+            if (genome.isEnabled(i) != isEnabled) {
+                genome.setEnabled(i, isEnabled);
+            }
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // File format
+    // ---------------------------------------------------------------------
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(ByteBuffer payload, int version) throws IOException;
+    }
+
+    /**
+     * Checks the file header, and returns the version of the journal.
+     */
+    private static int readVersion(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ORDER);
+        readFully(channel, header, 0);
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a journal");
+        }
+        int version = header.getInt();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported journal version " + version + " (newest supported is " + VERSION + ")");
+        }
+        return version;
+    }
+
+    /**
+     * Checks the file header, then visits every complete record in order.
+     *
+     * @return The position just after the last complete record.
+     */
+    private static long scan(FileChannel channel, RecordVisitor visitor) throws IOException {
+        long size = channel.size();
+        int version = readVersion(channel);
+
+        long position = FILE_HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE).order(ORDER);
+        CRC32C crc = new CRC32C();
+        while (position + RECORD_HEADER_SIZE <= size) {
+            recordHeader.clear();
+            readFully(channel, recordHeader, position);
+            int length = recordHeader.getInt();
+            int checksum = recordHeader.getInt();
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocate(length).order(ORDER);
+            readFully(channel, payload, position + RECORD_HEADER_SIZE);
+            crc.reset();
+            crc.update(payload.array(), 0, length);
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+
+            visitor.visit(payload, version);
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Journal ends unexpectedly");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static long[] getLongs(ByteBuffer payload, int count) {
+        long[] values = new long[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = payload.getLong();
+        }
+        return values;
+    }
+
+    private static int words(int bits) {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * A growable buffer holding 1 encoded record, with room at the start for
+     * the record header.
+     */
+    private static final class Record {
+
+        private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ORDER).position(RECORD_HEADER_SIZE);
+
+        void putInt(int value) {
+            ensure(Integer.BYTES);
+            buffer.putInt(value);
+        }
+
+        void putByte(byte value) {
+            ensure(Byte.BYTES);
+            buffer.put(value);
+        }
+
+        void putLong(long value) {
+            ensure(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putLongs(long[] values) {
+            ensure(values.length * Long.BYTES);
+            for (long value : values) {
+                buffer.putLong(value);
+            }
+        }
+
+        void putDouble(double value) {
+            ensure(Double.BYTES);
+            buffer.putDouble(value);
+        }
+
+        private void ensure(int bytes) {
+            if (buffer.remaining() < bytes) {
+                int capacity = Math.max(buffer.capacity() * 2, buffer.position() + bytes);
+                buffer = ByteBuffer.allocate(capacity).order(ORDER).put(buffer.flip());
+            }
+        }
+
+        /**
+         * Fills in the record header, and returns the record ready to write.
+         */
+        ByteBuffer finish() {
+            int length = buffer.position() - RECORD_HEADER_SIZE;
+            CRC32C crc = new CRC32C();
+            crc.update(buffer.array(), RECORD_HEADER_SIZE, length);
+            buffer.putInt(0, length);
+            buffer.putInt(Integer.BYTES, (int) crc.getValue());
+            return buffer.flip();
+        }
+    }
+}
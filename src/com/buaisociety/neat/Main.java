@@ -1,9 +1,30 @@
 package com.buaisociety.neat;
 
+import com.buaisociety.neat.dataset.Dataset;
+import com.buaisociety.neat.dataset.Loss;
+
 import java.util.concurrent.ThreadLocalRandom;
 
 public class Main {
 
+    /**
+     * The 4 rows of XOR. Created once and shared by every evaluation thread.
+     */
+    private static final Dataset XOR = Dataset.of(
+        new double[][]{
+            {0.0, 0.0},
+            {0.0, 1.0},
+            {1.0, 0.0},
+            {1.0, 1.0}
+        },
+        new double[][]{
+            {0.0},
+            {1.0},
+            {1.0},
+            {0.0}
+        }
+    );
+
     public static void main(String[] args) {
         int trials = 100;
         int sum = 0;
@@ -19,14 +40,19 @@ public class Main {
         // We're still trying to solve XOR, but this time using NEAT.
         // 2 inputs, 1 output, 100 population size.
         Neat neat = new Neat(2, 1, 150);
-        neat.getRandom().setSeed(ThreadLocalRandom.current().nextLong());
+        neat.setSeed(ThreadLocalRandom.current().nextLong());
+
+        // Print where the time of each generation went, as often as the scores
+        neat.getMetrics().addListener(metrics -> {
+            if (metrics.getGeneration() % 100 == 0) {
+                System.out.println(metrics);
+            }
+        });
 
         int generations = 0;
         while (true) {
             // Evaluate each client
-            for (Client client : neat.getClients()) {
-                updateScore(client);
-            }
+            neat.evaluate(Main::updateScore);
 
             if (generations % 100 == 0) {
                 System.out.println("Generation " + generations);
@@ -53,59 +79,17 @@ public class Main {
      * Checks if the XOR problem has been solved by the given client.
      */
     public static boolean isPassed(Client client) {
-        double[][] inputs = {
-            {0.0, 0.0},
-            {0.0, 1.0},
-            {1.0, 0.0},
-            {1.0, 1.0}
-        };
-
-        double[][] expectedOutputs = {
-            {0.0},
-            {1.0},
-            {1.0},
-            {0.0}
-        };
-
-        for (int i = 0; i < inputs.length; i++) {
-            double[] output = client.getCalculator().predict(inputs[i]);
-            double rounded = Math.round(output[0]);
-            if (Math.abs(rounded - expectedOutputs[i][0]) > 0.1) {
-                return false;
-            }
-        }
-
-        return true;
+        return XOR.evaluate(client.getCalculator(), Loss.ACCURACY) == 1.0;
     }
 
     /**
-     * Updates the given client's score based on how well it performs on the XOR
-     * problem.
+     * Calculates the given client's score based on how well it performs on the
+     * XOR problem.
      */
-    public static void updateScore(Client client) {
-        double[][] inputs = {
-            {0.0, 0.0},
-            {0.0, 1.0},
-            {1.0, 0.0},
-            {1.0, 1.0}
-        };
-
-        double[][] expectedOutputs = {
-            {0.0},
-            {1.0},
-            {1.0},
-            {0.0}
-        };
-
+    public static double updateScore(Client client) {
         // Start with a score of 4.0, since that is the maximum value of the
         // loss function. That way, the maximum loss function gives a score of 0.
-        double score = 4.0;
-        for (int i = 0; i < inputs.length; i++) {
-            double[] output = client.getCalculator().predict(inputs[i]);
-            double diff = output[0] - expectedOutputs[i][0];
-            score -= diff * diff;
-        }
-
-        client.setScore(score);
+        double meanSquaredError = XOR.evaluate(client.getCalculator(), Loss.MEAN_SQUARED_ERROR);
+        return 4.0 - meanSquaredError * XOR.getRowCount();
     }
 }
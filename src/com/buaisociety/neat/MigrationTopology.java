@@ -0,0 +1,47 @@
+package com.buaisociety.neat;
+
+/**
+ * Decides which islands of an {@link IslandModel} send their champions to
+ * which other islands.
+ */
+public enum MigrationTopology {
+
+    /**
+     * Each island sends its champions to the next island, and the last island
+     * sends them to the first. Good ideas spread slowly, which keeps the
+     * islands diverse.
+     */
+    RING,
+
+    /**
+     * Each island sends its champions to every other island. Good ideas
+     * spread in 1 migration.
+     */
+    FULLY_CONNECTED;
+
+    /**
+     * Returns the islands that the given island sends its champions to.
+     *
+     * @param island The index of the sending island.
+     * @param islands The number of islands.
+     * @return The indexes of the receiving islands, in ascending order.
+     */
+    public int[] destinations(int island, int islands) {
+        if (islands < 2) {
+            return new int[0];
+        }
+
+        return switch (this) {
+            case RING -> new int[]{(island + 1) % islands};
+            case FULLY_CONNECTED -> {
+                int[] destinations = new int[islands - 1];
+                for (int i = 0, d = 0; i < islands; i++) {
+                    if (i != island) {
+                        destinations[d++] = i;
+                    }
+                }
+                yield destinations;
+            }
+        };
+    }
+}
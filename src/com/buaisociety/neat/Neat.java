@@ -1,16 +1,27 @@
 package com.buaisociety.neat;
 
+import com.buaisociety.neat.calculator.TopologyCache;
+import com.buaisociety.neat.evaluation.AsyncEvaluator;
+import com.buaisociety.neat.evaluation.AsyncFitnessFunction;
+import com.buaisociety.neat.evaluation.Evaluator;
+import com.buaisociety.neat.evaluation.FitnessCache;
+import com.buaisociety.neat.evaluation.FitnessFunction;
+import com.buaisociety.neat.evaluation.WorkerPool;
+import com.buaisociety.neat.genome.Activation;
 import com.buaisociety.neat.genome.ConnectionGene;
 import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.InnovationRegistry;
+import com.buaisociety.neat.genome.MutateActivation;
 import com.buaisociety.neat.genome.NodeGene;
+import com.buaisociety.neat.metrics.Metrics;
+import com.buaisociety.neat.metrics.Timing;
 
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
 
 /**
  * The manging class for the NEAT algorithm. This class is responsible for
@@ -27,39 +38,75 @@ import java.util.Random;
  * shared between all clients. This sharing is crucial in genetic evolution, as
  * it lets us compare the "genetics" of different genomes. Matching nodes and
  * connections implies genetic similarity.
+ *
+ * <p>The shared nodes and connections are stored in an {@link InnovationRegistry},
+ * so new nodes and connections may be discovered from many threads at once.
  */
 public class Neat {
 
     private int numInputNodes;
     private int numOutputNodes;
+    private Precision precision;
 
+    private long seed;
     private Random random;
-    private List<NodeGene> nodes = new ArrayList<>();
-    private Map<ConnectionGene, ConnectionGene> connections = new HashMap<>();
-    private Map<ConnectionGene, Integer> replacementNodes = new HashMap<>();
+    private InnovationRegistry registry = new InnovationRegistry(this);
     private List<Client> clients = new ArrayList<>();
     private List<Species> allSpecies = new ArrayList<>();
+    private Evaluator evaluator = new Evaluator(Evaluator.Strategy.FORK_JOIN);
+    private AsyncEvaluator asyncEvaluator = new AsyncEvaluator();
+    private Speciator speciator = new Speciator(this);
+    private TopologyCache topologyCache = new TopologyCache();
+    private Metrics metrics = new Metrics(this);
+    private Journal journal;
+    private FitnessCache fitnessCache;
+    private List<Activation> activations = List.of(Activation.SIGMOID);
+    private boolean recurrent = false;
 
     private int generationNumber = 0;
-    private int speciesCounter = 0;
 
     public Neat(int numInputNodes, int numOutputNodes, int numClients) {
-        this.random = new Random(1111);
-        this.numInputNodes = numInputNodes;
-        this.numOutputNodes = numOutputNodes;
+        this(numInputNodes, numOutputNodes, numClients, Precision.DOUBLE);
+    }
 
-        // Instantiating the input nodes
-        for (int i = 0; i < numInputNodes; i++) {
-            NodeGene inputNode = newNode();
-            inputNode.setX(0.1);  // not exactly 0, adds visual padding if visualized
-            inputNode.setY((i + 1) / (numInputNodes + 1.0));
-        }
+    /**
+     * Creates a population whose genomes and calculators use the given
+     * precision.
+     *
+     * @param numInputNodes The number of inputs of every network.
+     * @param numOutputNodes The number of outputs of every network.
+     * @param numClients The size of the population.
+     * @param precision The precision of weights, biases and neuron values.
+     */
+    public Neat(int numInputNodes, int numOutputNodes, int numClients, Precision precision) {
+        this(numInputNodes, numOutputNodes, numClients, precision, null);
+    }
 
-        // Instantiating the output nodes
-        for (int i = 0; i < numOutputNodes; i++) {
-            NodeGene outputNode = newNode();
-            outputNode.setX(0.9);  // not exactly 1, adds visual padding if visualized
-            outputNode.setY((i + 1) / (numOutputNodes + 1.0));
+    /**
+     * Creates a population that shares its innovation registry with other
+     * populations, so innovation ids mean the same thing in all of them.
+     * Used by {@link IslandModel}.
+     *
+     * @param registry The shared registry, or null to create a new one.
+     */
+    Neat(int numInputNodes, int numOutputNodes, int numClients, Precision precision, InnovationRegistry registry) {
+        this(numInputNodes, numOutputNodes, precision);
+
+        // The input and output nodes of a shared registry already exist
+        if (registry != null) {
+            this.registry = registry;
+        } else {
+            // Instantiating the input nodes
+            for (int i = 0; i < numInputNodes; i++) {
+                // x is not exactly 0, adds visual padding if visualized
+                this.registry.newNode(0.1, (i + 1) / (numInputNodes + 1.0));
+            }
+
+            // Instantiating the output nodes
+            for (int i = 0; i < numOutputNodes; i++) {
+                // x is not exactly 1, adds visual padding if visualized
+                this.registry.newNode(0.9, (i + 1) / (numOutputNodes + 1.0));
+            }
         }
 
         // Instantiating the clients
@@ -71,10 +118,44 @@ public class Neat {
         sortIntoSpecies();
     }
 
+    /**
+     * Creates an empty instance, without any nodes, clients or species. Used
+     * by {@link Checkpoint} to restore a saved population.
+     */
+    Neat(int numInputNodes, int numOutputNodes, Precision precision) {
+        this.seed = 1111;
+        this.random = new Random(seed);
+        this.numInputNodes = numInputNodes;
+        this.numOutputNodes = numOutputNodes;
+        this.precision = precision;
+    }
+
+    /**
+     * Returns the shared random. This is not used by {@link #evolve()}, which
+     * gives each client its own {@link RandomStreams stream} instead.
+     *
+     * @return The shared random.
+     */
     public Random getRandom() {
         return random;
     }
 
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Sets the seed of this run. Evolving from the same population with the
+     * same seed always creates the same population, no matter how many
+     * threads are used.
+     *
+     * @param seed The new seed.
+     */
+    public void setSeed(long seed) {
+        this.seed = seed;
+        this.random.setSeed(seed);
+    }
+
     public int getNumInputNodes() {
         return numInputNodes;
     }
@@ -83,6 +164,44 @@ public class Neat {
         return numOutputNodes;
     }
 
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Returns the activation functions that {@link MutateActivation} may give
+     * to neurons. Only {@link Activation#SIGMOID} by default, so activations
+     * do not evolve unless more are added.
+     *
+     * @return The allowed activations.
+     */
+    public List<Activation> getActivations() {
+        return activations;
+    }
+
+    public void setActivations(List<Activation> activations) {
+        if (activations.isEmpty()) {
+            throw new IllegalArgumentException("At least 1 activation must be allowed");
+        }
+        this.activations = List.copyOf(activations);
+    }
+
+    /**
+     * Returns true if {@link com.buaisociety.neat.genome.MutateAddConnection}
+     * may add connections that point backwards, or from a node to itself.
+     * False by default, so networks are feed-forward.
+     *
+     * @return true if networks may become recurrent.
+     * @see com.buaisociety.neat.calculator.Calculator#reset()
+     */
+    public boolean isRecurrent() {
+        return recurrent;
+    }
+
+    public void setRecurrent(boolean recurrent) {
+        this.recurrent = recurrent;
+    }
+
     public List<Client> getClients() {
         return clients;
     }
@@ -91,16 +210,147 @@ public class Neat {
         return allSpecies;
     }
 
+    public InnovationRegistry getRegistry() {
+        return registry;
+    }
+
+    public Speciator getSpeciator() {
+        return speciator;
+    }
+
+    /**
+     * Returns the cache that lets calculators of genomes with the same nodes
+     * and connections share their evaluation order.
+     *
+     * @return The topology cache.
+     */
+    public TopologyCache getTopologyCache() {
+        return topologyCache;
+    }
+
+    /**
+     * Returns the timings and statistics recorded while this population
+     * evolves.
+     *
+     * @return The metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public int getGenerationNumber() {
+        return generationNumber;
+    }
+
+    void setGenerationNumber(int generationNumber) {
+        this.generationNumber = generationNumber;
+    }
+
+    public Evaluator getEvaluator() {
+        return evaluator;
+    }
+
+    /**
+     * Sets the evaluator used by {@link #evaluate(FitnessFunction)}. The
+     * previous evaluator is not closed.
+     *
+     * @param evaluator The new evaluator.
+     */
+    public void setEvaluator(Evaluator evaluator) {
+        this.evaluator = evaluator;
+    }
+
+    public AsyncEvaluator getAsyncEvaluator() {
+        return asyncEvaluator;
+    }
+
+    /**
+     * Sets the evaluator used by {@link #evaluateAsync(AsyncFitnessFunction)}.
+     *
+     * @param asyncEvaluator The new evaluator.
+     */
+    public void setAsyncEvaluator(AsyncEvaluator asyncEvaluator) {
+        this.asyncEvaluator = asyncEvaluator;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Sets the journal that every call to {@link #evolve()} is recorded in,
+     * or null to stop recording. The previous journal is not closed.
+     *
+     * @param journal The new journal.
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    public FitnessCache getFitnessCache() {
+        return fitnessCache;
+    }
+
+    /**
+     * Sets the cache used by {@link #evaluate(FitnessFunction)} to skip
+     * genomes that have not changed since they were last scored, or null to
+     * score every client every time (the default). Only use a cache when the
+     * fitness function is deterministic, and depends on nothing but the
+     * genome.
+     *
+     * @param fitnessCache The new fitness cache.
+     */
+    public void setFitnessCache(FitnessCache fitnessCache) {
+        this.fitnessCache = fitnessCache;
+    }
+
+    /**
+     * Scores every client concurrently using the given fitness function. This
+     * should be called once per generation, before {@link #evolve()}.
+     *
+     * @param fitness The fitness function to score each client with.
+     */
+    public void evaluate(FitnessFunction fitness) {
+        long start = metrics.start();
+        evaluator.evaluate(generationNumber, clients, fitness, fitnessCache);
+        metrics.stop(Timing.EVALUATION, start);
+    }
+
+    /**
+     * Scores every client using the given asynchronous fitness function,
+     * with at most {@link AsyncEvaluator#getMaxInFlight()} evaluations
+     * running at once. Blocks until every client is scored. This should be
+     * called once per generation, before {@link #evolve()}.
+     *
+     * @param fitness The fitness function to score each client with.
+     * @see AsyncFitnessFunction#onVirtualThreads
+     */
+    public void evaluateAsync(AsyncFitnessFunction fitness) {
+        long start = metrics.start();
+        asyncEvaluator.evaluate(generationNumber, clients, fitness, fitnessCache);
+        metrics.stop(Timing.EVALUATION, start);
+    }
+
+    /**
+     * Scores every client in the worker processes of the given pool, instead
+     * of in this JVM. This should be called once per generation, before
+     * {@link #evolve()}.
+     *
+     * @param workers The worker processes to score each client in.
+     */
+    public void evaluate(WorkerPool workers) {
+        long start = metrics.start();
+        workers.evaluate(this, fitnessCache);
+        metrics.stop(Timing.EVALUATION, start);
+    }
+
     /**
      * Creates a new node and adds it to this manager.
      *
      * @return The new node.
      */
     public NodeGene newNode() {
-        int id = nodes.size();
-        NodeGene node = new NodeGene(this, id);
-        nodes.add(node);
-        return node;
+        return registry.newNode(0.0, 0.0);
     }
 
     /**
@@ -111,32 +361,24 @@ public class Neat {
      * @return The new connection.
      */
     public ConnectionGene newConnection(NodeGene from, NodeGene to) {
-        ConnectionGene connection = new ConnectionGene(this, -1, from, to);
-
         // See if a connection between the 2 given nodes have ever been created. If
         // so, re-use that connection so the ids match up. Otherwise, create a new
         // connection.
-        connection = connections.get(connection);
-        if (connection == null) {
-            connection = new ConnectionGene(this, connections.size(), from, to);
-            connections.put(connection, connection);
-        }
+        ConnectionGene connection = registry.getConnection(from, to);
 
         // Clone the connection to avoid genomes modifying the original connection's values.
         return connection.clone();
     }
 
+    /**
+     * Returns the node that splits the given connection in half. Every genome
+     * that splits the same connection gets the same node.
+     *
+     * @param connection The connection to split.
+     * @return The node that splits the connection.
+     */
     public NodeGene newReplacementConnection(ConnectionGene connection) {
-        if (replacementNodes.containsKey(connection)) {
-            int id = replacementNodes.get(connection);
-            return nodes.get(id);
-        }
-
-        NodeGene node = newNode();
-        node.setX((connection.getFrom().getX() + connection.getTo().getX()) / 2.0);
-        node.setY((connection.getFrom().getY() + connection.getTo().getY()) / 2.0);
-        replacementNodes.put(connection, node.getId());
-        return node;
+        return registry.getReplacementNode(connection);
     }
 
     public Genome newGenome(boolean forceEmpty) {
@@ -144,7 +386,7 @@ public class Neat {
         for (int i = 0; i < numInputNodes + numOutputNodes; i++) {
             // The nodes already exist, since the input and output cached nodes
             // are created 1 time in the constructor.
-            NodeGene node = this.nodes.get(i);
+            NodeGene node = registry.getNode(i);
             genome.addNodeGene(node);
         }
 
@@ -152,9 +394,9 @@ public class Neat {
         if (!forceEmpty) {
             for (int i = 0; i < numInputNodes; i++) {
                 for (int j = numInputNodes; j < numInputNodes + numOutputNodes; j++) {
-                    NodeGene from = this.nodes.get(i);
-                    NodeGene to = this.nodes.get(j);
-                    ConnectionGene connection = new ConnectionGene(this, connections.size(), from, to);
+                    NodeGene from = registry.getNode(i);
+                    NodeGene to = registry.getNode(j);
+                    ConnectionGene connection = newConnection(from, to);
                     genome.addConnectionGene(connection);
                 }
             }
@@ -163,16 +405,37 @@ public class Neat {
         return genome;
     }
 
+    /**
+     * Sorts every client into a species, creating new species as needed and
+     * removing species that no longer have any clients.
+     *
+     * @see Speciator#speciate(List, List, int)
+     */
     public void sortIntoSpecies() {
-        // TODO: reset all existing species
-
-        // TODO: Sort clients into species if they don't already have one
-        // TODO: Create new ones as needed
+        long start = metrics.start();
+        speciator.speciate(clients, allSpecies, generationNumber);
+        metrics.stop(Timing.SPECIATION, start);
     }
 
     public void evolve() {
+        Evolution evolution = beginEvolution();
+        evolution.mutateStructure();
+        evolution.finish();
+    }
+
+    /**
+     * Runs the first part of {@link #evolve()}: speciation, selection, and
+     * cloning the parents of every new client. Nothing here discovers
+     * innovations, so populations that share a registry may do this at the
+     * same time.
+     *
+     * @return The rest of the evolution.
+     */
+    Evolution beginEvolution() {
+        Journal.Generation journaled = journal == null ? null : journal.begin(this);
         sortIntoSpecies();
         generationNumber++;
+        long start = metrics.start();
 
         // TODO: Switch over to kill by species instead of by client (remove dead species)
 
@@ -200,22 +463,82 @@ public class Neat {
                 survivors.add(client);
             }
         }
+        if (journaled != null) {
+            journaled.capture(survivors);
+        }
 
-        // Bring them back to life
+        // Every client gets its own random stream, so the result does not
+        // depend on how the work below is split between threads
+        SplittableRandom[] streams = new SplittableRandom[clients.size()];
+        Genome[] genomes = new Genome[clients.size()];
+        int[] parents = new int[clients.size()];
         for (int i = 0; i < clients.size(); i++) {
-            Client client = clients.get(i);
+            streams[i] = RandomStreams.forClient(seed, generationNumber, clients.get(i).getId());
+        }
 
+        // Bring them back to life. Parents are cloned before anything is
+        // mutated, so every clone is a copy of the unmutated parent. They
+        // are shared here, so the clones below only read them.
+        for (Client survivor : survivors) {
+            survivor.getGenome().share();
+        }
+        IntStream.range(0, clients.size()).parallel().forEach(i -> {
+            Client client = clients.get(i);
             if (client.getGenome() == null) {
-                Client parent = survivors.get(random.nextInt(survivors.size()));
-                Genome revived = parent.getGenome().clone();
-                revived.mutate();
-
-                // Actually revive our client
-                client.setGenome(revived);
+                Client parent = survivors.get(streams[i].nextInt(survivors.size()));
+                genomes[i] = parent.getGenome().clone();
+                parents[i] = parent.getId();
             } else {
-                client.mutate();
+                genomes[i] = client.getGenome();
+                parents[i] = client.getId();
             }
-        }
+        });
+
+        metrics.stop(Timing.SELECTION, start);
+        return new Evolution(journaled, streams, genomes, parents);
     }
 
+    /**
+     * The part of {@link #evolve()} that runs after the parents are cloned.
+     */
+    final class Evolution {
+
+        private final Journal.Generation journaled;
+        private final SplittableRandom[] streams;
+        private final Genome[] genomes;
+        private final int[] parents;
+
+        private Evolution(Journal.Generation journaled, SplittableRandom[] streams, Genome[] genomes, int[] parents) {
+            this.journaled = journaled;
+            this.streams = streams;
+            this.genomes = genomes;
+            this.parents = parents;
+        }
+
+        /**
+         * Structural mutations discover new innovations, so they run in client
+         * order to keep the innovation ids reproducible. Populations that share
+         * a registry must also take turns.
+         */
+        void mutateStructure() {
+            for (int i = 0; i < clients.size(); i++) {
+                genomes[i].mutateStructure(streams[i]);
+            }
+        }
+
+        /**
+         * Everything else only touches the client's own genome.
+         */
+        void finish() {
+            IntStream.range(0, clients.size()).parallel().forEach(i -> {
+                genomes[i].mutateValues(streams[i]);
+                clients.get(i).setGenome(genomes[i]);
+            });
+
+            if (journaled != null) {
+                journal.append(journaled, Neat.this, parents);
+            }
+            metrics.endGeneration();
+        }
+    }
 }
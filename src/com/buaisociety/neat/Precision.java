@@ -0,0 +1,25 @@
+package com.buaisociety.neat;
+
+/**
+ * The floating point type used to store the weights and biases of genomes,
+ * and to evaluate {@link com.buaisociety.neat.calculator.Calculator
+ * calculators}.
+ *
+ * <p>Neuroevolution rarely benefits from the extra precision of doubles, so
+ * {@link #FLOAT} can be used to halve the memory used by gene values, and the
+ * memory bandwidth (and SIMD width) used by batch inference. Values are still
+ * passed in and out as doubles, and are rounded to the nearest float when
+ * they are stored.
+ */
+public enum Precision {
+
+    /**
+     * 64 bit values. The default.
+     */
+    DOUBLE,
+
+    /**
+     * 32 bit values.
+     */
+    FLOAT
+}
@@ -0,0 +1,74 @@
+package com.buaisociety.neat;
+
+import java.util.SplittableRandom;
+
+/**
+ * Creates independent random streams for each client in each generation.
+ *
+ * <p>A stream only depends on the (seed, generation, client id) it was created
+ * for, not on which thread uses it or in which order the streams are created.
+ * This lets many clients be reproduced in parallel while still creating the
+ * exact same population for a given seed.
+ */
+public final class RandomStreams {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private RandomStreams() {
+    }
+
+    /**
+     * Creates the random stream for the given client in the given generation.
+     *
+     * @param seed The seed of the whole run.
+     * @param generation The generation being created.
+     * @param clientId The id of the client being created.
+     * @return A new random stream.
+     */
+    public static SplittableRandom forClient(long seed, int generation, int clientId) {
+        return create(seed, generation, clientId);
+    }
+
+    /**
+     * Creates the random stream for the given species in the given generation.
+     *
+     * @param seed The seed of the whole run.
+     * @param generation The generation being created.
+     * @param speciesId The id of the species.
+     * @return A new random stream.
+     */
+    public static SplittableRandom forSpecies(long seed, int generation, int speciesId) {
+        // Flip the bits, so species streams never collide with client streams
+        return create(seed, generation, ~speciesId);
+    }
+
+    /**
+     * Returns the seed of 1 island of an {@link IslandModel}, so every island
+     * evolves differently, but reproducibly.
+     *
+     * @param seed The seed of the whole run.
+     * @param island The index of the island.
+     * @return The seed of the island.
+     */
+    public static long forIsland(long seed, int island) {
+        // Generation -1 is never used by clients or species
+        return create(seed, -1, island).nextLong();
+    }
+
+    private static SplittableRandom create(long seed, int generation, int id) {
+        long hash = mix(seed + GOLDEN_GAMMA);
+        hash = mix(hash ^ (generation + GOLDEN_GAMMA));
+        hash = mix(hash ^ (id + GOLDEN_GAMMA));
+        return new SplittableRandom(hash);
+    }
+
+    /**
+     * The SplitMix64 finalizer. Small changes to the input completely change
+     * the output, so neighbouring ids get unrelated streams.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,230 @@
+package com.buaisociety.neat;
+
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.metrics.Timing;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+/**
+ * Sorts clients into {@link Species} based on the compatibility distance
+ * between their genomes and the representative genome of each species.
+ *
+ * <p>Calculating distances is the expensive part of speciation, so distances
+ * are cached by the {@link Genome#getVersion() versions} of both genomes. A
+ * genome that has not changed since the last generation does not need its
+ * distances calculated again. Distances to the species that already exist are
+ * calculated in parallel, 1 task per client.
+ *
+ * <p>Clients join the closest species within the threshold (ties go to the
+ * oldest species), so the result does not depend on how many threads are used.
+ * Species that already existed are searched with a {@link SpeciesIndex}, so
+ * each client is only compared against the few species it could match.
+ */
+public class Speciator {
+
+    private final Neat neat;
+    private double threshold = 4.0;
+    private boolean verifying;
+    private int speciesCounter = 0;
+    private SpeciesIndex lastIndex;
+
+    /**
+     * Distances calculated this generation, and last generation. Entries that
+     * are not used for a whole generation are dropped, which keeps the cache
+     * from growing forever.
+     */
+    private Map<DistanceKey, Double> current = new ConcurrentHashMap<>();
+    private Map<DistanceKey, Double> previous = new ConcurrentHashMap<>();
+
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    public Speciator(Neat neat) {
+        this.neat = neat;
+    }
+
+    /**
+     * Returns the compatibility distance under which a client matches a
+     * species.
+     *
+     * @return The compatibility threshold.
+     */
+    public double getThreshold() {
+        return threshold;
+    }
+
+    public void setThreshold(double threshold) {
+        this.threshold = threshold;
+    }
+
+    /**
+     * Returns true if a sample of searches is double-checked against every
+     * species, to count {@link SpeciesIndex#getViolations() violations}.
+     * Off by default, since searches are exact.
+     *
+     * @return true if verifying.
+     * @see SpeciesIndex
+     */
+    public boolean isVerifying() {
+        return verifying;
+    }
+
+    public void setVerifying(boolean verifying) {
+        this.verifying = verifying;
+    }
+
+    /**
+     * Returns the index built during the most recent speciation, which holds
+     * statistics about how many distances were calculated, or null before the
+     * first speciation.
+     *
+     * @return The most recent index.
+     */
+    public SpeciesIndex getLastIndex() {
+        return lastIndex;
+    }
+
+    /**
+     * Returns the id the next new species will get.
+     *
+     * @return The next species id.
+     */
+    public int getSpeciesCounter() {
+        return speciesCounter;
+    }
+
+    void setSpeciesCounter(int speciesCounter) {
+        this.speciesCounter = speciesCounter;
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * Returns the compatibility distance between a genome and a species'
+     * representative, using the cache when possible.
+     *
+     * @param genome The genome being sorted into a species.
+     * @param representative The representative genome of the species.
+     * @return The compatibility distance.
+     */
+    public double distance(Genome genome, Genome representative) {
+        DistanceKey key = new DistanceKey(genome.getVersion(), representative.getVersion());
+        Double distance = current.get(key);
+        if (distance != null) {
+            cacheHits.increment();
+            return distance;
+        }
+
+        distance = previous.get(key);
+        if (distance != null) {
+            cacheHits.increment();
+        } else {
+            cacheMisses.increment();
+            distance = Genome.distance(genome, representative);
+        }
+
+        current.put(key, distance);
+        return distance;
+    }
+
+    /**
+     * Sorts every client into a species. Existing species choose a new
+     * representative, every client joins the closest species it matches (or
+     * founds a new one), and species that no client matches go extinct.
+     *
+     * @param clients The clients to sort.
+     * @param allSpecies The species from the last generation. Updated in place.
+     * @param generation The current generation, used to seed the choice of
+     *                   representatives.
+     */
+    public void speciate(List<Client> clients, List<Species> allSpecies, int generation) {
+        // Step 1: Reset the existing species, choosing new representatives
+        for (Species species : allSpecies) {
+            species.reset(RandomStreams.forSpecies(neat.getSeed(), generation, species.getId()));
+
+            // Calculate the version before the representative is shared
+            // between threads
+            species.getRepresentative().getVersion();
+        }
+
+        // Step 2: Find the closest existing species each client matches. Each
+        // task only touches 1 client's genome, so this can run in parallel.
+        // Steps 2 and 3 are timed together as the distance calculations
+        long start = neat.getMetrics().start();
+        SpeciesIndex index = new SpeciesIndex(this, allSpecies, threshold, verifying);
+        List<Species> existing = index.getSpecies();
+        int[] matches = new int[clients.size()];
+        IntStream.range(0, clients.size()).parallel().forEach(i -> {
+            matches[i] = index.findClosest(clients.get(i).getGenome());
+        });
+        lastIndex = index;
+
+        // Step 3: Add the clients to their species, in order. Clients that
+        // did not match an existing species are compared against the species
+        // founded during this step instead. There are usually only a few of
+        // those, so they are not indexed.
+        List<Species> founded = new ArrayList<>();
+        for (int i = 0; i < clients.size(); i++) {
+            Client client = clients.get(i);
+            if (matches[i] >= 0) {
+                existing.get(matches[i]).add(client, true);
+                continue;
+            }
+
+            int match = closestMatch(client.getGenome(), founded);
+            if (match >= 0) {
+                founded.get(match).add(client, true);
+            } else {
+                Species species = new Species(neat, speciesCounter++, client);
+                species.getRepresentative().getVersion();
+                founded.add(species);
+            }
+        }
+        allSpecies.addAll(founded);
+        neat.getMetrics().stop(Timing.DISTANCE, start);
+
+        // Step 4: Species that nobody matched anymore go extinct
+        Iterator<Species> iterator = allSpecies.iterator();
+        while (iterator.hasNext()) {
+            Species species = iterator.next();
+            if (species.getClients().isEmpty()) {
+                species.goExtinct();
+                iterator.remove();
+            }
+        }
+
+        previous = current;
+        current = new ConcurrentHashMap<>();
+    }
+
+    private int closestMatch(Genome genome, List<Species> candidates) {
+        int best = -1;
+        double bestDistance = threshold;
+        for (int i = 0; i < candidates.size(); i++) {
+            double distance = distance(genome, candidates.get(i).getRepresentative());
+            if (distance < bestDistance) {
+                best = i;
+                bestDistance = distance;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Identifies the distance between 2 specific versions of genomes.
+     */
+    private record DistanceKey(long genome, long representative) {
+    }
+}
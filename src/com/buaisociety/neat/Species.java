@@ -5,6 +5,7 @@ import com.buaisociety.neat.genome.Genome;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.random.RandomGenerator;
 
 /**
  * A species is a group of similar clients (group of similar genomes). The
@@ -20,6 +21,13 @@ public class Species {
     private int id;
     private Client base;
 
+    /**
+     * A snapshot of the base client's genome, taken when the base was chosen.
+     * Clients are compared against this genome, since the base client's own
+     * genome keeps changing as it evolves.
+     */
+    private Genome representative;
+
     private List<Client> clients = new ArrayList<>();
     private double score;
     private int generations = 0;
@@ -29,11 +37,27 @@ public class Species {
         this.neat = neat;
         this.id = id;
         this.base = base;
+        this.representative = base.getGenome().clone();
 
         // start with 1 member in our species
+        base.setSpecies(this);
         this.clients.add(base);
     }
 
+    /**
+     * Creates an empty species with an existing representative. Used by
+     * {@link Checkpoint} to restore a saved population; members are added
+     * afterwards with {@link #add(Client, boolean)}.
+     */
+    Species(Neat neat, int id, Client base, Genome representative, double score, int generations) {
+        this.neat = neat;
+        this.id = id;
+        this.base = base;
+        this.representative = representative;
+        this.score = score;
+        this.generations = generations;
+    }
+
     public Neat getNeat() {
         return neat;
     }
@@ -46,6 +70,10 @@ public class Species {
         return base;
     }
 
+    public Genome getRepresentative() {
+        return representative;
+    }
+
     public List<Client> getClients() {
         return clients;
     }
@@ -69,11 +97,22 @@ public class Species {
      * @return a random client from this species
      */
     public Client getRandom() {
+        return getRandom(neat.getRandom());
+    }
+
+    /**
+     * Returns a random client from this species, or null if the species is
+     * empty (extinct).
+     *
+     * @param random The random stream to draw from.
+     * @return a random client from this species
+     */
+    public Client getRandom(RandomGenerator random) {
         if (clients.isEmpty()) {
             return null;
         }
 
-        return clients.get(neat.getRandom().nextInt(clients.size()));
+        return clients.get(random.nextInt(clients.size()));
     }
 
     /**
@@ -86,8 +125,8 @@ public class Species {
      * @return true if the client can be added to this species
      */
     public boolean matches(Client client) {
-        double distance = Genome.distance(base.getGenome(), client.getGenome());
-        return distance < 4.0;  // TODO: This definitely shouldn't be a constant
+        Speciator speciator = neat.getSpeciator();
+        return speciator.distance(client.getGenome(), representative) < speciator.getThreshold();
     }
 
     /**
@@ -127,20 +166,26 @@ public class Species {
         generations++;
     }
 
-    public void reset() {
+    /**
+     * Chooses a new base client at random, then removes every client from
+     * this species so they can be sorted into species again. The species
+     * stays empty until clients are added back, and should {@link #goExtinct()
+     * go extinct} if no client matches it anymore.
+     *
+     * @param random The random stream to draw from.
+     */
+    public void reset(RandomGenerator random) {
         score = 0.0;
-        Client newBase = getRandom();
+        Client newBase = getRandom(random);
         if (newBase != null) {
             base = newBase;
         }
+        representative = base.getGenome().clone();
 
         for (Client client : clients) {
             client.setSpecies(null);
         }
         clients.clear();
-
-        // Force add the base client back into the species
-        add(base, true);
     }
 
     /**
@@ -186,8 +231,18 @@ public class Species {
      * @return The new genome created by breeding 2 random clients from this species.
      */
     public Genome breed() {
-        Client a = getRandom();
-        Client b = getRandom();
+        return breed(neat.getRandom());
+    }
+
+    /**
+     * Breeds 2 random clients from this species to create a new genome.
+     *
+     * @param random The random stream to draw from.
+     * @return The new genome created by breeding 2 random clients from this species.
+     */
+    public Genome breed(RandomGenerator random) {
+        Client a = getRandom(random);
+        Client b = getRandom(random);
 
         // Empty species cannot breed
         if (a == null || b == null) {
@@ -197,9 +252,9 @@ public class Species {
         // Try to choose the best client to be first, since we bias towards the
         // first genome in the crossover method sometimes.
         if (a.getScore() > b.getScore()) {
-            return Genome.crossOver(a.getGenome(), b.getGenome());
+            return Genome.crossOver(a.getGenome(), b.getGenome(), random);
         } else {
-            return Genome.crossOver(b.getGenome(), a.getGenome());
+            return Genome.crossOver(b.getGenome(), a.getGenome(), random);
         }
     }
 
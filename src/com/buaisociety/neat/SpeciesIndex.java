@@ -0,0 +1,265 @@
+package com.buaisociety.neat;
+
+import com.buaisociety.neat.genome.Genome;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An index over the representatives of a list of species, used to find the
+ * closest species to a genome without calculating the distance to every
+ * species.
+ *
+ * <p>The innovation numbers of every representative are counted into a few
+ * buckets when the index is built. 2 genomes with <code>a</code> and
+ * <code>b</code> connections in the same bucket have at least
+ * <code>|a - b|</code> connections that are in only 1 of them, so the bucket
+ * counts give a lower bound of the excess and disjoint connections, and so
+ * of the {@link Genome#distanceLowerBound(int, int, int) compatibility
+ * distance}. A search counts the genome's innovations once, then only
+ * calculates the distance to species whose bound is below both the
+ * threshold and the closest distance found so far.
+ *
+ * <p>The bound only needs the definition of the distance, not the triangle
+ * inequality, which {@link Genome#distance(Genome, Genome)} does not
+ * satisfy. Searches are exact: they always find the same species as
+ * comparing against every species. The bound ignores weights, so genomes
+ * that only differ in their weights are not pruned.
+ *
+ * <p>When {@link #isVerifying() verifying}, a sample of searches is also
+ * compared against every species, and any disagreement is counted as a
+ * {@link #getViolations() violation}. There should never be any.
+ *
+ * <p>An index is immutable once built, and may be searched by many threads at
+ * once.
+ */
+public class SpeciesIndex {
+
+    /**
+     * The number of buckets innovations are counted into. More buckets give
+     * tighter bounds, but cost more to compare.
+     */
+    private static final int BUCKETS = 64;
+
+    /**
+     * 1 in this many searches is verified, chosen by the genome's version.
+     */
+    private static final int VERIFY_INTERVAL = 64;
+
+    /**
+     * Buffers reused by every search on the same thread, so searches do not
+     * allocate.
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final Speciator speciator;
+    private final List<Species> species;
+    private final double threshold;
+    private final boolean verifying;
+
+    /**
+     * The bucket counts of species <code>s</code> start at
+     * <code>s * BUCKETS</code>.
+     */
+    private final int[] buckets;
+    private final int[] sizes;
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder calculated = new LongAdder();
+    private final LongAdder verified = new LongAdder();
+    private final LongAdder violations = new LongAdder();
+
+    /**
+     * Builds an index over the representatives of the given species.
+     *
+     * @param speciator The speciator used to calculate (cached) distances.
+     * @param species The species to index. Searches return indices into this list.
+     * @param threshold Only species closer than this are ever returned.
+     * @param verifying Whether to double-check a sample of searches.
+     */
+    public SpeciesIndex(Speciator speciator, List<Species> species, double threshold, boolean verifying) {
+        this.speciator = speciator;
+        this.species = List.copyOf(species);
+        this.threshold = threshold;
+        this.verifying = verifying;
+
+        int size = this.species.size();
+        this.buckets = new int[size * BUCKETS];
+        this.sizes = new int[size];
+        for (int s = 0; s < size; s++) {
+            Genome representative = this.species.get(s).getRepresentative();
+            sizes[s] = count(representative, buckets, s * BUCKETS);
+        }
+    }
+
+    public List<Species> getSpecies() {
+        return species;
+    }
+
+    public boolean isVerifying() {
+        return verifying;
+    }
+
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    /**
+     * Returns how many distances were calculated by searches, not counting
+     * verification. Without the index, this would be the number of searches
+     * times the number of species.
+     *
+     * @return The number of distances calculated.
+     */
+    public long getCalculated() {
+        return calculated.sum();
+    }
+
+    /**
+     * Returns how many searches were compared against every species, when
+     * verifying.
+     *
+     * @return The number of verified searches.
+     */
+    public long getVerified() {
+        return verified.sum();
+    }
+
+    /**
+     * Returns how many verified searches did not find the closest species.
+     * Since the bound is exact, this is only ever above 0 if the distance
+     * function and {@link Genome#distanceLowerBound(int, int, int)} disagree.
+     *
+     * @return The number of violations found.
+     */
+    public long getViolations() {
+        return violations.sum();
+    }
+
+    /**
+     * Finds the species whose representative is closest to the given genome,
+     * out of the species closer than the threshold. Ties go to the species
+     * that comes first in the list.
+     *
+     * @param genome The genome to find a species for.
+     * @return The index of the closest species, or -1 if no species is close enough.
+     */
+    public int findClosest(Genome genome) {
+        searches.increment();
+        int size = species.size();
+        Scratch scratch = SCRATCH.get();
+        double[] lower = scratch.lower(size);
+        int[] counts = scratch.counts;
+
+        // Step 1: Bound the distance to every species, using the bucket
+        // counts
+        Arrays.fill(counts, 0);
+        int genomeSize = count(genome, counts, 0);
+        int first = -1;
+        for (int s = 0; s < size; s++) {
+            int differing = 0;
+            int offset = s * BUCKETS;
+            for (int b = 0; b < BUCKETS; b++) {
+                differing += Math.abs(counts[b] - buckets[offset + b]);
+            }
+            lower[s] = Genome.distanceLowerBound(differing, genomeSize, sizes[s]);
+            if (lower[s] < threshold && (first == -1 || lower[s] < lower[first])) {
+                first = s;
+            }
+        }
+        if (first == -1) {
+            return -1;
+        }
+
+        // Step 2: Start with the species that is probably closest, so the
+        // bound prunes as much as possible
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        double distance = distance(genome, first);
+        if (isBetter(first, distance, best, bestDistance)) {
+            best = first;
+            bestDistance = distance;
+        }
+
+        // Step 3: Only check the species that could possibly beat it
+        for (int s = 0; s < size; s++) {
+            if (s == first || lower[s] >= threshold || lower[s] > bestDistance) {
+                continue;
+            }
+
+            distance = distance(genome, s);
+            if (isBetter(s, distance, best, bestDistance)) {
+                best = s;
+                bestDistance = distance;
+            }
+        }
+
+        if (verifying && genome.getVersion() % VERIFY_INTERVAL == 0) {
+            verify(genome, best);
+        }
+        return best;
+    }
+
+    /**
+     * Compares the result of a search against every species. Only counts
+     * disagreements, so results never depend on which searches are verified.
+     */
+    private void verify(Genome genome, int found) {
+        verified.increment();
+        int best = -1;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int s = 0; s < species.size(); s++) {
+            double distance = speciator.distance(genome, species.get(s).getRepresentative());
+            if (isBetter(s, distance, best, bestDistance)) {
+                best = s;
+                bestDistance = distance;
+            }
+        }
+        if (best != found) {
+            violations.increment();
+        }
+    }
+
+    private double distance(Genome genome, int s) {
+        calculated.increment();
+        return speciator.distance(genome, species.get(s).getRepresentative());
+    }
+
+    private boolean isBetter(int s, double distance, int best, double bestDistance) {
+        if (distance >= threshold) {
+            return false;
+        }
+        return distance < bestDistance || (distance == bestDistance && s < best);
+    }
+
+    /**
+     * Counts the innovations of the genome into <code>BUCKETS</code> buckets,
+     * starting at <code>offset</code>.
+     *
+     * @return The number of connections of the genome.
+     */
+    private static int count(Genome genome, int[] counts, int offset) {
+        int connections = genome.getConnectionCount();
+        for (int i = 0; i < connections; i++) {
+            counts[offset + (genome.getInnovation(i) & (BUCKETS - 1))]++;
+        }
+        return connections;
+    }
+
+    /**
+     * The buffers of 1 thread.
+     */
+    private static final class Scratch {
+
+        private final int[] counts = new int[BUCKETS];
+        private double[] lower = new double[0];
+
+        private double[] lower(int size) {
+            if (lower.length < size) {
+                lower = new double[Math.max(size, lower.length * 2)];
+            }
+            return lower;
+        }
+    }
+}
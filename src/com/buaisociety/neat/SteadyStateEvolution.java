@@ -0,0 +1,400 @@
+package com.buaisociety.neat;
+
+import com.buaisociety.neat.evaluation.FitnessCache;
+import com.buaisociety.neat.evaluation.FitnessFunction;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.metrics.Metrics;
+import com.buaisociety.neat.metrics.Timing;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.function.Predicate;
+
+/**
+ * Evolves a {@link Neat} population 1 client at a time, like rtNEAT, instead
+ * of 1 generation at a time. There is no barrier between evaluating and
+ * reproducing: whenever a client finishes its evaluation, the worst scored
+ * client is replaced by a mutated clone of 1 of the best scored clients, and
+ * the new genome is sent to evaluation right away. When evaluation times
+ * vary a lot, no thread sits idle waiting for the slowest client of a
+ * generation.
+ *
+ * <p>Selection matches {@link Neat#evolve()}: parents are chosen at random
+ * from the best {@link #getParentFraction()} of the scored clients. Clients
+ * that are being evaluated are never replaced, and are only chosen as parents
+ * once they have a score.
+ *
+ * <p>Every time as many clients have been replaced as there are in the
+ * population, the generation number goes up, clients are sorted into species
+ * again, and the {@link Metrics metrics} of the "generation" are published.
+ * Replacements happen in the order evaluations finish, so unlike
+ * {@link Neat#evolve()}, runs are not reproducible from their seed, and they
+ * are not recorded in the {@link Journal}.
+ *
+ * <p>Evaluations run on the threads of the population's
+ * {@link Neat#getEvaluator() evaluator}. Everything else runs on the thread
+ * that calls {@link #run}.
+ */
+public class SteadyStateEvolution {
+
+    private static final Comparator<Client> BY_SCORE = Comparator.comparingDouble(Client::getScore).thenComparingInt(Client::getId);
+
+    private final Neat neat;
+    private int maxInFlight;
+    private double parentFraction = 0.1;
+    private int minimumAge;
+    private long replacements = 0;
+
+    public SteadyStateEvolution(Neat neat) {
+        this.neat = neat;
+        this.maxInFlight = neat.getEvaluator().getThreads();
+        this.minimumAge = neat.getClients().size() / 2;
+    }
+
+    public Neat getNeat() {
+        return neat;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets how many clients may be evaluated at once. Defaults to the number
+     * of threads of the evaluator. Fewer clients in flight means parents are
+     * chosen from fresher scores; more means less time waiting on slow
+     * evaluations.
+     *
+     * @param maxInFlight The number of concurrent evaluations.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, got " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public double getParentFraction() {
+        return parentFraction;
+    }
+
+    /**
+     * Sets the fraction of scored clients that parents are chosen from.
+     * Defaults to 0.1, the same as the survivors of {@link Neat#evolve()}.
+     *
+     * @param parentFraction The fraction, above 0 and at most 1.
+     */
+    public void setParentFraction(double parentFraction) {
+        if (!(parentFraction > 0.0 && parentFraction <= 1.0)) {
+            throw new IllegalArgumentException("parentFraction must be above 0 and at most 1, got " + parentFraction);
+        }
+        this.parentFraction = parentFraction;
+    }
+
+    public int getMinimumAge() {
+        return minimumAge;
+    }
+
+    /**
+     * Sets how many replacements a new client survives before it may be
+     * replaced itself, unless every other client is younger. Like rtNEAT's
+     * minimum lifetime, this gives new structure a chance to be chosen as a
+     * parent before it is judged. Defaults to half the population.
+     *
+     * @param minimumAge The number of replacements.
+     */
+    public void setMinimumAge(int minimumAge) {
+        if (minimumAge < 0) {
+            throw new IllegalArgumentException("minimumAge must be at least 0, got " + minimumAge);
+        }
+        this.minimumAge = minimumAge;
+    }
+
+    /**
+     * Returns the number of clients replaced so far, over every call to
+     * {@link #run}.
+     *
+     * @return The number of replacements.
+     */
+    public long getReplacements() {
+        return replacements;
+    }
+
+    /**
+     * Scores every client, then keeps replacing clients until the given
+     * number of replacements were made.
+     *
+     * @param fitness The fitness function to score each client with.
+     * @param replacements The number of clients to replace.
+     * @return The best client.
+     * @see #run(FitnessFunction, long, Predicate)
+     */
+    public Client run(FitnessFunction fitness, long replacements) {
+        return run(fitness, replacements, client -> false);
+    }
+
+    /**
+     * Scores every client, then keeps replacing clients until the given
+     * number of replacements were made, or until a client reaches the goal.
+     * Evaluations that are still running when the run stops are waited for,
+     * so every client has a score when this returns.
+     *
+     * @param fitness The fitness function to score each client with.
+     * @param replacements The maximum number of clients to replace.
+     * @param goal Stops the run when a newly scored client passes it.
+     * @return The first client that passed the goal, or the best client if
+     * none did.
+     * @throws IllegalStateException If the fitness function throws for any
+     *                               client, or the thread is interrupted.
+     */
+    public Client run(FitnessFunction fitness, long replacements, Predicate<Client> goal) {
+        List<Client> clients = neat.getClients();
+        if (clients.size() < 2) {
+            throw new IllegalStateException("Steady-state evolution needs at least 2 clients, got " + clients.size());
+        }
+
+        FitnessCache cache = neat.getFitnessCache();
+        CompletionService<Scored> completions = new ExecutorCompletionService<>(neat.getEvaluator().getExecutor());
+        Population population = new Population(clients, new SplittableRandom(neat.getSeed() ^ this.replacements));
+
+        Deque<Integer> unscored = new ArrayDeque<>();
+        for (int i = 0; i < clients.size(); i++) {
+            unscored.add(i);
+        }
+        long remaining = replacements;
+        int inFlight = 0;
+        Client found = null;
+        RuntimeException failure = null;
+
+        while (true) {
+            // Step 1: Keep the evaluator busy. Clients without a score go
+            // first, then new offspring.
+            while (failure == null && found == null && inFlight < maxInFlight) {
+                Integer next = unscored.poll();
+                if (next == null) {
+                    if (remaining == 0 || population.idle < 2) {
+                        break;
+                    }
+                    next = population.replace();
+                    remaining--;
+                }
+
+                int index = next;
+                Client client = clients.get(index);
+                population.busy[index] = true;
+
+                // Versions are assigned lazily, so the version is read here
+                // instead of racing with speciation on the evaluator thread
+                long version = client.getGenome().getVersion();
+                completions.submit(() -> score(index, client, version, fitness, cache));
+                inFlight++;
+            }
+
+            if (inFlight == 0) {
+                break;
+            }
+
+            // Step 2: Wait for the next evaluation to finish
+            try {
+                Scored scored = completions.take().get();
+                Client client = clients.get(scored.index);
+                client.setScore(scored.score);
+                population.busy[scored.index] = false;
+                population.scored[scored.index] = true;
+                population.idle++;
+                if (found == null && failure == null && goal.test(client)) {
+                    found = client;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while evolving generation " + neat.getGenerationNumber(), e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = new IllegalStateException("Failed to evaluate a client in generation " + neat.getGenerationNumber(), e.getCause());
+                }
+            }
+            inFlight--;
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return found != null ? found : clients.stream().max(BY_SCORE).orElseThrow();
+    }
+
+    /**
+     * What the coordinator knows about each client during a run, by index.
+     */
+    private final class Population {
+
+        private final List<Client> clients;
+        private final SplittableRandom random;
+        private final boolean[] busy;
+        private final boolean[] scored;
+        private final long[] born;
+        private int idle = 0;
+
+        private Population(List<Client> clients, SplittableRandom random) {
+            this.clients = clients;
+            this.random = random;
+            this.busy = new boolean[clients.size()];
+            this.scored = new boolean[clients.size()];
+            this.born = new long[clients.size()];
+            Arrays.fill(born, Long.MIN_VALUE / 2);
+        }
+
+        /**
+         * Replaces the client with the worst shared score by a mutated clone
+         * of a parent, and ends the generation if enough clients were
+         * replaced.
+         *
+         * @return The index of the replaced client, which needs a score.
+         */
+        private int replace() {
+            Metrics metrics = neat.getMetrics();
+            long start = metrics.start();
+
+            // Step 1: The victim has the lowest score divided by the size of
+            // its species, so small species are protected like in NEAT's
+            // fitness sharing. Clients younger than the minimum age only
+            // compete when nobody else can be replaced.
+            int victim = -1;
+            boolean victimOld = false;
+            double victimScore = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < clients.size(); i++) {
+                if (busy[i] || !scored[i]) {
+                    continue;
+                }
+
+                Client client = clients.get(i);
+                boolean old = replacements - born[i] >= minimumAge;
+                double shared = client.getScore() / Math.max(1, speciesSize(client));
+                if ((old && !victimOld) || (old == victimOld && shared < victimScore)) {
+                    victim = i;
+                    victimOld = old;
+                    victimScore = shared;
+                }
+            }
+
+            // Step 2: Choose a species by the mean score of its scored
+            // clients, then a parent among the best of that species
+            Client victimClient = clients.get(victim);
+            scored[victim] = false;
+            idle--;
+            Client parent = chooseParent();
+
+            // Step 3: Breed
+            Genome child = parent.getGenome().clone();
+            child.mutate(random.split());
+            if (victimClient.getSpecies() != null) {
+                victimClient.getSpecies().getClients().remove(victimClient);
+                victimClient.setSpecies(null);
+            }
+            victimClient.setGenome(child);
+            if (parent.getSpecies() != null) {
+                parent.getSpecies().add(victimClient, true);
+            }
+            metrics.stop(Timing.SELECTION, start);
+
+            born[victim] = replacements;
+            replacements++;
+            if (replacements % clients.size() == 0) {
+                endGeneration();
+            }
+            return victim;
+        }
+
+        private Client chooseParent() {
+            // Step 1: Sum the scores of the scored clients of every species
+            Map<Species, List<Client>> candidates = new LinkedHashMap<>();
+            for (int i = 0; i < clients.size(); i++) {
+                if (scored[i] && !busy[i]) {
+                    Client client = clients.get(i);
+                    candidates.computeIfAbsent(client.getSpecies(), species -> new ArrayList<>()).add(client);
+                }
+            }
+
+            double total = 0.0;
+            for (List<Client> members : candidates.values()) {
+                total += meanScore(members);
+            }
+
+            // Step 2: Roulette over the species
+            double ball = random.nextDouble(total);
+            List<Client> members = null;
+            for (List<Client> candidate : candidates.values()) {
+                members = candidate;
+                ball -= meanScore(candidate);
+                if (ball < 0.0) {
+                    break;
+                }
+            }
+
+            // Step 3: A random client among the best of the species
+            members.sort(BY_SCORE.reversed());
+            int parents = Math.max(1, (int) Math.ceil(parentFraction * members.size()));
+            return members.get(random.nextInt(parents));
+        }
+
+        private static double meanScore(List<Client> members) {
+            double sum = 0.0;
+            for (Client client : members) {
+                sum += client.getScore();
+            }
+
+            // Same floor as Species#evaluate, so every species can be chosen
+            return Math.max(0.0001, sum / members.size());
+        }
+
+        private static int speciesSize(Client client) {
+            return client.getSpecies() == null ? 1 : client.getSpecies().getClients().size();
+        }
+    }
+
+    /**
+     * Clients that are being evaluated keep their species and are still
+     * sorted. Their genomes are not changed until they are scored, and their
+     * versions were already assigned when they were submitted, so sorting
+     * only reads them.
+     */
+    private void endGeneration() {
+        neat.setGenerationNumber(neat.getGenerationNumber() + 1);
+        neat.sortIntoSpecies();
+        if (neat.getFitnessCache() != null) {
+            neat.getFitnessCache().advance();
+        }
+        neat.getMetrics().endGeneration();
+    }
+
+    /**
+     * Runs on an evaluator thread. Only reads the client's genome, which
+     * nothing else changes until the score is handed back.
+     *
+     * @param version The version of the genome, read before submitting.
+     */
+    private static Scored score(int index, Client client, long version, FitnessFunction fitness, FitnessCache cache) {
+        Double cached = cache == null ? null : cache.get(version);
+        if (cached != null) {
+            return new Scored(index, cached);
+        }
+
+        double score = fitness.evaluate(client);
+        if (cache != null) {
+            cache.put(version, score);
+        }
+        return new Scored(index, score);
+    }
+
+    private record Scored(int index, double score) {
+    }
+}
@@ -0,0 +1,216 @@
+package com.buaisociety.neat.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+/**
+ * A small benchmark harness. Each benchmark is run for a few warmup
+ * iterations (so the JIT can compile it), then for a few measured iterations.
+ * Every iteration runs the workload over and over for a fixed amount of time.
+ *
+ * <p>Along with the time per operation, the runner reports how many bytes
+ * were allocated per operation, summed over every thread in the JVM. This is
+ * the same number as JMH's <code>gc.alloc.rate.norm</code> from
+ * <code>-prof gc</code>, and is the easiest way to spot a change that starts
+ * allocating in a hot path.
+ */
+public final class BenchmarkRunner {
+
+    /**
+     * The code being benchmarked. The returned value is consumed, so the JIT
+     * cannot remove the work that created it.
+     */
+    @FunctionalInterface
+    public interface Workload {
+        Object run();
+    }
+
+    /**
+     * Prepares the state for 1 operation, without being measured.
+     */
+    @FunctionalInterface
+    public interface Setup {
+        void run() throws Exception;
+    }
+
+    /**
+     * Written to after every operation, so results are never dead code.
+     */
+    private static volatile Object sink;
+
+    private final int warmupIterations;
+    private final int measurementIterations;
+    private final long iterationNanos;
+
+    public BenchmarkRunner(int warmupIterations, int measurementIterations, long iterationMillis) {
+        this.warmupIterations = warmupIterations;
+        this.measurementIterations = measurementIterations;
+        this.iterationNanos = iterationMillis * 1_000_000;
+    }
+
+    /**
+     * Runs the workload, then prints and returns the result.
+     *
+     * @param name The name to print the result under.
+     * @param workload The code to benchmark.
+     * @return The measured result.
+     */
+    public Result run(String name, Workload workload) {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(workload);
+        }
+
+        double[] nanosPerOp = new double[measurementIterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            long bytesBefore = allocatedBytes();
+            long start = System.nanoTime();
+            long ops = iteration(workload);
+            long elapsed = System.nanoTime() - start;
+            totalBytes += allocatedBytes() - bytesBefore;
+            totalOps += ops;
+            nanosPerOp[i] = (double) elapsed / ops;
+        }
+
+        Result result = new Result(name, nanosPerOp, (double) totalBytes / totalOps);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Runs the workload, calling <code>setup</code> before every operation,
+     * then prints and returns the result. Only the workload is timed and
+     * counted towards the allocations, like a JMH benchmark with an
+     * invocation level setup. Every operation is timed on its own, so this is
+     * only accurate for workloads that take well over a microsecond.
+     *
+     * @param name The name to print the result under.
+     * @param setup The code to run before every operation.
+     * @param workload The code to benchmark.
+     * @return The measured result.
+     */
+    public Result run(String name, Setup setup, Workload workload) {
+        for (int i = 0; i < warmupIterations; i++) {
+            iteration(setup, workload, false);
+        }
+
+        double[] nanosPerOp = new double[measurementIterations];
+        long totalOps = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < measurementIterations; i++) {
+            long[] measured = iteration(setup, workload, true);
+            totalOps += measured[0];
+            nanosPerOp[i] = (double) measured[1] / measured[0];
+            totalBytes += measured[2];
+        }
+
+        Result result = new Result(name, nanosPerOp, (double) totalBytes / totalOps);
+        System.out.println(result);
+        return result;
+    }
+
+    /**
+     * Runs operations until the iteration time is up, counting the setup.
+     *
+     * @return The number of operations, and the nanoseconds and bytes spent
+     *         in the workload.
+     */
+    private long[] iteration(Setup setup, Workload workload, boolean measureAllocations) {
+        long end = System.nanoTime() + iterationNanos;
+        long ops = 0;
+        long nanos = 0;
+        long bytes = 0;
+        do {
+            try {
+                setup.run();
+            } catch (Exception e) {
+                throw new IllegalStateException("Benchmark setup failed", e);
+            }
+
+            long bytesBefore = measureAllocations ? allocatedBytes() : 0;
+            long start = System.nanoTime();
+            sink = workload.run();
+            nanos += System.nanoTime() - start;
+            if (measureAllocations) {
+                bytes += allocatedBytes() - bytesBefore;
+            }
+            ops++;
+        } while (System.nanoTime() < end);
+        return new long[]{ops, nanos, bytes};
+    }
+
+    private long iteration(Workload workload) {
+        long end = System.nanoTime() + iterationNanos;
+        long ops = 0;
+        do {
+            sink = workload.run();
+            ops++;
+        } while (System.nanoTime() < end);
+        return ops;
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by every live thread.
+     * Threads that died during an iteration are not counted, so workloads
+     * should use long-lived thread pools.
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * The measurements of 1 benchmark.
+     */
+    public static class Result {
+
+        private final String name;
+        private final double[] nanosPerOp;
+        private final double bytesPerOp;
+
+        public Result(String name, double[] nanosPerOp, double bytesPerOp) {
+            this.name = name;
+            this.nanosPerOp = nanosPerOp;
+            this.bytesPerOp = bytesPerOp;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getMeanNanosPerOp() {
+            return Arrays.stream(nanosPerOp).average().orElse(Double.NaN);
+        }
+
+        /**
+         * Returns the standard deviation between the measured iterations.
+         *
+         * @return The error of the mean, in nanoseconds per operation.
+         */
+        public double getErrorNanosPerOp() {
+            double mean = getMeanNanosPerOp();
+            double sum = 0.0;
+            for (double value : nanosPerOp) {
+                sum += (value - mean) * (value - mean);
+            }
+            return Math.sqrt(sum / Math.max(1, nanosPerOp.length - 1));
+        }
+
+        public double getBytesPerOp() {
+            return bytesPerOp;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%-48s %14.1f +- %10.1f ns/op %14.1f B/op",
+                name, getMeanNanosPerOp(), getErrorNanosPerOp(), bytesPerOp);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package com.buaisociety.neat.benchmark;
+
+import com.buaisociety.neat.Checkpoint;
+import com.buaisociety.neat.Client;
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.Precision;
+import com.buaisociety.neat.calculator.Calculator;
+import com.buaisociety.neat.genome.Activation;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.MutateAddConnection;
+import com.buaisociety.neat.genome.MutateAddNode;
+import com.buaisociety.neat.genome.MutateBiases;
+import com.buaisociety.neat.genome.MutateWeights;
+import com.buaisociety.neat.genome.Mutation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.SplittableRandom;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks every hot path of the library, so changes can be checked for
+ * performance regressions before they are merged.
+ *
+ * <p>Usage: <code>BenchmarkSuite [regex]</code>. Only benchmarks whose name
+ * contains a match for the regex are run. The number of iterations can be
+ * changed with the <code>bench.warmup</code>, <code>bench.iterations</code>
+ * and <code>bench.millis</code> system properties, and the precision of the
+ * genomes and calculators with <code>bench.precision</code> (<code>DOUBLE</code>
+ * or <code>FLOAT</code>). Set <code>bench.approximate</code> to benchmark the
+ * approximated activation functions. Start the JVM with
+ * <code>--add-modules jdk.incubator.vector</code> to benchmark the vectorized
+ * calculator.
+ *
+ * <p>Benchmarks are named <code>group.case[size]</code>, where the genome
+ * sizes are grown by applying every mutation to a minimal genome
+ * {@link #SIZES} times.
+ */
+public class BenchmarkSuite {
+
+    private static final int INPUTS = 8;
+    private static final int OUTPUTS = 2;
+
+    /**
+     * The number of mutation rounds used to grow small, medium and large genomes.
+     */
+    private static final int[] SIZES = {0, 1000, 8000};
+    private static final String[] SIZE_NAMES = {"small", "medium", "large"};
+
+    private static final int[] POPULATIONS = {150, 1_000, 10_000};
+
+    private static final Precision PRECISION = Precision.valueOf(System.getProperty("bench.precision", "DOUBLE"));
+
+    public static void main(String[] args) {
+        Pattern filter = Pattern.compile(args.length > 0 ? args[0] : "");
+        BenchmarkRunner runner = new BenchmarkRunner(
+            Integer.getInteger("bench.warmup", 3),
+            Integer.getInteger("bench.iterations", 5),
+            Long.getLong("bench.millis", 1000L)
+        );
+
+        Activation.setApproximate(Boolean.getBoolean("bench.approximate"));
+        System.out.println("# vectorized calculator: " + Calculator.isVectorized() + ", precision: " + PRECISION
+            + ", approximate activations: " + Activation.isApproximate());
+        for (int s = 0; s < SIZES.length; s++) {
+            String size = "[" + SIZE_NAMES[s] + "]";
+            Neat neat = new Neat(INPUTS, OUTPUTS, 1, PRECISION);
+            Genome a = grow(neat, SIZES[s]);
+            Genome b = grow(neat, SIZES[s]);
+            System.out.println("# " + SIZE_NAMES[s] + " genomes: " + a.getNodeCount() + " nodes, " + a.getConnectionCount() + " connections");
+
+            // Calculator
+            Calculator calculator = new Calculator(a);
+            double[] input = new double[INPUTS];
+            double[] output = new double[OUTPUTS];
+            int batchSize = 256;
+            double[] batchInput = new double[batchSize * INPUTS];
+            double[] batchOutput = new double[batchSize * OUTPUTS];
+            bench(runner, filter, "calculator.construct" + size, () -> new Calculator(a));
+            bench(runner, filter, "calculator.constructUncached" + size, () -> {
+                neat.getTopologyCache().clear();
+                return new Calculator(a);
+            });
+            bench(runner, filter, "calculator.predict" + size, () -> {
+                calculator.predict(input, output);
+                return output;
+            });
+            Calculator compiled = new Calculator(a);
+            compiled.compile();
+            bench(runner, filter, "calculator.predictCompiled" + size, () -> {
+                compiled.predict(input, output);
+                return output;
+            });
+            bench(runner, filter, "calculator.predictBatch256" + size, () -> {
+                calculator.predictBatch(batchInput, batchSize, batchOutput);
+                return batchOutput;
+            });
+
+            // Genome
+            SplittableRandom random = new SplittableRandom(1);
+            bench(runner, filter, "genome.clone" + size, a::clone);
+            bench(runner, filter, "genome.distance" + size, () -> Genome.distance(a, b));
+            bench(runner, filter, "genome.crossOver" + size, () -> Genome.crossOver(a, b, random));
+
+            // Mutations are applied to a fresh clone each time, so the genome
+            // does not keep growing. Compare against genome.clone.
+            Mutation[] mutations = {new MutateAddConnection(), new MutateAddNode(), new MutateWeights(), new MutateBiases()};
+            for (Mutation mutation : mutations) {
+                bench(runner, filter, "mutation." + mutation.getClass().getSimpleName() + size, () -> {
+                    Genome clone = a.clone();
+                    mutation.mutate(clone, random);
+                    return clone;
+                });
+            }
+
+            // Neat.evolve, including speciation, on a population of clones.
+            // The evaluated population is saved once, and loaded again before
+            // every operation, so every evolve starts from the same
+            // population, registry and random streams.
+            for (int population : POPULATIONS) {
+                String name = "neat.evolve[" + population + "]" + size;
+                if (!filter.matcher(name).find()) {
+                    continue;
+                }
+
+                Neat template = new Neat(INPUTS, OUTPUTS, population, PRECISION);
+                Genome genome = grow(template, SIZES[s]);
+                for (Client client : template.getClients()) {
+                    client.setGenome(genome.clone());
+                }
+                template.evaluate(client -> client.getGenome().getConnectionCount() + client.getId() * 1e-6);
+
+                Path checkpoint = save(template);
+                Neat[] evolving = new Neat[1];
+                runner.run(name, () -> evolving[0] = Checkpoint.load(checkpoint), () -> {
+                    evolving[0].evolve();
+                    return evolving[0];
+                });
+            }
+        }
+    }
+
+    private static void bench(BenchmarkRunner runner, Pattern filter, String name, BenchmarkRunner.Workload workload) {
+        if (filter.matcher(name).find()) {
+            runner.run(name, workload);
+        }
+    }
+
+    /**
+     * Saves the population to a temporary checkpoint, which is deleted when
+     * the JVM exits.
+     */
+    private static Path save(Neat neat) {
+        try {
+            Path path = Files.createTempFile("neat-benchmark", ".checkpoint");
+            path.toFile().deleteOnExit();
+            Checkpoint.save(neat, path);
+            return path;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Grows a genome by mutating a minimal genome the given number of times.
+     */
+    private static Genome grow(Neat neat, int mutations) {
+        Genome genome = neat.newGenome(false);
+        for (int i = 0; i < mutations; i++) {
+            genome.mutate();
+        }
+        return genome;
+    }
+}
@@ -0,0 +1,190 @@
+package com.buaisociety.neat.benchmark;
+
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.calculator.Calculator;
+import com.buaisociety.neat.calculator.Connection;
+import com.buaisociety.neat.calculator.Node;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.NodeGene;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the compiled {@link Calculator} against the original graph of
+ * {@link Node} and {@link Connection} objects. Both are built from the same
+ * {@link Genome}, checked to give the same outputs, then timed.
+ */
+public class CalculatorBenchmark {
+
+    public static void main(String[] args) {
+        int inputs = 8;
+        int outputs = 2;
+        int mutations = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int predictions = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        // Grow a reasonably large genome by mutating it over and over
+        Neat neat = new Neat(inputs, outputs, 1);
+        Genome genome = neat.getClients().get(0).getGenome();
+        for (int i = 0; i < mutations; i++) {
+            genome.mutate();
+        }
+
+        System.out.println("Nodes: " + genome.getNodeCount());
+        System.out.println("Connections: " + genome.getConnectionCount());
+
+        ObjectGraph graph = new ObjectGraph(genome);
+        Calculator calculator = new Calculator(genome);
+
+        // Make sure both give the exact same outputs before timing anything
+        double[] input = new double[inputs];
+        double[] output = new double[outputs];
+        for (int i = 0; i < 1000; i++) {
+            for (int j = 0; j < inputs; j++) {
+                input[j] = neat.getRandom().nextDouble();
+            }
+
+            double[] expected = graph.predict(input);
+            calculator.predict(input, output);
+            for (int j = 0; j < outputs; j++) {
+                if (Double.compare(expected[j], output[j]) != 0) {
+                    throw new IllegalStateException("Output " + j + " differs: " + expected[j] + " != " + output[j]);
+                }
+            }
+        }
+
+        // The batch path must also match, sample for sample. The vectorized
+        // exp may be off in the last bit.
+        double tolerance = Calculator.isVectorized() ? 1e-15 : 0.0;
+        System.out.println("Vectorized: " + Calculator.isVectorized());
+        int batchSize = 1000;
+        double[] batchInputs = new double[batchSize * inputs];
+        double[] batchOutputs = new double[batchSize * outputs];
+        for (int i = 0; i < batchInputs.length; i++) {
+            batchInputs[i] = neat.getRandom().nextDouble();
+        }
+        calculator.predictBatch(batchInputs, batchSize, batchOutputs);
+        for (int s = 0; s < batchSize; s++) {
+            System.arraycopy(batchInputs, s * inputs, input, 0, inputs);
+            calculator.predict(input, output);
+            for (int j = 0; j < outputs; j++) {
+                if (Math.abs(batchOutputs[s * outputs + j] - output[j]) > tolerance) {
+                    throw new IllegalStateException("Batch output " + j + " of sample " + s + " differs");
+                }
+            }
+        }
+
+        // Run each a few times, so the JIT has a chance to warm up
+        for (int round = 0; round < 5; round++) {
+            long graphTime = time(() -> {
+                double sink = 0.0;
+                for (int i = 0; i < predictions; i++) {
+                    input[i % inputs] = i;
+                    sink += graph.predict(input)[0];
+                }
+                return sink;
+            });
+
+            long calculatorTime = time(() -> {
+                double sink = 0.0;
+                for (int i = 0; i < predictions; i++) {
+                    input[i % inputs] = i;
+                    calculator.predict(input, output);
+                    sink += output[0];
+                }
+                return sink;
+            });
+
+            long batchTime = time(() -> {
+                double sink = 0.0;
+                for (int i = 0; i < predictions; i += batchSize) {
+                    batchInputs[i % batchInputs.length] = i;
+                    calculator.predictBatch(batchInputs, batchSize, batchOutputs);
+                    sink += batchOutputs[0];
+                }
+                return sink;
+            });
+
+            System.out.println("Round " + round);
+            System.out.println("  Object graph: " + graphTime / 1_000_000 + " ms");
+            System.out.println("  Compiled:     " + calculatorTime / 1_000_000 + " ms");
+            System.out.println("  Batched:      " + batchTime / 1_000_000 + " ms");
+            System.out.printf("  Speedup:      %.2fx (batched %.2fx)%n", (double) graphTime / calculatorTime, (double) graphTime / batchTime);
+        }
+    }
+
+    private static long time(Workload workload) {
+        long start = System.nanoTime();
+        double sink = workload.run();
+        long end = System.nanoTime();
+
+        // Use the result, so the JIT cannot remove the loop
+        if (sink == Double.MIN_VALUE) {
+            System.out.println(sink);
+        }
+        return end - start;
+    }
+
+    private interface Workload {
+        double run();
+    }
+
+    /**
+     * The original {@link Node}/{@link Connection} implementation of the
+     * calculator, kept as the reference to compare against.
+     */
+    private static class ObjectGraph {
+
+        private final List<Node> inputNodes = new ArrayList<>();
+        private final List<Node> hiddenNodes = new ArrayList<>();
+        private final List<Node> outputNodes = new ArrayList<>();
+
+        ObjectGraph(Genome genome) {
+            Map<Integer, Node> nodeCache = new HashMap<>();
+            for (int i = 0; i < genome.getNodeCount(); i++) {
+                NodeGene nodeGene = genome.getNeat().getRegistry().getNode(genome.getNodeId(i));
+                Node node = new Node(nodeGene.getX());
+                node.setBias(genome.getBias(i));
+                nodeCache.put(nodeGene.getId(), node);
+
+                if (nodeGene.isInput()) {
+                    inputNodes.add(node);
+                } else if (nodeGene.isOutput()) {
+                    outputNodes.add(node);
+                } else {
+                    hiddenNodes.add(node);
+                }
+            }
+
+            hiddenNodes.sort(Comparator.comparingDouble(Node::getX));
+
+            for (int i = 0; i < genome.getConnectionCount(); i++) {
+                Node from = nodeCache.get(genome.getFrom(i));
+                Node to = nodeCache.get(genome.getTo(i));
+                Connection connection = from.connect(to);
+                connection.setWeight(genome.getWeight(i));
+            }
+        }
+
+        double[] predict(double[] inputValues) {
+            for (int i = 0; i < inputValues.length; i++) {
+                inputNodes.get(i).setValue(inputValues[i]);
+            }
+
+            for (Node hidden : hiddenNodes) {
+                hidden.predict();
+            }
+
+            double[] outputValues = new double[outputNodes.size()];
+            for (int i = 0; i < outputValues.length; i++) {
+                outputNodes.get(i).predict();
+                outputValues[i] = outputNodes.get(i).getValue();
+            }
+
+            return outputValues;
+        }
+    }
+}
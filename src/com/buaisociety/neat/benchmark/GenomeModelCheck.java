@@ -0,0 +1,191 @@
+package com.buaisociety.neat.benchmark;
+
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.genome.Activation;
+import com.buaisociety.neat.genome.Genome;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Checks that copy-on-write {@link Genome} clones behave exactly like deep
+ * copies. A pool of genomes is cloned and changed at random, next to a
+ * simple model of each genome built from maps, and every genome is compared
+ * against its model along the way. Throws as soon as a genome and its model
+ * disagree.
+ */
+public class GenomeModelCheck {
+
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+        int steps = args.length > 1 ? Integer.parseInt(args[1]) : 200_000;
+
+        Neat neat = new Neat(2, 1, 1);
+        Random random = new Random(seed);
+        List<Genome> genomes = new ArrayList<>();
+        List<Model> models = new ArrayList<>();
+        genomes.add(new Genome(neat));
+        models.add(new Model());
+
+        // Step 1: Clone and change random genomes
+        for (int step = 0; step < steps; step++) {
+            int k = random.nextInt(genomes.size());
+            Genome genome = genomes.get(k);
+            Model model = models.get(k);
+
+            int operation = random.nextInt(12);
+            if (operation == 0 && genomes.size() < 50) {
+                genomes.add(genome.clone());
+                models.add(model.copy());
+            } else if (operation == 1) {
+                int innovation = random.nextInt(3000);
+                if (!model.connections.containsKey(innovation)) {
+                    double weight = random.nextDouble();
+                    boolean enabled = random.nextBoolean();
+                    genome.addConnection(innovation, 1, 2, weight, enabled);
+                    model.connections.put(innovation, new Connection(weight, enabled));
+                }
+            } else if (operation == 2) {
+                int id = random.nextInt(3000);
+                if (!model.nodes.containsKey(id)) {
+                    double bias = random.nextDouble();
+                    genome.addNode(id, bias);
+                    model.nodes.put(id, new Node(bias, Activation.SIGMOID));
+                }
+            } else if (operation < 6 && genome.getConnectionCount() > 0) {
+                int index = random.nextInt(genome.getConnectionCount());
+                Connection connection = model.connections.get(genome.getInnovation(index));
+                connection.weight = random.nextDouble();
+                genome.setWeight(index, connection.weight);
+                if (random.nextBoolean()) {
+                    connection.enabled = random.nextBoolean();
+                    genome.setEnabled(index, connection.enabled);
+                }
+            } else if (operation < 9 && genome.getNodeCount() > 0) {
+                int index = random.nextInt(genome.getNodeCount());
+                Node node = model.nodes.get(genome.getNodeId(index));
+                node.bias = random.nextDouble();
+                genome.setBias(index, node.bias);
+                if (random.nextBoolean()) {
+                    node.activation = Activation.of(random.nextInt(Activation.values().length));
+                    genome.setActivation(index, node.activation);
+                }
+            } else if (operation == 9) {
+                genome.share();
+            } else if (operation == 10) {
+                cloneInParallel(genome, model, random.nextLong());
+            } else if (genomes.size() > 5) {
+                genomes.remove(k);
+                models.remove(k);
+            }
+
+            if (step % 1000 == 0) {
+                for (int i = 0; i < genomes.size(); i++) {
+                    models.get(i).check(genomes.get(i));
+                }
+            }
+        }
+
+        // Step 2: Everything must still match at the end
+        for (int i = 0; i < genomes.size(); i++) {
+            models.get(i).check(genomes.get(i));
+        }
+        System.out.println("OK: " + steps + " steps, " + genomes.size() + " genomes");
+    }
+
+    /**
+     * Shares a genome, then clones and changes it from many threads at once,
+     * like {@link Neat#evolve()} does with its survivors. The parent must
+     * not change, and every clone must end up with its own changes.
+     */
+    private static void cloneInParallel(Genome parent, Model model, long seed) {
+        parent.share();
+        int count = 16;
+        Genome[] clones = new Genome[count];
+        IntStream.range(0, count).parallel().forEach(i -> {
+            Genome clone = parent.clone();
+            for (int j = 0; j < clone.getConnectionCount(); j++) {
+                clone.setWeight(j, seed + i);
+            }
+            clones[i] = clone;
+        });
+
+        model.check(parent);
+        for (int i = 0; i < count; i++) {
+            Model expected = model.copy();
+            for (Connection connection : expected.connections.values()) {
+                connection.weight = seed + i;
+            }
+            expected.check(clones[i]);
+        }
+    }
+
+    private static final class Connection {
+
+        private double weight;
+        private boolean enabled;
+
+        private Connection(double weight, boolean enabled) {
+            this.weight = weight;
+            this.enabled = enabled;
+        }
+    }
+
+    private static final class Node {
+
+        private double bias;
+        private Activation activation;
+
+        private Node(double bias, Activation activation) {
+            this.bias = bias;
+            this.activation = activation;
+        }
+    }
+
+    /**
+     * What a genome should hold, by innovation number and node id.
+     */
+    private static final class Model {
+
+        private final TreeMap<Integer, Connection> connections = new TreeMap<>();
+        private final TreeMap<Integer, Node> nodes = new TreeMap<>();
+
+        private Model copy() {
+            Model copy = new Model();
+            connections.forEach((innovation, c) -> copy.connections.put(innovation, new Connection(c.weight, c.enabled)));
+            nodes.forEach((id, n) -> copy.nodes.put(id, new Node(n.bias, n.activation)));
+            return copy;
+        }
+
+        private void check(Genome genome) {
+            if (genome.getConnectionCount() != connections.size() || genome.getNodeCount() != nodes.size()) {
+                throw new IllegalStateException("Expected " + connections.size() + " connections and " + nodes.size()
+                    + " nodes, got " + genome.getConnectionCount() + " and " + genome.getNodeCount());
+            }
+
+            int i = 0;
+            for (Map.Entry<Integer, Connection> entry : connections.entrySet()) {
+                Connection connection = entry.getValue();
+                if (genome.getInnovation(i) != entry.getKey() || Double.compare(genome.getWeight(i), connection.weight) != 0
+                    || genome.isEnabled(i) != connection.enabled) {
+                    throw new IllegalStateException("Connection " + i + " differs from innovation " + entry.getKey());
+                }
+                i++;
+            }
+
+            i = 0;
+            for (Map.Entry<Integer, Node> entry : nodes.entrySet()) {
+                Node node = entry.getValue();
+                if (genome.getNodeId(i) != entry.getKey() || Double.compare(genome.getBias(i), node.bias) != 0
+                    || genome.getActivation(i) != node.activation) {
+                    throw new IllegalStateException("Node " + i + " differs from node " + entry.getKey());
+                }
+                i++;
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.buaisociety.neat.calculator;
+
+/**
+ * Evaluates the hidden and output neurons of a {@link Calculator} for a chunk
+ * of samples. The values are stored neuron-major, so the values of neuron
+ * <code>i</code> for the whole chunk are stored in
+ * <code>[i * count, (i + 1) * count)</code>, and the inputs are already filled
+ * in.
+ *
+ * <p>Kernels are stateless, so 1 instance is shared by every calculator.
+ *
+ * @see Calculator#predictBatch(double[], int, double[])
+ */
+interface BatchKernel {
+
+    void predictChunk(Calculator network, double[] values, int count);
+
+    /**
+     * The same as {@link #predictChunk(Calculator, double[], int)}, in float
+     * precision.
+     */
+    void predictChunk(Calculator network, float[] values, int count);
+
+    /**
+     * Returns the fastest kernel this JVM supports. The vectorized kernel
+     * needs the <code>jdk.incubator.vector</code> module, which is only
+     * available when the JVM is started with
+     * <code>--add-modules jdk.incubator.vector</code>, and can be turned off
+     * with <code>-Dneat.calculator.vector=false</code>.
+     *
+     * @return The kernel to use.
+     */
+    static BatchKernel select() {
+        if (!Boolean.parseBoolean(System.getProperty("neat.calculator.vector", "true"))
+            || ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return new ScalarKernel();
+        }
+
+        // Loaded by name, so this class never links against the incubator
+        // module when it is missing
+        try {
+            Class<?> type = Class.forName("com.buaisociety.neat.calculator.VectorKernel");
+            BatchKernel kernel = (BatchKernel) type.getDeclaredConstructor().newInstance();
+            return ((VectorKernel) kernel).isUseful() ? kernel : new ScalarKernel();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarKernel();
+        }
+    }
+}
@@ -1,83 +1,539 @@
 package com.buaisociety.neat.calculator;
 
-import com.buaisociety.neat.genome.ConnectionGene;
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.Precision;
+import com.buaisociety.neat.genome.Activation;
 import com.buaisociety.neat.genome.Genome;
-import com.buaisociety.neat.genome.NodeGene;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Wraps all the neurons in a neural network together, so we can pass in an
  * array of data, and get out an array of predicted data.
+ *
+ * <p>Instead of walking a graph of {@link Node} and {@link Connection} objects,
+ * the genome is "compiled" into flat primitive arrays. Neurons are given an
+ * index in evaluation order (inputs, then hidden neurons left -> right, then
+ * outputs), and the incoming connections of each neuron are stored next to
+ * each other in the {@link #sources} and {@link #weights} arrays. Evaluating a
+ * neuron is then just a tight loop over a slice of those arrays.
+ *
+ * <p>The evaluation order and the {@link #offsets} and {@link #sources}
+ * arrays only depend on the nodes and connections of the genome, so they are
+ * shared between genomes through the {@link TopologyCache} of their
+ * {@link Neat}. Only the weights and biases are copied for each calculator.
+ *
+ * <p>Neuron values are calculated with the {@link Genome#getPrecision()
+ * precision} of the genome. With {@link Precision#FLOAT}, weights, biases and
+ * values are stored as floats, which halves the memory they use, and lets the
+ * batch methods evaluate twice as many samples per SIMD instruction.
+ *
+ * <p>The batch methods use SIMD instructions when the JVM is started with
+ * <code>--add-modules jdk.incubator.vector</code>, and plain loops otherwise.
+ *
+ * <p>A calculator that is used a lot (like the champion of a finished run) can
+ * be {@link #compile() compiled} into a generated class, where every weight is
+ * a constant and every connection is an unrolled multiply-add. Calculators
+ * can also compile themselves after {@link #setCompileThreshold(long) enough}
+ * predictions.
+ *
+ * <p>A calculator owns a single value buffer that is reused between calls, so
+ * one instance should not be shared between threads.
+ *
+ * <p>Networks may be {@link #isRecurrent() recurrent}. A connection from a
+ * neuron that comes later in the evaluation order (or from the neuron
+ * itself) reads that neuron's value from the previous prediction, which is
+ * still in the value buffer. Recurrent networks are evaluated with exactly
+ * the same loop as feed-forward ones, so a step costs the same at equal
+ * connection count. Call {@link #reset()} between episodes to forget the
+ * previous steps. The batch methods have no previous step, so every sample
+ * is predicted as if the calculator was just reset.
  */
 public class Calculator {
 
-    private List<Node> inputNodes;
-    private List<Node> hiddenNodes;
-    private List<Node> outputNodes;
+    /**
+     * The maximum number of samples evaluated together by the batch methods.
+     * Keeps the batch value buffer small enough to stay in cache.
+     */
+    private static final int BATCH_SIZE = 256;
+
+    /**
+     * Evaluates the neurons for the batch methods. Chosen once, since the
+     * available modules and CPU never change while the JVM is running.
+     */
+    private static final BatchKernel KERNEL = BatchKernel.select();
+
+    private static volatile long compileThreshold = Long.getLong("neat.calculator.compileThreshold", 0L);
+
+    final int inputCount;
+    private final int outputCount;
+    final int nodeCount;
+    private final Precision precision;
+
+    /**
+     * The bias of each neuron, indexed by evaluation order. Input neurons are
+     * never activated, so their bias is ignored. Only 1 of the double and
+     * float arrays is used, depending on the precision.
+     */
+    final double[] biases;
+    final float[] floatBiases;
+
+    /**
+     * The activation function of each neuron, and whether to use its
+     * {@link Activation#isApproximate() approximation}.
+     */
+    final Activation[] activations;
+    final boolean approximate;
+
+    /**
+     * The incoming connections of neuron <code>i</code> are stored in the range
+     * <code>[offsets[i], offsets[i + 1])</code> of {@link #sources} and
+     * {@link #weights}. The offsets and sources are shared with other
+     * calculators, and must never be changed.
+     */
+    final int[] offsets;
+    final int[] sources;
+    final double[] weights;
+    final float[] floatWeights;
+
+    /**
+     * The weights used by the batch methods. The same arrays as the weights
+     * for feed-forward networks. For recurrent networks, copies where every
+     * recurrent connection has a weight of 0.
+     */
+    final double[] batchWeights;
+    final float[] floatBatchWeights;
+    private final boolean recurrent;
+
+    /**
+     * The current value of each neuron. Reused between predictions.
+     */
+    private final double[] values;
+    private final float[] floatValues;
+
+    /**
+     * The values of each neuron for a batch of samples, stored neuron-major
+     * (all samples of neuron 0, then all samples of neuron 1, ...). Created
+     * the first time a batch method is called.
+     */
+    private double[] batchValues;
+    private float[] floatBatchValues;
+
+    /**
+     * The generated class for this calculator, or null until it is compiled.
+     * Only the 1 matching the precision is ever set. Dropping the calculator
+     * drops the class, which the JVM then unloads.
+     */
+    private CompiledNetwork compiled;
+    private CompiledFloatNetwork compiledFloat;
+    private boolean compileFailed;
+    private final long compileAfter;
+    private long predictions;
 
     public Calculator(Genome genome) {
-        this.inputNodes = new ArrayList<>();
-        this.hiddenNodes = new ArrayList<>();
-        this.outputNodes = new ArrayList<>();
-
-        Map<Integer, Node> nodeCache = new HashMap<>();
-        for (NodeGene nodeGene : genome.getNodeGenes()) {
-            Node node = new Node(nodeGene.getX());
-            node.setBias(nodeGene.getBias());
-            nodeCache.put(nodeGene.getId(), node);
-
-            if (nodeGene.isInput()) {
-                inputNodes.add(node);
-            } else if (nodeGene.isOutput()) {
-                outputNodes.add(node);
-            } else {
-                hiddenNodes.add(node);
+        // Step 1: Get the evaluation order and connection layout, which are
+        // shared with every genome that has the same nodes and connections
+        Topology topology = genome.getNeat().getTopologyCache().get(genome);
+        this.inputCount = topology.inputCount;
+        this.outputCount = topology.outputCount;
+        this.nodeCount = topology.nodeCount;
+        this.offsets = topology.offsets;
+        this.sources = topology.sources;
+        this.recurrent = topology.recurrent;
+        this.precision = genome.getPrecision();
+        this.approximate = Activation.isApproximate();
+        this.compileAfter = compileThreshold;
+
+        // Step 2: Copy the biases and activations into evaluation order
+        double[] biases = new double[nodeCount];
+        this.activations = new Activation[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            int index = topology.nodeIndexes[i];
+            biases[i] = genome.getBias(index);
+            activations[i] = genome.getActivation(index);
+        }
+
+        // Step 3: Copy the weights into their slots
+        double[] weights = new double[sources.length];
+        for (int i = 0; i < weights.length; i++) {
+            weights[topology.slots[i]] = genome.getWeight(i);
+        }
+
+        // Step 4: The batch methods have no previous step, so recurrent
+        // connections add nothing
+        double[] batchWeights = weights;
+        if (recurrent) {
+            batchWeights = weights.clone();
+            for (int i = inputCount; i < nodeCount; i++) {
+                for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                    if (sources[j] >= i) {
+                        batchWeights[j] = 0.0;
+                    }
+                }
             }
         }
 
-        // Sort left -> right
-        hiddenNodes.sort(Comparator.comparingDouble(Node::getX));
+        // Step 5: Keep the values in the precision of the genome
+        if (precision == Precision.FLOAT) {
+            this.biases = null;
+            this.weights = null;
+            this.batchWeights = null;
+            this.values = null;
+            this.floatBiases = toFloats(biases);
+            this.floatWeights = toFloats(weights);
+            this.floatBatchWeights = recurrent ? toFloats(batchWeights) : floatWeights;
+            this.floatValues = new float[nodeCount];
+        } else {
+            this.biases = biases;
+            this.weights = weights;
+            this.batchWeights = batchWeights;
+            this.values = new double[nodeCount];
+            this.floatBiases = null;
+            this.floatWeights = null;
+            this.floatBatchWeights = null;
+            this.floatValues = null;
+        }
+    }
 
-        for (ConnectionGene connectionGene : genome.getConnectionGenes()) {
-            Node from = nodeCache.get(connectionGene.getFrom().getId());
-            Node to = nodeCache.get(connectionGene.getTo().getId());
-            Connection connection = from.connect(to);
+    private static float[] toFloats(double[] values) {
+        float[] floats = new float[values.length];
+        for (int i = 0; i < values.length; i++) {
+            floats[i] = (float) values[i];
+        }
+        return floats;
+    }
 
-            connection.setWeight(connectionGene.getWeight());
+    /**
+     * Returns true if the batch methods use SIMD instructions. When they do,
+     * batch outputs may differ from {@link #predict(double[])} in the last
+     * bit.
+     *
+     * @return true if the vectorized kernel is used.
+     */
+    public static boolean isVectorized() {
+        return KERNEL instanceof VectorKernel;
+    }
+
+    /**
+     * Returns the number of predictions after which new calculators
+     * {@link #compile() compile} themselves, or 0 if they never do. Defaults
+     * to the <code>neat.calculator.compileThreshold</code> system property.
+     *
+     * @return The compile threshold.
+     */
+    public static long getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    /**
+     * Sets the number of predictions after which calculators compile
+     * themselves. Calculators read this when they are created, so existing
+     * calculators are not affected.
+     *
+     * @param threshold The number of predictions, or 0 to never compile.
+     */
+    public static void setCompileThreshold(long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Compile threshold must be at least 0, got " + threshold);
+        }
+        compileThreshold = threshold;
+    }
+
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    public int getInputCount() {
+        return inputCount;
+    }
+
+    public int getOutputCount() {
+        return outputCount;
+    }
+
+    /**
+     * Returns true if any connection carries a value from the previous
+     * prediction.
+     *
+     * @return true if the network is recurrent.
+     */
+    public boolean isRecurrent() {
+        return recurrent;
+    }
+
+    /**
+     * Forgets the values of the previous prediction, so the next prediction
+     * starts like the first prediction of a new calculator. Only recurrent
+     * networks remember anything, so this does nothing useful for
+     * feed-forward ones. Does not allocate.
+     */
+    public void reset() {
+        if (precision == Precision.FLOAT) {
+            Arrays.fill(floatValues, 0.0f);
+        } else {
+            Arrays.fill(values, 0.0);
         }
     }
 
+    /**
+     * Compiles this calculator into a hidden class, so {@link #predict}
+     * runs straight-line code instead of looping over the connections. The
+     * outputs do not change. Compiling takes about as long as a few thousand
+     * predictions, so it is only worth it for networks that are used a lot.
+     * The batch methods are not affected.
+     *
+     * @return true if the calculator is compiled, false if the network was
+     *         too large to fit in a class, or has a neuron with a connection
+     *         to itself that is too large to fit in 1 method.
+     */
+    public boolean compile() {
+        if (!isCompiled() && !compileFailed) {
+            try {
+                if (precision == Precision.FLOAT) {
+                    compiledFloat = NetworkCompiler.compileFloat(this);
+                } else {
+                    compiled = NetworkCompiler.compile(this);
+                }
+            } catch (IllegalStateException e) {
+                compileFailed = true;
+            }
+        }
+        return isCompiled();
+    }
+
+    public boolean isCompiled() {
+        return compiled != null || compiledFloat != null;
+    }
+
     /**
      * Inserts the <code>inputValues</code> into the neural network, then
-     * predicts all neuron values using {@link Node#predict()}.
+     * predicts all neuron values.
      *
      * @param inputValues The array of inputs to feed into the neural network.
      * @return The array of outputs from the output neurons.
      */
     public double[] predict(double[] inputValues) {
+        double[] outputValues = new double[outputCount];
+        predict(inputValues, outputValues);
+        return outputValues;
+    }
+
+    /**
+     * Inserts the <code>inputValues</code> into the neural network, then
+     * writes the values of the output neurons into <code>outputValues</code>.
+     * Unlike {@link #predict(double[])}, this method does not allocate.
+     *
+     * @param inputValues The array of inputs to feed into the neural network.
+     * @param outputValues The array to write the outputs into. Must have at
+     *                     least {@link #getOutputCount()} elements.
+     */
+    public void predict(double[] inputValues, double[] outputValues) {
+        if (!isCompiled() && compileAfter > 0 && ++predictions == compileAfter) {
+            compile();
+        }
+        if (precision == Precision.FLOAT) {
+            predictFloat(inputValues, outputValues);
+            return;
+        }
+
+        double[] values = this.values;
 
         // Step 1: Fill in the values for the inputs
-        for (int i = 0; i < inputValues.length; i++) {
-            inputNodes.get(i).setValue(inputValues[i]);
+        System.arraycopy(inputValues, 0, values, 0, inputCount);
+
+        // Step 2: Predictions, for the hidden neurons then the output neurons
+        if (compiled != null) {
+            compiled.predict(values);
+        } else {
+            for (int i = inputCount; i < nodeCount; i++) {
+                double sum = biases[i];
+                for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                    sum += values[sources[j]] * weights[j];
+                }
+
+                values[i] = activate(i, sum);
+            }
         }
 
-        // Step 2: Predictions
-        for (Node hidden : hiddenNodes) {
-            hidden.predict();
+        // Step 3: Return our outputs
+        System.arraycopy(values, nodeCount - outputCount, outputValues, 0, outputCount);
+    }
+
+    private void predictFloat(double[] inputValues, double[] outputValues) {
+        float[] values = this.floatValues;
+
+        // Step 1: Fill in the values for the inputs
+        for (int i = 0; i < inputCount; i++) {
+            values[i] = (float) inputValues[i];
+        }
+
+        // Step 2: Predictions, for the hidden neurons then the output neurons
+        if (compiledFloat != null) {
+            compiledFloat.predict(values);
+        } else {
+            for (int i = inputCount; i < nodeCount; i++) {
+                float sum = floatBiases[i];
+                for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                    sum += values[sources[j]] * floatWeights[j];
+                }
+
+                values[i] = activate(i, sum);
+            }
         }
 
         // Step 3: Return our outputs
-        double[] outputValues = new double[outputNodes.size()];
-        for (int i = 0; i < outputValues.length; i++) {
-            outputNodes.get(i).predict();
-            outputValues[i] = outputNodes.get(i).getValue();
+        int firstOutput = nodeCount - outputCount;
+        for (int o = 0; o < outputCount; o++) {
+            outputValues[o] = values[firstOutput + o];
         }
+    }
 
-        return outputValues;
+    /**
+     * Predicts the outputs for every row of <code>inputs</code>.
+     *
+     * @param inputs The samples to feed into the neural network, 1 per row.
+     * @return The outputs of the neural network, 1 row per sample.
+     * @see #predictBatch(double[], int, double[])
+     */
+    public double[][] predictBatch(double[][] inputs) {
+        int sampleCount = inputs.length;
+        double[] flatInputs = new double[sampleCount * inputCount];
+        for (int s = 0; s < sampleCount; s++) {
+            System.arraycopy(inputs[s], 0, flatInputs, s * inputCount, inputCount);
+        }
+
+        double[] flatOutputs = new double[sampleCount * outputCount];
+        predictBatch(flatInputs, sampleCount, flatOutputs);
+
+        double[][] outputs = new double[sampleCount][outputCount];
+        for (int s = 0; s < sampleCount; s++) {
+            System.arraycopy(flatOutputs, s * outputCount, outputs[s], 0, outputCount);
+        }
+        return outputs;
+    }
+
+    /**
+     * Predicts the outputs for <code>sampleCount</code> samples at once. The
+     * inputs and outputs are stored row-major, so sample <code>s</code> starts
+     * at <code>s * getInputCount()</code> in the inputs, and at
+     * <code>s * getOutputCount()</code> in the outputs.
+     *
+     * <p>Samples are evaluated neuron by neuron instead of sample by sample,
+     * so each weight is loaded once and reused for the whole batch. Each
+     * sample gets the same output as {@link #predict(double[])}, except in
+     * the last bit when {@link #isVectorized() vectorized}.
+     *
+     * @param inputs The row-major inputs.
+     * @param sampleCount The number of samples (rows) in the inputs.
+     * @param outputs The array to write the row-major outputs into.
+     */
+    public void predictBatch(double[] inputs, int sampleCount, double[] outputs) {
+        if (inputs.length < sampleCount * inputCount) {
+            throw new IllegalArgumentException("Expected " + sampleCount * inputCount + " inputs, got " + inputs.length);
+        }
+        if (outputs.length < sampleCount * outputCount) {
+            throw new IllegalArgumentException("Expected room for " + sampleCount * outputCount + " outputs, got " + outputs.length);
+        }
+
+        if (precision == Precision.FLOAT && floatBatchValues == null) {
+            floatBatchValues = new float[nodeCount * BATCH_SIZE];
+        } else if (precision == Precision.DOUBLE && batchValues == null) {
+            batchValues = new double[nodeCount * BATCH_SIZE];
+        }
+
+        // Split the samples into chunks, so our buffer stays a reasonable size
+        for (int start = 0; start < sampleCount; start += BATCH_SIZE) {
+            int count = Math.min(BATCH_SIZE, sampleCount - start);
+            if (precision == Precision.FLOAT) {
+                predictFloatChunk(inputs, outputs, start, count);
+            } else {
+                predictChunk(inputs, outputs, start, count);
+            }
+        }
+    }
+
+    private void predictChunk(double[] inputs, double[] outputs, int start, int count) {
+        double[] values = this.batchValues;
+
+        // Recurrent connections have no weight in batches, but still read
+        // the buffer, which must not hold infinities from the last chunk
+        if (recurrent) {
+            Arrays.fill(values, inputCount * count, nodeCount * count, 0.0);
+        }
+
+        // Step 1: Fill in the values for the inputs (transposing rows -> neurons)
+        for (int s = 0; s < count; s++) {
+            int row = (start + s) * inputCount;
+            for (int i = 0; i < inputCount; i++) {
+                values[i * count + s] = inputs[row + i];
+            }
+        }
+
+        // Step 2: Predictions, 1 neuron at a time for every sample in the chunk
+        KERNEL.predictChunk(this, values, count);
+
+        // Step 3: Return our outputs (transposing neurons -> rows)
+        int firstOutput = nodeCount - outputCount;
+        for (int s = 0; s < count; s++) {
+            int row = (start + s) * outputCount;
+            for (int o = 0; o < outputCount; o++) {
+                outputs[row + o] = values[(firstOutput + o) * count + s];
+            }
+        }
+    }
+
+    private void predictFloatChunk(double[] inputs, double[] outputs, int start, int count) {
+        float[] values = this.floatBatchValues;
+        if (recurrent) {
+            Arrays.fill(values, inputCount * count, nodeCount * count, 0.0f);
+        }
+
+        // Step 1: Fill in the values for the inputs (transposing rows -> neurons)
+        for (int s = 0; s < count; s++) {
+            int row = (start + s) * inputCount;
+            for (int i = 0; i < inputCount; i++) {
+                values[i * count + s] = (float) inputs[row + i];
+            }
+        }
+
+        // Step 2: Predictions, 1 neuron at a time for every sample in the chunk
+        KERNEL.predictChunk(this, values, count);
+
+        // Step 3: Return our outputs (transposing neurons -> rows)
+        int firstOutput = nodeCount - outputCount;
+        for (int s = 0; s < count; s++) {
+            int row = (start + s) * outputCount;
+            for (int o = 0; o < outputCount; o++) {
+                outputs[row + o] = values[(firstOutput + o) * count + s];
+            }
+        }
+    }
+
+    /**
+     * The "activation function" basically serves to clamp the value of the sum
+     * to a "reasonable value," typically between 0 and 1.
+     *
+     * <p>Every neuron has its own {@link Activation}. The activation is an
+     * enum without any overridden methods, so this call is always inlined.
+     *
+     * @param node The index of the neuron, in evaluation order.
+     * @param sum The sum of all incoming values.
+     * @return The activated value.
+     */
+    double activate(int node, double sum) {
+        Activation activation = activations[node];
+        return approximate ? activation.approximate(sum) : activation.apply(sum);
+    }
+
+    /**
+     * The same as {@link #activate(int, double)}, in float precision.
+     *
+     * @param node The index of the neuron, in evaluation order.
+     * @param sum The sum of all incoming values.
+     * @return The activated value.
+     */
+    float activate(int node, float sum) {
+        Activation activation = activations[node];
+        return approximate ? activation.approximate(sum) : activation.apply(sum);
     }
 }
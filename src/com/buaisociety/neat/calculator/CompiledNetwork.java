@@ -0,0 +1,16 @@
+package com.buaisociety.neat.calculator;
+
+/**
+ * A {@link Calculator} with {@link com.buaisociety.neat.Precision#DOUBLE
+ * double} precision that was compiled into straight-line bytecode by
+ * {@link NetworkCompiler}.
+ *
+ * <p>The values are the same neuron values the calculator uses, indexed by
+ * evaluation order, with the inputs already filled in.
+ *
+ * @see CompiledFloatNetwork
+ */
+interface CompiledNetwork {
+
+    void predict(double[] values);
+}
@@ -0,0 +1,507 @@
+package com.buaisociety.neat.calculator;
+
+import com.buaisociety.neat.Precision;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Turns the topology of a {@link Calculator} into a hidden class, where every
+ * weight and bias is a constant and every connection is an unrolled
+ * multiply-add. For neuron <code>i</code>, the generated code is:
+ *
+ * <pre>
+ * values[i] = Activation.X.apply(bias + values[a] * wa + values[b] * wb + ...);
+ * </pre>
+ *
+ * <p>The sums are added up in the same order as {@link Calculator#predict}, so
+ * the results are identical. The bytecode is written by hand, since there is
+ * no class file API in this version of Java.
+ *
+ * <p>HotSpot does not JIT compile methods over 8000 bytes of bytecode, so the
+ * neurons are split between methods of at most {@link #MAX_METHOD_BYTES}
+ * bytes, which are called 1 after another.
+ *
+ * <p>Hidden classes are not strongly linked to their class loader, so a
+ * generated class is unloaded once its calculator is garbage collected.
+ */
+final class NetworkCompiler {
+
+    private static final int MAX_METHOD_BYTES = 7000;
+
+    /**
+     * The most bytes needed to start or finish a neuron, and to add 1
+     * connection to its sum.
+     */
+    private static final int NEURON_BYTES = 14;
+    private static final int CONNECTION_BYTES = 10;
+
+    private static final String CLASS_NAME = "com/buaisociety/neat/calculator/GeneratedNetwork";
+    private static final String ACTIVATION = "com/buaisociety/neat/genome/Activation";
+
+    // Opcodes
+    private static final int ICONST_0 = 0x03;
+    private static final int BIPUSH = 0x10;
+    private static final int SIPUSH = 0x11;
+    private static final int LDC = 0x12;
+    private static final int LDC_W = 0x13;
+    private static final int LDC2_W = 0x14;
+    private static final int ALOAD_0 = 0x2a;
+    private static final int ALOAD_1 = 0x2b;
+    private static final int FALOAD = 0x30;
+    private static final int DALOAD = 0x31;
+    private static final int FASTORE = 0x51;
+    private static final int DASTORE = 0x52;
+    private static final int FADD = 0x62;
+    private static final int DADD = 0x63;
+    private static final int FMUL = 0x6a;
+    private static final int DMUL = 0x6b;
+    private static final int RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2;
+    private static final int INVOKEVIRTUAL = 0xb6;
+    private static final int INVOKESPECIAL = 0xb7;
+    private static final int INVOKESTATIC = 0xb8;
+
+    private final Calculator network;
+    private final boolean floats;
+    private final String arrayType;
+    private final ConstantPool pool = new ConstantPool();
+    private final List<Method> methods = new ArrayList<>();
+    private Bytes chunk;
+
+    private NetworkCompiler(Calculator network) {
+        this.network = network;
+        this.floats = network.getPrecision() == Precision.FLOAT;
+        this.arrayType = floats ? "[F" : "[D";
+    }
+
+    /**
+     * Compiles a double precision calculator into a new hidden class.
+     *
+     * @param network The calculator to compile.
+     * @return An instance of the generated class.
+     * @throws IllegalStateException If the network needs more constants than
+     *                               a class file can hold.
+     */
+    static CompiledNetwork compile(Calculator network) {
+        if (network.getPrecision() != Precision.DOUBLE) {
+            throw new IllegalArgumentException("Expected a double precision calculator, got " + network.getPrecision());
+        }
+        return (CompiledNetwork) define(network);
+    }
+
+    /**
+     * Compiles a float precision calculator into a new hidden class.
+     *
+     * @param network The calculator to compile.
+     * @return An instance of the generated class.
+     * @throws IllegalStateException If the network needs more constants than
+     *                               a class file can hold.
+     */
+    static CompiledFloatNetwork compileFloat(Calculator network) {
+        if (network.getPrecision() != Precision.FLOAT) {
+            throw new IllegalArgumentException("Expected a float precision calculator, got " + network.getPrecision());
+        }
+        return (CompiledFloatNetwork) define(network);
+    }
+
+    private static Object define(Calculator network) {
+        byte[] bytes = new NetworkCompiler(network).generate();
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+            return lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("Could not define the compiled network", e);
+        }
+    }
+
+    private byte[] generate() {
+        int thisClass = pool.classRef(CLASS_NAME);
+        int superClass = pool.classRef("java/lang/Object");
+        int compiledNetwork = pool.classRef(floats
+            ? "com/buaisociety/neat/calculator/CompiledFloatNetwork"
+            : "com/buaisociety/neat/calculator/CompiledNetwork");
+
+        // Step 1: The constructor
+        Bytes init = new Bytes();
+        init.u1(ALOAD_0);
+        init.u1(INVOKESPECIAL).u2(pool.methodRef("java/lang/Object", "<init>", "()V"));
+        init.u1(RETURN);
+        methods.add(new Method(0, "<init>", "()V", 1, 1, init));
+
+        // Step 2: The neurons, split between chunk methods
+        for (int i = network.inputCount; i < network.nodeCount; i++) {
+            int connections = network.offsets[i + 1] - network.offsets[i];
+            int size = 2 * NEURON_BYTES + connections * CONNECTION_BYTES;
+            if (size <= MAX_METHOD_BYTES) {
+                if (chunk == null || chunk.size() + size > MAX_METHOD_BYTES) {
+                    startChunk();
+                }
+                neuron(i);
+            } else {
+                partialNeuron(i);
+            }
+        }
+        finishChunk();
+
+        // Step 3: The predict method calls every chunk, in order
+        Bytes predict = new Bytes();
+        int chunkCount = methods.size() - 1;
+        for (int c = 0; c < chunkCount; c++) {
+            predict.u1(ALOAD_1);
+            predict.u1(INVOKESTATIC).u2(pool.methodRef(CLASS_NAME, "chunk" + c, "(" + arrayType + ")V"));
+        }
+        predict.u1(RETURN);
+        methods.add(new Method(0x0001, "predict", "(" + arrayType + ")V", 1, 2, predict));
+
+        int code = pool.utf8("Code");
+        for (Method method : methods) {
+            method.name = pool.utf8(method.nameString);
+            method.descriptor = pool.utf8(method.descriptorString);
+        }
+        if (pool.count > 0xFFFF) {
+            throw new IllegalStateException("Network needs " + pool.count + " constants, but a class can only hold 65535");
+        }
+
+        // Step 4: Write the class file
+        Bytes out = new Bytes();
+        out.u4(0xCAFEBABE).u2(0).u2(65);
+        out.u2(pool.count).bytes(pool.bytes);
+        out.u2(0x0010 | 0x0020).u2(thisClass).u2(superClass);
+        out.u2(1).u2(compiledNetwork);
+        out.u2(0);
+        out.u2(methods.size());
+        for (Method method : methods) {
+            out.u2(method.access).u2(method.name).u2(method.descriptor);
+            out.u2(1).u2(code).u4(12 + method.code.size());
+            out.u2(method.maxStack).u2(method.maxLocals);
+            out.u4(method.code.size()).bytes(method.code);
+            out.u2(0).u2(0);
+        }
+        out.u2(0);
+        return out.toArray();
+    }
+
+    /**
+     * Emits <code>values[i] = activation(bias + ...)</code>, with the whole
+     * sum on the operand stack.
+     */
+    private void neuron(int i) {
+        chunk.u1(ALOAD_0);
+        pushInt(i);
+        chunk.u1(GETSTATIC).u2(activation(i));
+        pushBias(i);
+        for (int j = network.offsets[i]; j < network.offsets[i + 1]; j++) {
+            connection(j);
+        }
+        chunk.u1(INVOKEVIRTUAL).u2(activate());
+        chunk.u1(floats ? FASTORE : DASTORE);
+    }
+
+    /**
+     * Emits a neuron with too many connections for 1 method. The sum is
+     * stored in <code>values[i]</code> at the end of each chunk, and loaded
+     * again at the start of the next one.
+     */
+    private void partialNeuron(int i) {
+        // The partial sums are kept in the neuron's own value, which would
+        // hide the previous value from a connection to itself
+        for (int j = network.offsets[i]; j < network.offsets[i + 1]; j++) {
+            if (network.sources[j] == i) {
+                throw new IllegalStateException("Neuron " + i + " is too large to compile with a connection to itself");
+            }
+        }
+        startChunk();
+        chunk.u1(ALOAD_0);
+        pushInt(i);
+        pushBias(i);
+        for (int j = network.offsets[i]; j < network.offsets[i + 1]; j++) {
+            if (chunk.size() + CONNECTION_BYTES + NEURON_BYTES > MAX_METHOD_BYTES) {
+                chunk.u1(floats ? FASTORE : DASTORE);
+                startChunk();
+                loadValue(i);
+            }
+            connection(j);
+        }
+        chunk.u1(floats ? FASTORE : DASTORE);
+
+        if (chunk.size() + NEURON_BYTES > MAX_METHOD_BYTES) {
+            startChunk();
+        }
+        chunk.u1(ALOAD_0);
+        pushInt(i);
+        chunk.u1(GETSTATIC).u2(activation(i));
+        chunk.u1(ALOAD_0);
+        pushInt(i);
+        chunk.u1(floats ? FALOAD : DALOAD);
+        chunk.u1(INVOKEVIRTUAL).u2(activate());
+        chunk.u1(floats ? FASTORE : DASTORE);
+    }
+
+    /**
+     * Emits <code>sum += values[sources[j]] * weights[j]</code>.
+     */
+    private void connection(int j) {
+        chunk.u1(ALOAD_0);
+        pushInt(network.sources[j]);
+        if (floats) {
+            chunk.u1(FALOAD);
+            pushFloat(network.floatWeights[j]);
+            chunk.u1(FMUL).u1(FADD);
+        } else {
+            chunk.u1(DALOAD);
+            chunk.u1(LDC2_W).u2(pool.doubleConstant(network.weights[j]));
+            chunk.u1(DMUL).u1(DADD);
+        }
+    }
+
+    private void loadValue(int i) {
+        chunk.u1(ALOAD_0);
+        pushInt(i);
+        chunk.u1(ALOAD_0);
+        pushInt(i);
+        chunk.u1(floats ? FALOAD : DALOAD);
+    }
+
+    private void pushBias(int i) {
+        if (floats) {
+            pushFloat(network.floatBiases[i]);
+        } else {
+            chunk.u1(LDC2_W).u2(pool.doubleConstant(network.biases[i]));
+        }
+    }
+
+    private void pushFloat(float value) {
+        int index = pool.floatConstant(value);
+        if (index < 256) {
+            chunk.u1(LDC).u1(index);
+        } else {
+            chunk.u1(LDC_W).u2(index);
+        }
+    }
+
+    private void pushInt(int value) {
+        if (value <= 5) {
+            chunk.u1(ICONST_0 + value);
+        } else if (value < 128) {
+            chunk.u1(BIPUSH).u1(value);
+        } else if (value < 32768) {
+            chunk.u1(SIPUSH).u2(value);
+        } else {
+            chunk.u1(LDC_W).u2(pool.intConstant(value));
+        }
+    }
+
+    private int activation(int i) {
+        return pool.fieldRef(ACTIVATION, network.activations[i].name(), "L" + ACTIVATION + ";");
+    }
+
+    private int activate() {
+        String descriptor = floats ? "(F)F" : "(D)D";
+        return pool.methodRef(ACTIVATION, network.approximate ? "approximate" : "apply", descriptor);
+    }
+
+    private void startChunk() {
+        finishChunk();
+        chunk = new Bytes();
+    }
+
+    private void finishChunk() {
+        if (chunk != null) {
+            chunk.u1(RETURN);
+            String name = "chunk" + (methods.size() - 1);
+            methods.add(new Method(0x0002 | 0x0008, name, "(" + arrayType + ")V", 10, 1, chunk));
+            chunk = null;
+        }
+    }
+
+    /**
+     * A method of the generated class. The name and descriptor are added to
+     * the constant pool last, so the indexes of the hot constants stay small.
+     */
+    private static final class Method {
+        final int access;
+        final String nameString;
+        final String descriptorString;
+        final int maxStack;
+        final int maxLocals;
+        final Bytes code;
+        int name;
+        int descriptor;
+
+        Method(int access, String name, String descriptor, int maxStack, int maxLocals, Bytes code) {
+            this.access = access;
+            this.nameString = name;
+            this.descriptorString = descriptor;
+            this.maxStack = maxStack;
+            this.maxLocals = maxLocals;
+            this.code = code;
+        }
+    }
+
+    /**
+     * The constant pool of the generated class. Equal constants share 1
+     * entry.
+     */
+    private static final class ConstantPool {
+        final Bytes bytes = new Bytes();
+        final Map<Key, Integer> indexes = new HashMap<>();
+        int count = 1;
+
+        int utf8(String value) {
+            Integer index = indexes.get(new Key(1, value));
+            if (index != null) {
+                return index;
+            }
+            byte[] encoded = value.getBytes(StandardCharsets.UTF_8);
+            bytes.u1(1).u2(encoded.length).bytes(encoded);
+            return add(new Key(1, value), 1);
+        }
+
+        int intConstant(int value) {
+            Integer index = indexes.get(new Key(3, value));
+            if (index != null) {
+                return index;
+            }
+            bytes.u1(3).u4(value);
+            return add(new Key(3, value), 1);
+        }
+
+        int floatConstant(float value) {
+            int bits = Float.floatToRawIntBits(value);
+            Integer index = indexes.get(new Key(4, bits));
+            if (index != null) {
+                return index;
+            }
+            bytes.u1(4).u4(bits);
+            return add(new Key(4, bits), 1);
+        }
+
+        int doubleConstant(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            Integer index = indexes.get(new Key(6, bits));
+            if (index != null) {
+                return index;
+            }
+            bytes.u1(6).u8(bits);
+            return add(new Key(6, bits), 2);
+        }
+
+        int classRef(String name) {
+            Integer index = indexes.get(new Key(7, name));
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            bytes.u1(7).u2(nameIndex);
+            return add(new Key(7, name), 1);
+        }
+
+        int fieldRef(String owner, String name, String descriptor) {
+            return memberRef(9, owner, name, descriptor);
+        }
+
+        int methodRef(String owner, String name, String descriptor) {
+            return memberRef(10, owner, name, descriptor);
+        }
+
+        private int memberRef(int tag, String owner, String name, String descriptor) {
+            Key key = new Key(tag, owner + '.' + name + descriptor);
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            int ownerIndex = classRef(owner);
+            int nameAndType = nameAndType(name, descriptor);
+            bytes.u1(tag).u2(ownerIndex).u2(nameAndType);
+            return add(key, 1);
+        }
+
+        private int nameAndType(String name, String descriptor) {
+            Key key = new Key(12, name + ' ' + descriptor);
+            Integer index = indexes.get(key);
+            if (index != null) {
+                return index;
+            }
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            bytes.u1(12).u2(nameIndex).u2(descriptorIndex);
+            return add(key, 1);
+        }
+
+        private int add(Key key, int slots) {
+            int index = count;
+            indexes.put(key, index);
+            count += slots;
+            return index;
+        }
+
+        private record Key(int tag, Object value) {
+        }
+    }
+
+    /**
+     * A growable big-endian byte buffer.
+     */
+    private static final class Bytes {
+        private byte[] data = new byte[256];
+        private int size;
+
+        int size() {
+            return size;
+        }
+
+        Bytes u1(int value) {
+            ensure(1);
+            data[size++] = (byte) value;
+            return this;
+        }
+
+        Bytes u2(int value) {
+            ensure(2);
+            data[size++] = (byte) (value >>> 8);
+            data[size++] = (byte) value;
+            return this;
+        }
+
+        Bytes u4(int value) {
+            return u2(value >>> 16).u2(value);
+        }
+
+        Bytes u8(long value) {
+            return u4((int) (value >>> 32)).u4((int) value);
+        }
+
+        Bytes bytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+            return this;
+        }
+
+        Bytes bytes(Bytes bytes) {
+            ensure(bytes.size);
+            System.arraycopy(bytes.data, 0, data, size, bytes.size);
+            size += bytes.size;
+            return this;
+        }
+
+        byte[] toArray() {
+            return Arrays.copyOf(data, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.buaisociety.neat.calculator;
+
+import com.buaisociety.neat.genome.Activation;
+
+/**
+ * Evaluates 1 neuron at a time for every sample in the chunk, using plain
+ * loops. Works on every JVM, and gives exactly the same outputs as
+ * {@link Calculator#predict(double[], double[])}.
+ */
+final class ScalarKernel implements BatchKernel {
+
+    @Override
+    public void predictChunk(Calculator network, double[] values, int count) {
+        double[] biases = network.biases;
+        int[] offsets = network.offsets;
+        int[] sources = network.sources;
+        double[] weights = network.batchWeights;
+        boolean approximate = network.approximate;
+
+        for (int i = network.inputCount; i < network.nodeCount; i++) {
+            int base = i * count;
+            double bias = biases[i];
+            for (int s = 0; s < count; s++) {
+                values[base + s] = bias;
+            }
+
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                int source = sources[j] * count;
+                double weight = weights[j];
+                for (int s = 0; s < count; s++) {
+                    values[base + s] += values[source + s] * weight;
+                }
+            }
+
+            Activation activation = network.activations[i];
+            for (int s = 0; s < count; s++) {
+                double sum = values[base + s];
+                values[base + s] = approximate ? activation.approximate(sum) : activation.apply(sum);
+            }
+        }
+    }
+
+    @Override
+    public void predictChunk(Calculator network, float[] values, int count) {
+        float[] biases = network.floatBiases;
+        int[] offsets = network.offsets;
+        int[] sources = network.sources;
+        float[] weights = network.floatBatchWeights;
+        boolean approximate = network.approximate;
+
+        for (int i = network.inputCount; i < network.nodeCount; i++) {
+            int base = i * count;
+            float bias = biases[i];
+            for (int s = 0; s < count; s++) {
+                values[base + s] = bias;
+            }
+
+            for (int j = offsets[i]; j < offsets[i + 1]; j++) {
+                int source = sources[j] * count;
+                float weight = weights[j];
+                for (int s = 0; s < count; s++) {
+                    values[base + s] += values[source + s] * weight;
+                }
+            }
+
+            Activation activation = network.activations[i];
+            for (int s = 0; s < count; s++) {
+                float sum = values[base + s];
+                values[base + s] = approximate ? activation.approximate(sum) : activation.apply(sum);
+            }
+        }
+    }
+}
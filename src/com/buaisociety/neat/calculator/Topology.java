@@ -0,0 +1,206 @@
+package com.buaisociety.neat.calculator;
+
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.InnovationRegistry;
+import com.buaisociety.neat.genome.NodeGene;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parts of a {@link Calculator} that only depend on which nodes and
+ * connections a genome has: the evaluation order of the neurons, and where
+ * each connection goes in the flat arrays. Genomes with the same nodes and
+ * connections share 1 topology, and only copy their own weights and biases.
+ *
+ * <p>A topology is never changed after it is built, so it can be shared
+ * between threads.
+ *
+ * @see TopologyCache
+ */
+final class Topology {
+
+    final int inputCount;
+    final int outputCount;
+    final int nodeCount;
+
+    /**
+     * The incoming connections of neuron <code>i</code> are stored in the range
+     * <code>[offsets[i], offsets[i + 1])</code> of the calculator's
+     * connection arrays, and come from the neurons in {@link #sources}.
+     */
+    final int[] offsets;
+    final int[] sources;
+
+    /**
+     * True if any connection comes from a neuron that is evaluated at the
+     * same time or after the neuron it flows into, so it carries the value
+     * of the previous prediction.
+     */
+    final boolean recurrent;
+
+    /**
+     * The genome index of the node for each neuron, and the connection slot
+     * for each genome connection. Used to copy the weights and biases of a
+     * genome into evaluation order.
+     */
+    final int[] nodeIndexes;
+    final int[] slots;
+
+    /**
+     * The node ids and connection innovations of the genome this was built
+     * from, in genome order. Compared on every cache hit, so 2 topologies
+     * with the same hash are never mixed up.
+     */
+    private final int[] nodeIds;
+    private final int[] innovations;
+
+    private Topology(Genome genome) {
+        Neat neat = genome.getNeat();
+        InnovationRegistry registry = neat.getRegistry();
+
+        // Genome nodes are sorted by id, and input ids come before output ids,
+        // which come before hidden ids
+        int inputCount = 0;
+        int outputCount = 0;
+        List<NodeGene> hiddenNodes = new ArrayList<>();
+        for (int i = 0; i < genome.getNodeCount(); i++) {
+            int id = genome.getNodeId(i);
+            if (id < neat.getNumInputNodes()) {
+                inputCount++;
+            } else if (id < neat.getNumInputNodes() + neat.getNumOutputNodes()) {
+                outputCount++;
+            } else {
+                hiddenNodes.add(registry.getNode(id));
+            }
+        }
+
+        // Sort left -> right
+        hiddenNodes.sort(Comparator.comparingDouble(NodeGene::getX));
+
+        this.inputCount = inputCount;
+        this.outputCount = outputCount;
+        this.nodeCount = inputCount + hiddenNodes.size() + outputCount;
+
+        // Step 1: Give every neuron an index in evaluation order (inputs,
+        // hidden, then outputs)
+        Map<Integer, Integer> indexCache = new HashMap<>();
+        int[] order = new int[nodeCount];
+        for (int i = 0; i < inputCount; i++) {
+            order[i] = genome.getNodeId(i);
+        }
+        for (int i = 0; i < hiddenNodes.size(); i++) {
+            order[inputCount + i] = hiddenNodes.get(i).getId();
+        }
+        for (int i = 0; i < outputCount; i++) {
+            order[inputCount + hiddenNodes.size() + i] = genome.getNodeId(inputCount + i);
+        }
+
+        this.nodeIndexes = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            indexCache.put(order[i], i);
+            nodeIndexes[i] = genome.indexOfNode(order[i]);
+        }
+
+        // Step 2: Count the incoming connections of each neuron, so we know
+        // how big each slice of the connection arrays needs to be
+        int connectionCount = genome.getConnectionCount();
+        this.offsets = new int[nodeCount + 1];
+        for (int i = 0; i < connectionCount; i++) {
+            offsets[indexCache.get(genome.getTo(i)) + 1]++;
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            offsets[i + 1] += offsets[i];
+        }
+
+        // Step 3: Fill in the slices. Connections keep their genome order
+        // within each slice, so the sums are added up in the same order as
+        // they were with the Node/Connection graph.
+        this.sources = new int[connectionCount];
+        this.slots = new int[connectionCount];
+        int[] cursors = new int[nodeCount];
+        System.arraycopy(offsets, 0, cursors, 0, nodeCount);
+        boolean recurrent = false;
+        for (int i = 0; i < connectionCount; i++) {
+            int to = indexCache.get(genome.getTo(i));
+            int slot = cursors[to]++;
+            sources[slot] = indexCache.get(genome.getFrom(i));
+            slots[i] = slot;
+            recurrent |= sources[slot] >= to;
+        }
+        this.recurrent = recurrent;
+
+        this.nodeIds = nodeIds(genome);
+        this.innovations = innovations(genome);
+    }
+
+    /**
+     * Builds the topology of a genome, without using a cache.
+     *
+     * @param genome The genome to build the topology of.
+     * @return The new topology.
+     */
+    static Topology of(Genome genome) {
+        return new Topology(genome);
+    }
+
+    /**
+     * Returns a hash of the node ids and connection innovations of a genome.
+     * Genomes with the same topology always have the same hash.
+     *
+     * @param genome The genome to hash.
+     * @return The topology hash.
+     */
+    static long hash(Genome genome) {
+        long hash = genome.getNodeCount();
+        for (int i = 0; i < genome.getNodeCount(); i++) {
+            hash = hash * 0x9E3779B97F4A7C15L + genome.getNodeId(i);
+        }
+        hash = hash * 0x9E3779B97F4A7C15L + genome.getConnectionCount();
+        for (int i = 0; i < genome.getConnectionCount(); i++) {
+            hash = hash * 0x9E3779B97F4A7C15L + genome.getInnovation(i);
+        }
+        return hash ^ (hash >>> 29);
+    }
+
+    /**
+     * Returns true if this topology was built from a genome with the same
+     * nodes and connections as the given genome.
+     *
+     * @param genome The genome to compare against.
+     * @return true if the genome can use this topology.
+     */
+    boolean matches(Genome genome) {
+        if (genome.getNodeCount() != nodeIds.length || genome.getConnectionCount() != innovations.length) {
+            return false;
+        }
+        for (int i = 0; i < nodeIds.length; i++) {
+            if (genome.getNodeId(i) != nodeIds[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < innovations.length; i++) {
+            if (genome.getInnovation(i) != innovations[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int[] nodeIds(Genome genome) {
+        int[] ids = new int[genome.getNodeCount()];
+        Arrays.setAll(ids, genome::getNodeId);
+        return ids;
+    }
+
+    private static int[] innovations(Genome genome) {
+        int[] innovations = new int[genome.getConnectionCount()];
+        Arrays.setAll(innovations, genome::getInnovation);
+        return innovations;
+    }
+}
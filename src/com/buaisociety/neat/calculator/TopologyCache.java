@@ -0,0 +1,121 @@
+package com.buaisociety.neat.calculator;
+
+import com.buaisociety.neat.genome.Genome;
+
+import java.lang.ref.SoftReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares the {@link Topology} of calculators between genomes with the same
+ * nodes and connections. Cloned and crossed over genomes usually only differ
+ * in their weights, so most calculators built during a generation can skip
+ * sorting the neurons and laying out the connections.
+ *
+ * <p>Topologies are found by a hash of the node ids and connection
+ * innovations, then compared in full, so a hash collision only costs a
+ * rebuild. The cache holds at most {@link #getCapacity()} topologies, and
+ * drops the least recently used one when it is full. Topologies are held by
+ * soft references, so the garbage collector can also drop them when memory
+ * runs low.
+ *
+ * <p>Every {@link com.buaisociety.neat.Neat} has its own cache, since node ids
+ * from different instances do not mean the same thing. Calculators may be
+ * built from many threads at once, so the cache is synchronized. Topologies
+ * are built outside the lock.
+ */
+public class TopologyCache {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final Map<Long, SoftReference<Topology>> topologies = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, SoftReference<Topology>> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    private int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public TopologyCache() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public TopologyCache(int capacity) {
+        setCapacity(capacity);
+    }
+
+    public synchronized int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Sets the most topologies this cache holds. A capacity of 0 turns the
+     * cache off, so every calculator builds its own topology.
+     *
+     * @param capacity The maximum number of topologies.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Capacity must be at least 0, got " + capacity);
+        }
+        this.capacity = capacity;
+
+        // Drop the least recently used topologies that no longer fit
+        var iterator = topologies.entrySet().iterator();
+        while (topologies.size() > capacity) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return topologies.size();
+    }
+
+    public synchronized void clear() {
+        topologies.clear();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the topology of a genome, building it if it is not cached.
+     *
+     * @param genome The genome to get the topology of.
+     * @return The topology, which may be shared with other genomes.
+     */
+    Topology get(Genome genome) {
+        Long hash = Topology.hash(genome);
+        SoftReference<Topology> reference;
+        boolean enabled;
+        synchronized (this) {
+            reference = topologies.get(hash);
+            enabled = capacity > 0;
+        }
+
+        Topology cached = reference == null ? null : reference.get();
+        if (cached != null && cached.matches(genome)) {
+            hits.increment();
+            return cached;
+        }
+
+        misses.increment();
+        Topology topology = Topology.of(genome);
+        if (enabled) {
+            synchronized (this) {
+                topologies.put(hash, new SoftReference<>(topology));
+            }
+        }
+        return topology;
+    }
+}
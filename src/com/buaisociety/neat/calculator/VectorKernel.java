@@ -0,0 +1,168 @@
+package com.buaisociety.neat.calculator;
+
+import com.buaisociety.neat.genome.Activation;
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Evaluates 1 neuron at a time for a whole SIMD register of samples at once,
+ * using the <code>jdk.incubator.vector</code> API. Only loaded by
+ * {@link BatchKernel#select()} when that module is available.
+ *
+ * <p>Each lane holds 1 sample, so every neuron of the network is evaluated
+ * for <code>SPECIES.length()</code> samples with each instruction, no matter
+ * how the neurons are connected. The weighted sum of each lane stays in a
+ * register until every incoming connection is added, and the activation is
+ * applied to the whole register before it is stored. Approximated
+ * activations use lookup tables, which are applied 1 sample at a time after
+ * the sums are stored.
+ *
+ * <p>The sums are added up in the same order as the scalar kernel, so they
+ * are exactly the same. The vectorized <code>exp</code> and <code>tanh</code>
+ * may differ from {@link Math#exp(double)} and {@link Math#tanh(double)} in
+ * the last bit, so outputs may too.
+ */
+final class VectorKernel implements BatchKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Float> FLOAT_SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    /**
+     * Returns true if this CPU has SIMD registers wider than 1 double.
+     */
+    boolean isUseful() {
+        return SPECIES.length() > 1;
+    }
+
+    @Override
+    public void predictChunk(Calculator network, double[] values, int count) {
+        double[] biases = network.biases;
+        int[] offsets = network.offsets;
+        int[] sources = network.sources;
+        double[] weights = network.batchWeights;
+        boolean approximate = network.approximate;
+
+        int lanes = SPECIES.length();
+        int vectorEnd = SPECIES.loopBound(count);
+        for (int i = network.inputCount; i < network.nodeCount; i++) {
+            int base = i * count;
+            int first = offsets[i];
+            int last = offsets[i + 1];
+            Activation activation = network.activations[i];
+            boolean tabulated = approximate && activation.isTabulated();
+
+            // Step 1: Full registers of samples
+            int s = 0;
+            for (; s < vectorEnd; s += lanes) {
+                DoubleVector sum = DoubleVector.broadcast(SPECIES, biases[i]);
+                for (int j = first; j < last; j++) {
+                    DoubleVector value = DoubleVector.fromArray(SPECIES, values, sources[j] * count + s);
+                    sum = sum.add(value.mul(weights[j]));
+                }
+
+                if (tabulated) {
+                    sum.intoArray(values, base + s);
+                } else {
+                    activate(activation, sum).intoArray(values, base + s);
+                }
+            }
+            if (tabulated) {
+                for (int k = base; k < base + vectorEnd; k++) {
+                    values[k] = activation.approximate(values[k]);
+                }
+            }
+
+            // Step 2: The samples left over
+            for (; s < count; s++) {
+                double sum = biases[i];
+                for (int j = first; j < last; j++) {
+                    sum += values[sources[j] * count + s] * weights[j];
+                }
+                values[base + s] = approximate ? activation.approximate(sum) : activation.apply(sum);
+            }
+        }
+    }
+
+    @Override
+    public void predictChunk(Calculator network, float[] values, int count) {
+        float[] biases = network.floatBiases;
+        int[] offsets = network.offsets;
+        int[] sources = network.sources;
+        float[] weights = network.floatBatchWeights;
+        boolean approximate = network.approximate;
+
+        int lanes = FLOAT_SPECIES.length();
+        int vectorEnd = FLOAT_SPECIES.loopBound(count);
+        for (int i = network.inputCount; i < network.nodeCount; i++) {
+            int base = i * count;
+            int first = offsets[i];
+            int last = offsets[i + 1];
+            Activation activation = network.activations[i];
+            boolean tabulated = approximate && activation.isTabulated();
+
+            // Step 1: Full registers of samples
+            int s = 0;
+            for (; s < vectorEnd; s += lanes) {
+                FloatVector sum = FloatVector.broadcast(FLOAT_SPECIES, biases[i]);
+                for (int j = first; j < last; j++) {
+                    FloatVector value = FloatVector.fromArray(FLOAT_SPECIES, values, sources[j] * count + s);
+                    sum = sum.add(value.mul(weights[j]));
+                }
+
+                if (tabulated) {
+                    sum.intoArray(values, base + s);
+                } else {
+                    activate(activation, sum).intoArray(values, base + s);
+                }
+            }
+            if (tabulated) {
+                for (int k = base; k < base + vectorEnd; k++) {
+                    values[k] = activation.approximate(values[k]);
+                }
+            }
+
+            // Step 2: The samples left over
+            for (; s < count; s++) {
+                float sum = biases[i];
+                for (int j = first; j < last; j++) {
+                    sum += values[sources[j] * count + s] * weights[j];
+                }
+                values[base + s] = approximate ? activation.approximate(sum) : activation.apply(sum);
+            }
+        }
+    }
+
+    /**
+     * The same as {@link Activation#apply(double)}, for every lane at once.
+     */
+    private static DoubleVector activate(Activation activation, DoubleVector sum) {
+        DoubleVector zero = DoubleVector.zero(SPECIES);
+        return switch (activation) {
+            case SIGMOID -> DoubleVector.broadcast(SPECIES, 1.0).div(sum.mul(-4.9).lanewise(VectorOperators.EXP).add(1.0));
+            case TANH -> sum.lanewise(VectorOperators.TANH);
+            case RELU -> zero.blend(sum, sum.compare(VectorOperators.GT, 0.0));
+            case IDENTITY -> sum;
+            case GAUSSIAN -> sum.neg().mul(sum).lanewise(VectorOperators.EXP);
+            case ABS -> sum.abs();
+            case STEP -> zero.blend(1.0, sum.compare(VectorOperators.GT, 0.0));
+        };
+    }
+
+    /**
+     * The same as {@link Activation#apply(float)}, for every lane at once.
+     */
+    private static FloatVector activate(Activation activation, FloatVector sum) {
+        FloatVector zero = FloatVector.zero(FLOAT_SPECIES);
+        return switch (activation) {
+            case SIGMOID -> FloatVector.broadcast(FLOAT_SPECIES, 1f).div(sum.mul(-4.9f).lanewise(VectorOperators.EXP).add(1f));
+            case TANH -> sum.lanewise(VectorOperators.TANH);
+            case RELU -> zero.blend(sum, sum.compare(VectorOperators.GT, 0f));
+            case IDENTITY -> sum;
+            case GAUSSIAN -> sum.neg().mul(sum).lanewise(VectorOperators.EXP);
+            case ABS -> sum.abs();
+            case STEP -> zero.blend(1f, sum.compare(VectorOperators.GT, 0f));
+        };
+    }
+}
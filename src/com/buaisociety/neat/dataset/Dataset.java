@@ -0,0 +1,312 @@
+package com.buaisociety.neat.dataset;
+
+import com.buaisociety.neat.calculator.Calculator;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only table of rows, each holding the inputs of a network and the
+ * outputs it should give, which a {@link Calculator} is scored against with a
+ * {@link Loss}.
+ *
+ * <p>Datasets are usually {@link #open(Path) opened} from a file written by a
+ * {@link DatasetWriter}. The file is memory-mapped instead of read, so rows
+ * are only loaded by the operating system as they are used, the dataset
+ * does not take up any heap, and datasets larger than the heap work. Every
+ * thread reads the same mapped pages, so a dataset may be shared by every
+ * evaluation thread without copying it.
+ *
+ * <p>The file starts with a header, followed by the rows. Every value is a
+ * little-endian double, and each row holds its inputs followed by its
+ * targets:
+ * <pre>
+ * int magic, version
+ * int inputCount, targetCount
+ * long rowCount
+ * double[rowCount][inputCount + targetCount] rows
+ * </pre>
+ *
+ * <p>Small datasets, like the 4 rows of XOR, can be kept on the heap with
+ * {@link #of(double[][], double[][])} instead.
+ */
+public class Dataset {
+
+    /**
+     * "NDST" in ASCII.
+     */
+    public static final int MAGIC = 0x4E445354;
+    public static final int VERSION = 1;
+
+    static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+    static final int HEADER_SIZE = 4 * Integer.BYTES + Long.BYTES;
+
+    /**
+     * The number of rows predicted together. Matches the batch size of the
+     * calculator, so each chunk is a single batch.
+     */
+    private static final int CHUNK_ROWS = 256;
+
+    /**
+     * A single mapping can hold at most 2 GiB, so larger files are mapped as
+     * several regions of whole rows.
+     */
+    private static final long MAX_REGION_BYTES = Integer.MAX_VALUE;
+
+    private final int inputCount;
+    private final int targetCount;
+    private final long rowCount;
+
+    /**
+     * The rows, <code>regionRows</code> per region. Only absolute gets are
+     * used, which do not change the buffer, so the regions are safe to read
+     * from any number of threads.
+     */
+    private final DoubleBuffer[] regions;
+    private final long regionRows;
+
+    private Dataset(int inputCount, int targetCount, long rowCount, DoubleBuffer[] regions, long regionRows) {
+        this.inputCount = inputCount;
+        this.targetCount = targetCount;
+        this.rowCount = rowCount;
+        this.regions = regions;
+        this.regionRows = regionRows;
+    }
+
+    /**
+     * Memory-maps a dataset file written by a {@link DatasetWriter}. The file
+     * should not be changed while the dataset is in use.
+     *
+     * @param path The file of the dataset.
+     * @return The dataset.
+     * @throws IOException If the file could not be mapped, or is not a
+     *                     complete dataset.
+     */
+    public static Dataset open(Path path) throws IOException {
+        return open(path, MAX_REGION_BYTES);
+    }
+
+    static Dataset open(Path path, long maxRegionBytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            // Step 1: Check the header
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ORDER);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Not a dataset: " + path);
+                }
+            }
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a dataset: " + path);
+            }
+            int version = header.getInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported dataset version " + version + " (newest supported is " + VERSION + ")");
+            }
+            int inputCount = header.getInt();
+            int targetCount = header.getInt();
+            long rowCount = header.getLong();
+            if (inputCount < 1 || targetCount < 1 || rowCount < 0) {
+                throw new IOException("Corrupt dataset header: " + inputCount + " inputs, " + targetCount + " targets, " + rowCount + " rows");
+            }
+
+            long rowBytes = (long) (inputCount + targetCount) * Double.BYTES;
+            if (channel.size() < HEADER_SIZE + rowCount * rowBytes) {
+                throw new IOException("Dataset ends unexpectedly, expected " + rowCount + " rows: " + path);
+            }
+
+            // Step 2: Map the rows, in regions of whole rows. The mappings
+            // stay valid after the channel is closed
+            long regionRows = maxRegionBytes / rowBytes;
+            if (regionRows < 1) {
+                throw new IOException("Rows of " + rowBytes + " bytes are too large to map");
+            }
+            DoubleBuffer[] regions = new DoubleBuffer[(int) ((rowCount + regionRows - 1) / regionRows)];
+            for (int i = 0; i < regions.length; i++) {
+                long first = i * regionRows;
+                long rows = Math.min(regionRows, rowCount - first);
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * rowBytes, rows * rowBytes)
+                    .order(ORDER)
+                    .asDoubleBuffer();
+            }
+            return new Dataset(inputCount, targetCount, rowCount, regions, regionRows);
+        }
+    }
+
+    /**
+     * Creates a dataset on the heap from the given rows. The rows are copied,
+     * so changing the arrays afterward does not change the dataset.
+     *
+     * @param inputs The inputs of each row.
+     * @param targets The targets of each row.
+     * @return The dataset.
+     */
+    public static Dataset of(double[][] inputs, double[][] targets) {
+        if (inputs.length != targets.length) {
+            throw new IllegalArgumentException("Got " + inputs.length + " rows of inputs, but " + targets.length + " rows of targets");
+        }
+        if (inputs.length == 0) {
+            throw new IllegalArgumentException("A dataset needs at least 1 row");
+        }
+
+        int inputCount = inputs[0].length;
+        int targetCount = targets[0].length;
+        int width = inputCount + targetCount;
+        double[] rows = new double[inputs.length * width];
+        for (int r = 0; r < inputs.length; r++) {
+            if (inputs[r].length != inputCount || targets[r].length != targetCount) {
+                throw new IllegalArgumentException("Row " + r + " has " + inputs[r].length + " inputs and " + targets[r].length
+                    + " targets, expected " + inputCount + " and " + targetCount);
+            }
+            System.arraycopy(inputs[r], 0, rows, r * width, inputCount);
+            System.arraycopy(targets[r], 0, rows, r * width + inputCount, targetCount);
+        }
+        return new Dataset(inputCount, targetCount, inputs.length, new DoubleBuffer[]{DoubleBuffer.wrap(rows)}, inputs.length);
+    }
+
+    public int getInputCount() {
+        return inputCount;
+    }
+
+    public int getTargetCount() {
+        return targetCount;
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Creates the buffers {@link #evaluate(Calculator, Loss, long, long, Chunk)}
+     * copies rows into. A chunk may be reused for any number of evaluations,
+     * but only by 1 thread at a time.
+     *
+     * @return A new chunk, sized for this dataset.
+     */
+    public Chunk newChunk() {
+        return new Chunk((int) Math.min(CHUNK_ROWS, Math.max(rowCount, 1)), inputCount, targetCount);
+    }
+
+    /**
+     * Copies some rows into the given arrays, row-major, which is the layout
+     * {@link Calculator#predictBatch(double[], int, double[])} expects.
+     *
+     * @param firstRow The index of the first row to copy.
+     * @param count The number of rows to copy.
+     * @param inputs The array to copy the inputs into.
+     * @param targets The array to copy the targets into.
+     */
+    public void read(long firstRow, int count, double[] inputs, double[] targets) {
+        if (firstRow < 0 || count < 0 || firstRow + count > rowCount) {
+            throw new IndexOutOfBoundsException("Rows " + firstRow + " to " + (firstRow + count) + " of " + rowCount);
+        }
+
+        int width = inputCount + targetCount;
+        for (int r = 0; r < count; r++) {
+            long row = firstRow + r;
+            DoubleBuffer region = regions[(int) (row / regionRows)];
+            int index = (int) (row % regionRows) * width;
+            region.get(index, inputs, r * inputCount, inputCount);
+            region.get(index + inputCount, targets, r * targetCount, targetCount);
+        }
+    }
+
+    /**
+     * Predicts every row with the given calculator, and returns the average
+     * loss. Rows are streamed through the calculator a chunk at a time, so
+     * only a chunk of the dataset is ever copied onto the heap. Allocates a
+     * chunk of at most 256 rows for each call, use
+     * {@link #evaluate(Calculator, Loss, long, long, Chunk)} with a reused
+     * chunk to avoid that.
+     *
+     * <p>Each row is predicted on its own, so a {@link Calculator#isRecurrent()
+     * recurrent} network sees every row as the first step of an episode.
+     *
+     * @param calculator The network to score.
+     * @param loss How to compare the outputs with the targets.
+     * @return The average loss over every row.
+     */
+    public double evaluate(Calculator calculator, Loss loss) {
+        return evaluate(calculator, loss, 0, rowCount);
+    }
+
+    /**
+     * Predicts some rows with the given calculator, and returns the average
+     * loss, like {@link #evaluate(Calculator, Loss)}. Useful for scoring on a
+     * different slice of a large dataset each generation.
+     *
+     * @param calculator The network to score.
+     * @param loss How to compare the outputs with the targets.
+     * @param firstRow The index of the first row to predict.
+     * @param count The number of rows to predict.
+     * @return The average loss over the rows.
+     */
+    public double evaluate(Calculator calculator, Loss loss, long firstRow, long count) {
+        Chunk chunk = new Chunk((int) Math.min(CHUNK_ROWS, Math.max(count, 1)), inputCount, targetCount);
+        return evaluate(calculator, loss, firstRow, count, chunk);
+    }
+
+    /**
+     * Predicts some rows with the given calculator, and returns the average
+     * loss, like {@link #evaluate(Calculator, Loss, long, long)}, copying the
+     * rows into a chunk owned by the caller. Does not allocate, so a worker
+     * thread can keep 1 chunk for every evaluation it runs.
+     *
+     * @param calculator The network to score.
+     * @param loss How to compare the outputs with the targets.
+     * @param firstRow The index of the first row to predict.
+     * @param count The number of rows to predict.
+     * @param chunk The buffers to copy rows into, from {@link #newChunk()}.
+     * @return The average loss over the rows.
+     */
+    public double evaluate(Calculator calculator, Loss loss, long firstRow, long count, Chunk chunk) {
+        if (chunk.inputCount != inputCount || chunk.targetCount != targetCount) {
+            throw new IllegalArgumentException("Chunk is for " + chunk.inputCount + " inputs and " + chunk.targetCount
+                + " targets, but the dataset has " + inputCount + " inputs and " + targetCount + " targets");
+        }
+        if (calculator.getInputCount() != inputCount || calculator.getOutputCount() != targetCount) {
+            throw new IllegalArgumentException("Network has " + calculator.getInputCount() + " inputs and " + calculator.getOutputCount()
+                + " outputs, but the dataset has " + inputCount + " inputs and " + targetCount + " targets");
+        }
+        if (firstRow < 0 || count < 1 || firstRow + count > rowCount) {
+            throw new IndexOutOfBoundsException("Rows " + firstRow + " to " + (firstRow + count) + " of " + rowCount);
+        }
+
+        double sum = 0.0;
+        for (long done = 0; done < count; done += chunk.rows) {
+            int rows = (int) Math.min(chunk.rows, count - done);
+            read(firstRow + done, rows, chunk.inputs, chunk.targets);
+            calculator.predictBatch(chunk.inputs, rows, chunk.outputs);
+            sum += loss.sum(chunk.outputs, chunk.targets, rows, targetCount);
+        }
+        return sum / count;
+    }
+
+    /**
+     * The buffers for 1 chunk of rows, which are copied out of the dataset
+     * and predicted together.
+     */
+    public static final class Chunk {
+
+        private final int rows;
+        private final int inputCount;
+        private final int targetCount;
+        private final double[] inputs;
+        private final double[] targets;
+        private final double[] outputs;
+
+        private Chunk(int rows, int inputCount, int targetCount) {
+            this.rows = rows;
+            this.inputCount = inputCount;
+            this.targetCount = targetCount;
+            this.inputs = new double[rows * inputCount];
+            this.targets = new double[rows * targetCount];
+            this.outputs = new double[rows * targetCount];
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.buaisociety.neat.dataset;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a {@link Dataset} file 1 row at a time, so datasets larger than the
+ * heap can be created. Rows are buffered, and the number of rows is written
+ * into the header when the writer is {@link #close() closed}. A file that was
+ * not closed has 0 rows.
+ */
+public class DatasetWriter implements AutoCloseable {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final FileChannel channel;
+    private final int inputCount;
+    private final int targetCount;
+    private final ByteBuffer buffer;
+    private long rowCount;
+
+    /**
+     * Where the buffered rows are written to.
+     */
+    private long position = Dataset.HEADER_SIZE;
+
+    /**
+     * Creates a dataset file, replacing the file if it exists.
+     *
+     * @param path The file of the dataset.
+     * @param inputCount The number of inputs of each row.
+     * @param targetCount The number of targets of each row.
+     * @throws IOException If the file could not be created.
+     */
+    public DatasetWriter(Path path, int inputCount, int targetCount) throws IOException {
+        if (inputCount < 1 || targetCount < 1) {
+            throw new IllegalArgumentException("A dataset needs at least 1 input and 1 target, got " + inputCount + " and " + targetCount);
+        }
+
+        this.inputCount = inputCount;
+        this.targetCount = targetCount;
+        int rowBytes = (inputCount + targetCount) * Double.BYTES;
+        this.buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, rowBytes)).order(Dataset.ORDER);
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            writeHeader();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long getRowCount() {
+        return rowCount;
+    }
+
+    /**
+     * Appends a row.
+     *
+     * @param inputs The inputs of the row.
+     * @param targets The outputs a network should give for the inputs.
+     * @throws IOException If the row could not be written.
+     */
+    public void write(double[] inputs, double[] targets) throws IOException {
+        if (inputs.length != inputCount || targets.length != targetCount) {
+            throw new IllegalArgumentException("Expected " + inputCount + " inputs and " + targetCount + " targets, got "
+                + inputs.length + " and " + targets.length);
+        }
+        if (!channel.isOpen()) {
+            throw new IllegalStateException("Cannot write to a closed dataset");
+        }
+
+        if (buffer.remaining() < (inputCount + targetCount) * Double.BYTES) {
+            flushBuffer();
+        }
+        for (double input : inputs) {
+            buffer.putDouble(input);
+        }
+        for (double target : targets) {
+            buffer.putDouble(target);
+        }
+        rowCount++;
+    }
+
+    /**
+     * Writes the remaining rows and the row count, and forces the file to
+     * disk.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen()) {
+            return;
+        }
+        try {
+            flushBuffer();
+            writeHeader();
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(Dataset.HEADER_SIZE).order(Dataset.ORDER);
+        header.putInt(Dataset.MAGIC).putInt(Dataset.VERSION).putInt(inputCount).putInt(targetCount).putLong(rowCount).flip();
+        long written = 0;
+        while (header.hasRemaining()) {
+            written += channel.write(header, written);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+        buffer.clear();
+    }
+}
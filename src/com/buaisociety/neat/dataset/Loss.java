@@ -0,0 +1,95 @@
+package com.buaisociety.neat.dataset;
+
+/**
+ * How the outputs of a network are compared to the targets of a
+ * {@link Dataset}. Every loss is averaged over the rows, so datasets of any
+ * size give results on the same scale.
+ *
+ * <p>Lower is better for {@link #MEAN_SQUARED_ERROR} and
+ * {@link #CROSS_ENTROPY}, and higher is better for {@link #ACCURACY}. Fitness
+ * functions should flip the losses, since higher scores are better.
+ */
+public enum Loss {
+
+    /**
+     * The mean of <code>(output - target)^2</code> over every output of every
+     * row.
+     */
+    MEAN_SQUARED_ERROR,
+
+    /**
+     * The binary cross-entropy, <code>-(t ln(o) + (1 - t) ln(1 - o))</code>,
+     * averaged over every output of every row. Each output is its own
+     * probability between 0 and 1, like a {@link
+     * com.buaisociety.neat.genome.Activation#SIGMOID sigmoid} neuron. Outputs
+     * are clamped to <code>[1e-12, 1 - 1e-12]</code>, so a confidently wrong
+     * output gives a large loss instead of infinity.
+     */
+    CROSS_ENTROPY,
+
+    /**
+     * The fraction of rows the network gets right, between 0 and 1. With 1
+     * output, a row is right when the output and target are on the same side
+     * of 0.5. With more outputs, a row is right when the largest output is
+     * the same as the largest target.
+     */
+    ACCURACY;
+
+    private static final double EPSILON = 1e-12;
+
+    /**
+     * Adds up the loss of some rows, which is divided by the number of rows
+     * once every row is added.
+     *
+     * @param outputs The row-major outputs of the network.
+     * @param targets The row-major targets.
+     * @param rows The number of rows to add.
+     * @param width The number of outputs (and targets) per row.
+     * @return The sum of the loss of each row.
+     */
+    double sum(double[] outputs, double[] targets, int rows, int width) {
+        double sum = 0.0;
+        switch (this) {
+            case MEAN_SQUARED_ERROR -> {
+                int length = rows * width;
+                for (int i = 0; i < length; i++) {
+                    double diff = outputs[i] - targets[i];
+                    sum += diff * diff;
+                }
+                sum /= width;
+            }
+            case CROSS_ENTROPY -> {
+                int length = rows * width;
+                for (int i = 0; i < length; i++) {
+                    double output = Math.min(Math.max(outputs[i], EPSILON), 1.0 - EPSILON);
+                    double target = targets[i];
+                    sum -= target * Math.log(output) + (1.0 - target) * Math.log(1.0 - output);
+                }
+                sum /= width;
+            }
+            case ACCURACY -> {
+                for (int r = 0; r < rows; r++) {
+                    int row = r * width;
+                    if (width == 1) {
+                        if (outputs[row] >= 0.5 == targets[row] >= 0.5) {
+                            sum++;
+                        }
+                    } else if (argMax(outputs, row, width) == argMax(targets, row, width)) {
+                        sum++;
+                    }
+                }
+            }
+        }
+        return sum;
+    }
+
+    private static int argMax(double[] values, int start, int width) {
+        int best = 0;
+        for (int i = 1; i < width; i++) {
+            if (values[start + i] > values[start + best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,228 @@
+package com.buaisociety.neat.evaluation;
+
+import com.buaisociety.neat.Client;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scores every client of a population with an {@link AsyncFitnessFunction}.
+ * No thread is held while an evaluation is waiting, so a few threads can
+ * keep thousands of slow evaluations going.
+ *
+ * <p>At most {@link #getMaxInFlight()} evaluations run at once. Once that
+ * many are running, the calling thread waits for 1 of them to finish before
+ * starting the next, so a slow simulator is never flooded with requests.
+ *
+ * <p>Evaluations that take longer than {@link #getTimeout()} are cancelled.
+ * By default a timeout fails the whole evaluation, like an exception thrown
+ * by the fitness function. With {@link #setTimeoutScore(Double)}, the client
+ * gets that score instead.
+ */
+public class AsyncEvaluator {
+
+    private int maxInFlight = 1024;
+    private Duration timeout;
+    private Double timeoutScore;
+
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Sets how many evaluations may run at once. Defaults to 1024.
+     *
+     * @param maxInFlight The number of concurrent evaluations.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1, got " + maxInFlight);
+        }
+        this.maxInFlight = maxInFlight;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long 1 evaluation may take, or null to wait forever (the
+     * default).
+     *
+     * @param timeout The timeout of each evaluation.
+     */
+    public void setTimeout(Duration timeout) {
+        if (timeout != null && (timeout.isNegative() || timeout.isZero())) {
+            throw new IllegalArgumentException("timeout must be positive, got " + timeout);
+        }
+        this.timeout = timeout;
+    }
+
+    public Double getTimeoutScore() {
+        return timeoutScore;
+    }
+
+    /**
+     * Sets the score of clients whose evaluation timed out, or null to fail
+     * the whole evaluation instead (the default).
+     *
+     * @param timeoutScore The score given on timeout.
+     */
+    public void setTimeoutScore(Double timeoutScore) {
+        this.timeoutScore = timeoutScore;
+    }
+
+    /**
+     * Returns the number of evaluations that finished with a score, over
+     * every call to {@link #evaluate}.
+     *
+     * @return The number of scored evaluations.
+     */
+    public long getCompleted() {
+        return completed.sum();
+    }
+
+    /**
+     * Returns the number of evaluations that timed out, over every call to
+     * {@link #evaluate}.
+     *
+     * @return The number of timeouts.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * Scores every client using the given fitness function, reusing the
+     * cached score of every genome that has already been scored, and blocks
+     * until every client has its score set. After a failure, no more
+     * evaluations are started, and the ones already running are waited for.
+     *
+     * @param generation The generation being evaluated, used in errors.
+     * @param clients The clients to evaluate.
+     * @param fitness The fitness function to score each client with.
+     * @param cache The cache of scores, or null to evaluate every client.
+     * @throws IllegalStateException If any evaluation failed or timed out
+     *                               without a timeout score, or the thread
+     *                               is interrupted.
+     */
+    public void evaluate(int generation, List<Client> clients, AsyncFitnessFunction fitness, FitnessCache cache) {
+        Semaphore permits = new Semaphore(maxInFlight);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<CompletableFuture<Double>> started = new ArrayList<>();
+        List<CompletableFuture<Void>> running = new ArrayList<>();
+        Duration timeout = this.timeout;
+        Double timeoutScore = this.timeoutScore;
+
+        try {
+            for (Client client : clients) {
+                long version = cache == null ? 0 : client.getGenome().getVersion();
+                Double cached = cache == null ? null : cache.get(version);
+                if (cached != null) {
+                    client.setScore(cached);
+                    continue;
+                }
+
+                // Step 1: Wait for room, which is the backpressure on the
+                // fitness function
+                permits.acquire();
+                if (failure.get() != null) {
+                    permits.release();
+                    break;
+                }
+
+                // Step 2: Start the evaluation
+                CompletableFuture<Double> score;
+                try {
+                    score = fitness.evaluate(client).toCompletableFuture();
+                    started.add(score);
+                } catch (RuntimeException e) {
+                    permits.release();
+                    failure.compareAndSet(null, e);
+                    break;
+                }
+
+                // Step 3: Limit it, without changing the caller's future
+                CompletableFuture<Double> limited = timeout == null
+                    ? score
+                    : score.copy().orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+                running.add(limited.handle((value, error) -> {
+                    permits.release();
+                    finish(client, version, cache, score, value, unwrap(error), timeoutScore, failure);
+                    return null;
+                }));
+            }
+
+            CompletableFuture.allOf(running.toArray(new CompletableFuture<?>[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (CompletableFuture<Double> score : started) {
+                score.cancel(true);
+            }
+            throw new IllegalStateException("Interrupted while evaluating generation " + generation, e);
+        } catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause());
+        }
+
+        if (failure.get() != null) {
+            throw new IllegalStateException("Failed to evaluate a client in generation " + generation, failure.get());
+        }
+        if (cache != null) {
+            cache.advance();
+        }
+    }
+
+    /**
+     * Runs on whichever thread completed the evaluation.
+     */
+    private void finish(Client client, long version, FitnessCache cache, CompletableFuture<Double> score,
+                        Double value, Throwable error, Double timeoutScore, AtomicReference<Throwable> failure) {
+        if (error instanceof TimeoutException) {
+            timeouts.increment();
+
+            // Lets the fitness function stop waiting, if it listens
+            score.cancel(true);
+            if (timeoutScore == null) {
+                failure.compareAndSet(null, new TimeoutException("Client " + client.getId() + " took longer than " + timeout));
+                return;
+            }
+
+            // Timeout scores are not cached, the next try may be faster
+            client.setScore(timeoutScore);
+            return;
+        }
+
+        if (error == null && value == null) {
+            error = new NullPointerException("Client " + client.getId() + " was scored with null");
+        }
+        if (error != null) {
+            failure.compareAndSet(null, error);
+            return;
+        }
+
+        client.setScore(value);
+        completed.increment();
+        if (cache != null) {
+            cache.put(version, value);
+        }
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while (error instanceof CompletionException && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+}
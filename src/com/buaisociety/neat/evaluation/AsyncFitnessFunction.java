@@ -0,0 +1,60 @@
+package com.buaisociety.neat.evaluation;
+
+import com.buaisociety.neat.Client;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Scores a {@link Client} without blocking the calling thread, for fitness
+ * functions that spend most of their time waiting on simulators, game
+ * servers or other processes. Higher scores are better.
+ *
+ * <p>{@link #evaluate(Client)} should only start the evaluation and return
+ * quickly, since it is called from the thread that evaluates the population.
+ * The returned stage may be completed from any thread.
+ *
+ * @see AsyncEvaluator
+ */
+@FunctionalInterface
+public interface AsyncFitnessFunction {
+
+    /**
+     * Starts scoring the given client.
+     *
+     * @param client The client to score.
+     * @return A stage that completes with the score of the client.
+     */
+    CompletionStage<Double> evaluate(Client client);
+
+    /**
+     * Runs a blocking fitness function on 1 virtual thread per client.
+     * Blocked virtual threads do not hold on to a platform thread, so
+     * thousands of waiting evaluations only need a few platform threads. If
+     * an evaluation times out, its thread is interrupted.
+     *
+     * @param fitness The blocking fitness function.
+     * @return The asynchronous fitness function.
+     */
+    static AsyncFitnessFunction onVirtualThreads(FitnessFunction fitness) {
+        return client -> {
+            CompletableFuture<Double> score = new CompletableFuture<>();
+            Thread thread = Thread.ofVirtual().name("neat-fitness-" + client.getId()).unstarted(() -> {
+                try {
+                    score.complete(fitness.evaluate(client));
+                } catch (Throwable e) {
+                    score.completeExceptionally(e);
+                }
+            });
+
+            // Cancelled evaluations should stop waiting
+            score.whenComplete((result, error) -> {
+                if (score.isCancelled()) {
+                    thread.interrupt();
+                }
+            });
+            thread.start();
+            return score;
+        };
+    }
+}
@@ -0,0 +1,79 @@
+package com.buaisociety.neat.evaluation;
+
+/**
+ * How long it took to evaluate every client in 1 generation.
+ */
+public class EvaluationTiming {
+
+    private final int generation;
+    private final int clients;
+    private final int threads;
+    private final long wallNanos;
+    private final long busyNanos;
+
+    public EvaluationTiming(int generation, int clients, int threads, long wallNanos, long busyNanos) {
+        this.generation = generation;
+        this.clients = clients;
+        this.threads = threads;
+        this.wallNanos = wallNanos;
+        this.busyNanos = busyNanos;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the time between starting the first evaluation and finishing
+     * the last evaluation.
+     *
+     * @return The elapsed time, in nanoseconds.
+     */
+    public long getWallNanos() {
+        return wallNanos;
+    }
+
+    /**
+     * Returns the total time spent inside the fitness function, summed over
+     * all clients.
+     *
+     * @return The summed evaluation time, in nanoseconds.
+     */
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    /**
+     * Returns how well the threads were used, from 0 (idle) to 1 (every
+     * thread was evaluating for the whole generation).
+     *
+     * @return The utilization of the threads.
+     */
+    public double getUtilization() {
+        if (wallNanos == 0 || threads == 0) {
+            return 0.0;
+        }
+
+        return (double) busyNanos / ((double) wallNanos * threads);
+    }
+
+    @Override
+    public String toString() {
+        return "EvaluationTiming{" +
+            "generation=" + generation +
+            ", clients=" + clients +
+            ", threads=" + threads +
+            ", wallMillis=" + wallNanos / 1_000_000 +
+            ", busyMillis=" + busyNanos / 1_000_000 +
+            ", utilization=" + getUtilization() +
+            '}';
+    }
+}
@@ -0,0 +1,118 @@
+package com.buaisociety.neat.evaluation;
+
+import com.buaisociety.neat.Client;
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.Precision;
+import com.buaisociety.neat.genome.Activation;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.InnovationRegistry;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * The main class of a worker process started by a {@link WorkerPool}. A
+ * worker connects back to the pool, then scores every genome it is sent with
+ * its own instance of the fitness function, 1 at a time, until the pool
+ * closes the connection.
+ *
+ * <p>The worker keeps its own {@link Neat}, which only knows the nodes the
+ * pool has sent it. That is enough to build a
+ * {@link com.buaisociety.neat.calculator.Calculator}, but the registry of the
+ * worker has no connections, so fitness functions should not discover new
+ * innovations.
+ *
+ * <p>Usage: <code>EvaluationWorker socket worker fitnessClass inputs outputs
+ * precision approximate</code>. Started by the pool, not by hand.
+ */
+public final class EvaluationWorker {
+
+    private EvaluationWorker() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 7) {
+            throw new IllegalArgumentException("Expected 7 arguments, got " + args.length);
+        }
+
+        Path socket = Path.of(args[0]);
+        int worker = Integer.parseInt(args[1]);
+        FitnessFunction fitness = Class.forName(args[2])
+            .asSubclass(FitnessFunction.class)
+            .getDeclaredConstructor()
+            .newInstance();
+        Neat neat = new Neat(Integer.parseInt(args[3]), Integer.parseInt(args[4]), 0, Precision.valueOf(args[5]));
+        Activation.setApproximate(Boolean.parseBoolean(args[6]));
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+
+            ByteBuffer out = WorkerProtocol.begin(null, WorkerProtocol.HELLO, 12);
+            out.putInt(WorkerProtocol.MAGIC).putInt(WorkerProtocol.VERSION).putInt(worker);
+            WorkerProtocol.send(channel, out);
+
+            ByteBuffer in = null;
+            while (true) {
+                try {
+                    in = WorkerProtocol.receive(channel, in);
+                } catch (EOFException e) {
+                    // The pool closed the connection
+                    return;
+                }
+
+                byte type = in.get();
+                switch (type) {
+                    case WorkerProtocol.NODES -> restoreNodes(neat.getRegistry(), in);
+                    case WorkerProtocol.EVALUATE -> out = evaluate(neat, fitness, in, out, channel);
+                    default -> throw new IOException("Unknown message type: " + type);
+                }
+            }
+        }
+    }
+
+    private static void restoreNodes(InnovationRegistry registry, ByteBuffer in) {
+        int count = in.getInt();
+        for (int i = 0; i < count; i++) {
+            int id = in.getInt();
+            double x = in.getDouble();
+            double y = in.getDouble();
+            double bias = in.getDouble();
+
+            // The inputs and outputs were already created by the Neat constructor
+            if (registry.getNode(id) == null) {
+                registry.restoreNode(id, x, y, bias);
+            }
+        }
+    }
+
+    private static ByteBuffer evaluate(Neat neat, FitnessFunction fitness, ByteBuffer in, ByteBuffer out, SocketChannel channel) throws IOException {
+        int request = in.getInt();
+        int clientId = in.getInt();
+        Genome genome = WorkerProtocol.getGenome(in, neat);
+        Client client = new Client(neat, clientId, genome);
+
+        double score;
+        try {
+            score = fitness.evaluate(client);
+        } catch (RuntimeException e) {
+            // Exceptions are reported instead of crashing, since they would
+            // happen again on any other worker
+            byte[] message = String.valueOf(e).getBytes(StandardCharsets.UTF_8);
+            out = WorkerProtocol.begin(out, WorkerProtocol.FAILURE, 8 + message.length);
+            out.putInt(request).putInt(message.length).put(message);
+            WorkerProtocol.send(channel, out);
+            return out;
+        }
+
+        out = WorkerProtocol.begin(out, WorkerProtocol.SCORE, 12);
+        out.putInt(request).putDouble(score);
+        WorkerProtocol.send(channel, out);
+        return out;
+    }
+}
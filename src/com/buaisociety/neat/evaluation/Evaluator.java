@@ -0,0 +1,233 @@
+package com.buaisociety.neat.evaluation;
+
+import com.buaisociety.neat.Client;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Scores every client of a population concurrently, using a
+ * {@link FitnessFunction}.
+ *
+ * <p>Each client is evaluated by exactly 1 task, and each client owns its own
+ * {@link com.buaisociety.neat.calculator.Calculator}, so no calculator state is
+ * shared between threads. The calculator is built inside the task, so building
+ * calculators is also done in parallel.
+ *
+ * <p>Evaluators that create their own threads should be {@link #close() closed}
+ * when they are no longer needed.
+ */
+public class Evaluator implements AutoCloseable {
+
+    /**
+     * The number of generations of {@link EvaluationTiming timings} to keep.
+     */
+    private static final int TIMING_HISTORY = 100;
+
+    /**
+     * Which kind of threads are used to evaluate clients.
+     */
+    public enum Strategy {
+
+        /**
+         * Work-stealing {@link ForkJoinPool}. Good for CPU-bound fitness
+         * functions.
+         */
+        FORK_JOIN,
+
+        /**
+         * A fixed number of platform threads.
+         */
+        FIXED_POOL,
+
+        /**
+         * 1 virtual thread per client. Good for fitness functions that spend
+         * most of their time waiting (on simulators, servers, files, ...).
+         */
+        VIRTUAL_THREADS
+    }
+
+    private final Strategy strategy;
+    private final int threads;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final Deque<EvaluationTiming> timings = new ArrayDeque<>();
+
+    /**
+     * Creates an evaluator that uses 1 thread per available processor. The
+     * {@link Strategy#FORK_JOIN} strategy uses the common pool.
+     *
+     * @param strategy Which kind of threads to use.
+     */
+    public Evaluator(Strategy strategy) {
+        this(strategy, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates an evaluator.
+     *
+     * @param strategy Which kind of threads to use.
+     * @param threads The number of threads to use. Ignored by
+     *                {@link Strategy#VIRTUAL_THREADS}, which is unbounded.
+     */
+    public Evaluator(Strategy strategy, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be at least 1, got " + threads);
+        }
+
+        this.strategy = strategy;
+        this.threads = threads;
+        switch (strategy) {
+            case FORK_JOIN -> {
+                boolean useCommon = threads == ForkJoinPool.getCommonPoolParallelism();
+                this.executor = useCommon ? ForkJoinPool.commonPool() : new ForkJoinPool(threads);
+                this.ownsExecutor = !useCommon;
+            }
+            case FIXED_POOL -> {
+                this.executor = Executors.newFixedThreadPool(threads);
+                this.ownsExecutor = true;
+            }
+            case VIRTUAL_THREADS -> {
+                this.executor = Executors.newVirtualThreadPerTaskExecutor();
+                this.ownsExecutor = true;
+            }
+            default -> throw new IllegalArgumentException("Unknown strategy: " + strategy);
+        }
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Returns the threads that clients are evaluated on, for callers that
+     * schedule evaluations themselves. Close the evaluator instead of
+     * shutting down the executor.
+     *
+     * @return The executor.
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Scores every client using the given fitness function, and blocks until
+     * every client has its score set.
+     *
+     * @param generation The generation being evaluated, used for timings.
+     * @param clients The clients to evaluate.
+     * @param fitness The fitness function to score each client with.
+     * @throws IllegalStateException If the fitness function throws for any client.
+     */
+    public void evaluate(int generation, List<Client> clients, FitnessFunction fitness) {
+        evaluate(generation, clients, fitness, null);
+    }
+
+    /**
+     * Scores every client using the given fitness function, reusing the
+     * cached score of every genome that has already been scored.
+     *
+     * @param generation The generation being evaluated, used for timings.
+     * @param clients The clients to evaluate.
+     * @param fitness The fitness function to score each client with.
+     * @param cache The cache of scores, or null to evaluate every client.
+     * @throws IllegalStateException If the fitness function throws for any client.
+     */
+    public void evaluate(int generation, List<Client> clients, FitnessFunction fitness, FitnessCache cache) {
+        LongAdder busyNanos = new LongAdder();
+        List<Callable<Void>> tasks = new ArrayList<>(clients.size());
+        for (Client client : clients) {
+            tasks.add(() -> {
+                // Each task only touches its own client's genome, so the
+                // version can be calculated here
+                long version = cache == null ? 0 : client.getGenome().getVersion();
+                Double cached = cache == null ? null : cache.get(version);
+                if (cached != null) {
+                    client.setScore(cached);
+                    return null;
+                }
+
+                long start = System.nanoTime();
+                double score = fitness.evaluate(client);
+                busyNanos.add(System.nanoTime() - start);
+
+                client.setScore(score);
+                if (cache != null) {
+                    cache.put(version, score);
+                }
+                return null;
+            });
+        }
+
+        long start = System.nanoTime();
+        try {
+            for (Future<Void> future : executor.invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while evaluating generation " + generation, e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to evaluate a client in generation " + generation, e.getCause());
+        }
+        long wallNanos = System.nanoTime() - start;
+        if (cache != null) {
+            cache.advance();
+        }
+
+        int usedThreads = strategy == Strategy.VIRTUAL_THREADS ? Math.min(threads, clients.size()) : threads;
+        addTiming(new EvaluationTiming(generation, clients.size(), usedThreads, wallNanos, busyNanos.sum()));
+    }
+
+    private void addTiming(EvaluationTiming timing) {
+        synchronized (timings) {
+            timings.addLast(timing);
+            if (timings.size() > TIMING_HISTORY) {
+                timings.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Returns the timings of the most recent generations, oldest first.
+     *
+     * @return A copy of the recent timings.
+     */
+    public List<EvaluationTiming> getTimings() {
+        synchronized (timings) {
+            return new ArrayList<>(timings);
+        }
+    }
+
+    /**
+     * Returns the timing of the most recently evaluated generation, or null
+     * if nothing has been evaluated yet.
+     *
+     * @return The most recent timing.
+     */
+    public EvaluationTiming getLastTiming() {
+        synchronized (timings) {
+            return timings.peekLast();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownsExecutor) {
+            executor.close();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.buaisociety.neat.evaluation;
+
+import com.buaisociety.neat.genome.Genome;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the scores of genomes, so a genome that has not changed since it
+ * was last scored is not evaluated again. Scores are keyed by
+ * {@link Genome#getVersion() version}, so an unchanged genome, and every
+ * unchanged clone of it, reuses the same score.
+ *
+ * <p>Only use a cache with a deterministic fitness function that depends on
+ * nothing but the genome. A fitness function that uses randomness, the
+ * client's id, or anything that changes between generations would get stale
+ * scores.
+ *
+ * <p>Scores that are not used for a whole evaluation are dropped, which keeps
+ * the cache from growing forever.
+ *
+ * @see com.buaisociety.neat.Neat#setFitnessCache(FitnessCache)
+ */
+public class FitnessCache {
+
+    private Map<Long, Double> current = new ConcurrentHashMap<>();
+    private Map<Long, Double> previous = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return current.size() + previous.size();
+    }
+
+    /**
+     * Forgets every score, for example after changing the fitness function.
+     */
+    public synchronized void clear() {
+        current = new ConcurrentHashMap<>();
+        previous = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Returns the cached score of a genome version, or null if it has not
+     * been scored recently.
+     */
+    public Double get(long version) {
+        Double score = current.get(version);
+        if (score == null) {
+            score = previous.get(version);
+            if (score != null) {
+                current.put(version, score);
+            }
+        }
+
+        if (score != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return score;
+    }
+
+    public void put(long version, double score) {
+        current.put(version, score);
+    }
+
+    /**
+     * Called after every evaluation of the whole population. Scores that
+     * were not used during the evaluation are dropped at the end of the next
+     * one.
+     */
+    public synchronized void advance() {
+        previous = current;
+        current = new ConcurrentHashMap<>();
+    }
+}
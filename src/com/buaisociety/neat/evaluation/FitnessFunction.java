@@ -0,0 +1,21 @@
+package com.buaisociety.neat.evaluation;
+
+import com.buaisociety.neat.Client;
+
+/**
+ * Scores how well a {@link Client} performs. Higher scores are better.
+ *
+ * <p>Fitness functions may be called from many threads at once (1 client per
+ * thread), so they should not modify any shared state.
+ */
+@FunctionalInterface
+public interface FitnessFunction {
+
+    /**
+     * Calculates the score of the given client.
+     *
+     * @param client The client to score.
+     * @return The score of the client.
+     */
+    double evaluate(Client client);
+}
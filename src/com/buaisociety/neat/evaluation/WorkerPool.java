@@ -0,0 +1,681 @@
+package com.buaisociety.neat.evaluation;
+
+import com.buaisociety.neat.Client;
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.genome.Activation;
+import com.buaisociety.neat.genome.InnovationRegistry;
+import com.buaisociety.neat.genome.NodeGene;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Scores clients in separate worker processes, so a fitness function that
+ * leaks, crashes or hangs (like a native simulator) cannot take the
+ * evolution down with it.
+ *
+ * <p>The pool starts {@link #getSize()} JVMs running {@link EvaluationWorker},
+ * with the same class path as this JVM. Each worker connects back over a Unix
+ * domain socket, and creates its own instance of the fitness function, which
+ * must have a public no-argument constructor. Genomes are sent in the compact
+ * binary form of {@link WorkerProtocol}, along with any nodes the worker has
+ * not seen yet.
+ *
+ * <p>Each worker is sent up to {@link #getPipelineDepth()} genomes at once,
+ * so it never waits on the pool between genomes. Scores are collected by 1
+ * reader thread per worker. When a worker dies, or takes longer than
+ * {@link #getTimeout()} to score a genome, it is killed and replaced, and
+ * its unfinished genomes are sent to other workers. A genome that kills
+ * {@link #getMaxAttempts()} workers fails the evaluation. An exception thrown
+ * by the fitness function fails the evaluation right away, since it would
+ * happen again on any other worker.
+ *
+ * <p>A pool is bound to the {@link Neat} it first evaluates, since workers
+ * mirror its nodes. Pools should be {@link #close() closed} when they are no
+ * longer needed, which stops every worker.
+ *
+ * @see Neat#evaluate(WorkerPool)
+ */
+public class WorkerPool implements AutoCloseable {
+
+    private static final long STARTUP_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long POLL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final String fitnessClass;
+    private final int size;
+    private Duration timeout = Duration.ofMinutes(1);
+    private int pipelineDepth = 2;
+    private int maxAttempts = 3;
+    private List<String> jvmArguments = List.of();
+
+    /**
+     * Guards the requests, and the in-flight requests of every worker.
+     * Sockets are never written while holding the lock, so a worker that
+     * stops reading can always be killed.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final Deque<Request> pending = new ArrayDeque<>();
+    private int remaining;
+    private String failure;
+    private int nextRequest;
+    private FitnessCache cache;
+
+    private Neat neat;
+    private Path directory;
+    private Path socket;
+    private ServerSocketChannel server;
+    private Worker[] workers;
+    private Thread watchdog;
+    private volatile boolean closed;
+
+    /**
+     * Creates a pool with 1 worker per available processor.
+     *
+     * @param fitnessClass The fitness function each worker creates.
+     */
+    public WorkerPool(Class<? extends FitnessFunction> fitnessClass) {
+        this(fitnessClass, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a pool. No processes are started until the first evaluation.
+     *
+     * @param fitnessClass The fitness function each worker creates. Must
+     *                     have a public no-argument constructor.
+     * @param size The number of worker processes.
+     */
+    public WorkerPool(Class<? extends FitnessFunction> fitnessClass, int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1, got " + size);
+        }
+        this.fitnessClass = fitnessClass.getName();
+        this.size = size;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public Duration getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Sets how long a worker may take to score 1 genome before it is killed.
+     *
+     * @param timeout The maximum time per genome.
+     */
+    public void setTimeout(Duration timeout) {
+        if (timeout.isNegative() || timeout.isZero()) {
+            throw new IllegalArgumentException("timeout must be positive, got " + timeout);
+        }
+        this.timeout = timeout;
+    }
+
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Sets the most genomes sent to a worker before it has answered any of
+     * them.
+     *
+     * @param pipelineDepth The number of genomes in flight per worker.
+     */
+    public void setPipelineDepth(int pipelineDepth) {
+        if (pipelineDepth < 1) {
+            throw new IllegalArgumentException("pipelineDepth must be at least 1, got " + pipelineDepth);
+        }
+        this.pipelineDepth = pipelineDepth;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Sets how many workers a genome may kill (by crashing or timing out)
+     * before the evaluation fails.
+     *
+     * @param maxAttempts The number of attempts per genome.
+     */
+    public void setMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1, got " + maxAttempts);
+        }
+        this.maxAttempts = maxAttempts;
+    }
+
+    public List<String> getJvmArguments() {
+        return jvmArguments;
+    }
+
+    /**
+     * Sets extra arguments for the worker JVMs, like <code>-Xmx512m</code>.
+     * Only affects workers started afterwards.
+     *
+     * @param jvmArguments The JVM arguments.
+     */
+    public void setJvmArguments(List<String> jvmArguments) {
+        this.jvmArguments = List.copyOf(jvmArguments);
+    }
+
+    /**
+     * Scores every client of the given population in the worker processes,
+     * and blocks until every client has its score set.
+     *
+     * @param neat The population to evaluate.
+     * @param cache The cache of scores, or null to evaluate every client.
+     * @throws IllegalArgumentException If this pool already evaluated a different population.
+     * @throws IllegalStateException If the evaluation fails, or this pool is closed.
+     */
+    public void evaluate(Neat neat, FitnessCache cache) {
+        if (closed) {
+            throw new IllegalStateException("Cannot evaluate with a closed worker pool");
+        }
+        if (this.neat == null) {
+            start(neat);
+        } else if (this.neat != neat) {
+            throw new IllegalArgumentException("A worker pool can only evaluate 1 population");
+        }
+
+        // Step 1: Queue every client that does not have a cached score
+        lock.lock();
+        try {
+            pending.clear();
+            failure = null;
+            remaining = 0;
+            this.cache = cache;
+            for (Client client : neat.getClients()) {
+                long version = cache == null ? 0 : client.getGenome().getVersion();
+                Double cached = cache == null ? null : cache.get(version);
+                if (cached != null) {
+                    client.setScore(cached);
+                } else {
+                    pending.add(new Request(client, version));
+                    remaining++;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        // Step 2: Keep every worker busy until every score is in
+        try {
+            while (true) {
+                replaceDeadWorkers();
+
+                List<Request> assigned = new ArrayList<>();
+                lock.lock();
+                try {
+                    if (failure != null) {
+                        throw new IllegalStateException(failure);
+                    }
+                    if (remaining == 0) {
+                        break;
+                    }
+
+                    for (Worker worker : workers) {
+                        while (!worker.dead && worker.inFlight.size() < pipelineDepth && !pending.isEmpty()) {
+                            Request request = pending.poll();
+                            request.id = nextRequest++;
+                            request.worker = worker;
+                            if (worker.inFlight.isEmpty()) {
+                                worker.startedAt = System.nanoTime();
+                            }
+                            worker.inFlight.add(request);
+                            assigned.add(request);
+                        }
+                    }
+                    if (assigned.isEmpty()) {
+                        changed.awaitNanos(POLL_NANOS);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                for (Request request : assigned) {
+                    request.worker.send(request);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while evaluating generation " + neat.getGenerationNumber(), e);
+        } finally {
+            // Anything still queued or in flight belongs to a failed
+            // evaluation. Workers with answers still coming are replaced, so
+            // those answers are never mixed up with the next evaluation.
+            List<Worker> busy = new ArrayList<>();
+            lock.lock();
+            try {
+                pending.clear();
+                remaining = 0;
+                this.cache = null;
+                for (Worker worker : workers) {
+                    if (!worker.dead && !worker.inFlight.isEmpty()) {
+                        worker.dead = true;
+                        worker.inFlight.clear();
+                        busy.add(worker);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Worker worker : busy) {
+                worker.kill();
+            }
+        }
+
+        if (cache != null) {
+            cache.advance();
+        }
+    }
+
+    // ---------------------------------------------------------------------
+    // Workers
+    // ---------------------------------------------------------------------
+
+    private void start(Neat neat) {
+        try {
+            this.directory = Files.createTempDirectory("neat-workers");
+            this.socket = directory.resolve("pool.sock");
+            this.server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            server.configureBlocking(false);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not open the worker socket", e);
+        }
+
+        this.neat = neat;
+        this.workers = new Worker[size];
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            all.add(i);
+        }
+        try {
+            spawn(all);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+
+        this.watchdog = new Thread(this::watch, "neat-worker-watchdog");
+        watchdog.setDaemon(true);
+        watchdog.start();
+    }
+
+    private void replaceDeadWorkers() {
+        List<Integer> dead = new ArrayList<>();
+        for (int i = 0; i < workers.length; i++) {
+            if (workers[i].dead) {
+                dead.add(i);
+            }
+        }
+        if (!dead.isEmpty()) {
+            spawn(dead);
+        }
+    }
+
+    /**
+     * Starts a process for each of the given worker slots, then waits for
+     * all of them to connect.
+     */
+    private void spawn(List<Integer> slots) {
+        Process[] processes = new Process[size];
+        for (int slot : slots) {
+            List<String> command = new ArrayList<>();
+            command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+            command.addAll(jvmArguments);
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(EvaluationWorker.class.getName());
+            command.add(socket.toString());
+            command.add(Integer.toString(slot));
+            command.add(fitnessClass);
+            command.add(Integer.toString(neat.getNumInputNodes()));
+            command.add(Integer.toString(neat.getNumOutputNodes()));
+            command.add(neat.getPrecision().name());
+            command.add(Boolean.toString(Activation.isApproximate()));
+            try {
+                processes[slot] = new ProcessBuilder(command).inheritIO().start();
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not start worker " + slot, e);
+            }
+        }
+
+        // Workers say which slot they are when they connect, since they may
+        // connect in any order
+        int waiting = slots.size();
+        long deadline = System.nanoTime() + STARTUP_TIMEOUT_NANOS;
+        try {
+            while (waiting > 0) {
+                SocketChannel channel = server.accept();
+                if (channel == null) {
+                    for (int slot : slots) {
+                        if (processes[slot] != null && !processes[slot].isAlive()) {
+                            throw new IllegalStateException("Worker " + slot + " exited with code " + processes[slot].exitValue() + " before connecting");
+                        }
+                    }
+                    if (System.nanoTime() > deadline) {
+                        throw new IllegalStateException("Workers did not connect within " + TimeUnit.NANOSECONDS.toSeconds(STARTUP_TIMEOUT_NANOS) + " seconds");
+                    }
+                    Thread.sleep(5);
+                    continue;
+                }
+
+                channel.configureBlocking(true);
+                ByteBuffer hello = WorkerProtocol.receive(channel, null);
+                if (hello.get() != WorkerProtocol.HELLO || hello.getInt() != WorkerProtocol.MAGIC || hello.getInt() != WorkerProtocol.VERSION) {
+                    channel.close();
+                    continue;
+                }
+                int slot = hello.getInt();
+                if (slot < 0 || slot >= size || processes[slot] == null) {
+                    channel.close();
+                    continue;
+                }
+
+                Worker worker = new Worker(slot, processes[slot], channel);
+                processes[slot] = null;
+                lock.lock();
+                try {
+                    workers[slot] = worker;
+                } finally {
+                    lock.unlock();
+                }
+                worker.reader.start();
+                waiting--;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not connect to the workers", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while starting workers", e);
+        } finally {
+            for (Process process : processes) {
+                if (process != null) {
+                    process.destroyForcibly();
+                }
+            }
+        }
+    }
+
+    /**
+     * Kills workers that have spent too long on their current genome. Runs
+     * on its own thread, since the evaluating thread may be stuck writing to
+     * the very worker that hangs.
+     */
+    private void watch() {
+        while (!closed) {
+            try {
+                Thread.sleep(Math.max(1, Math.min(timeout.toMillis() / 4, 100)));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            lock.lock();
+            try {
+                for (Worker worker : workers) {
+                    if (worker != null && !worker.dead && !worker.inFlight.isEmpty() && now - worker.startedAt > timeout.toNanos()) {
+                        fail(worker);
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Marks a worker as dead and kills it. Its unfinished genomes are sent
+     * again, and the genome it was working on counts as a failed attempt.
+     * Does nothing if the worker is already dead.
+     */
+    private void fail(Worker worker) {
+        lock.lock();
+        try {
+            if (worker.dead) {
+                return;
+            }
+            worker.dead = true;
+
+            Request current = worker.inFlight.peekFirst();
+            if (current != null && ++current.attempts >= maxAttempts && failure == null) {
+                failure = "Client " + current.client.getId() + " killed " + current.attempts + " workers";
+            }
+            while (!worker.inFlight.isEmpty()) {
+                pending.addFirst(worker.inFlight.pollLast());
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        worker.kill();
+    }
+
+    /**
+     * Stops every worker. Workers exit when their connection closes, and are
+     * killed if they have not exited after a second.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        if (watchdog != null) {
+            watchdog.interrupt();
+        }
+        if (workers != null) {
+            for (Worker worker : workers) {
+                if (worker != null) {
+                    worker.dead = true;
+                    try {
+                        worker.channel.close();
+                    } catch (IOException ignored) {
+                        // Already closed
+                    }
+                }
+            }
+            for (Worker worker : workers) {
+                if (worker != null) {
+                    try {
+                        if (!worker.process.waitFor(1, TimeUnit.SECONDS)) {
+                            worker.process.destroyForcibly();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        worker.process.destroyForcibly();
+                    }
+                }
+            }
+        }
+
+        try {
+            if (server != null) {
+                server.close();
+                Files.deleteIfExists(socket);
+                Files.deleteIfExists(directory);
+            }
+        } catch (IOException ignored) {
+            // Temporary files are cleaned up by the OS eventually
+        }
+    }
+
+    /**
+     * 1 client waiting to be scored.
+     */
+    private static final class Request {
+        final Client client;
+        final long version;
+        int id;
+        int attempts;
+        Worker worker;
+
+        Request(Client client, long version) {
+            this.client = client;
+            this.version = version;
+        }
+    }
+
+    /**
+     * 1 worker process, and the genomes it has been sent but not scored.
+     * Written to only by the evaluating thread, and read from only by its
+     * reader thread.
+     */
+    private final class Worker {
+        final int slot;
+        final Process process;
+        final SocketChannel channel;
+        final Thread reader;
+        final Deque<Request> inFlight = new ArrayDeque<>();
+
+        /**
+         * When the worker started on its oldest in-flight genome.
+         */
+        long startedAt;
+
+        /**
+         * The id of the first node the worker has not been sent.
+         */
+        int nextNode;
+        ByteBuffer out;
+        volatile boolean dead;
+
+        Worker(int slot, Process process, SocketChannel channel) {
+            this.slot = slot;
+            this.process = process;
+            this.channel = channel;
+            this.reader = new Thread(this::read, "neat-worker-" + slot);
+            reader.setDaemon(true);
+        }
+
+        void send(Request request) {
+            try {
+                sendNodes();
+
+                Client client = request.client;
+                out = WorkerProtocol.begin(out, WorkerProtocol.EVALUATE, 8 + WorkerProtocol.genomeSize(client.getGenome()));
+                out.putInt(request.id).putInt(client.getId());
+                WorkerProtocol.putGenome(out, client.getGenome());
+                WorkerProtocol.send(channel, out);
+            } catch (IOException e) {
+                fail(this);
+            }
+        }
+
+        /**
+         * Sends every node created since the last call. Node ids are handed
+         * out in order, so the new nodes are the ids above the last one sent.
+         */
+        private void sendNodes() throws IOException {
+            InnovationRegistry registry = neat.getRegistry();
+            int end = registry.getNodeCount();
+            if (nextNode >= end) {
+                return;
+            }
+
+            List<NodeGene> nodes = new ArrayList<>();
+            for (int id = nextNode; id < end; id++) {
+                NodeGene node = registry.getNode(id);
+                if (node != null) {
+                    nodes.add(node);
+                }
+            }
+
+            out = WorkerProtocol.begin(out, WorkerProtocol.NODES, 4 + nodes.size() * 28);
+            out.putInt(nodes.size());
+            for (NodeGene node : nodes) {
+                out.putInt(node.getId()).putDouble(node.getX()).putDouble(node.getY()).putDouble(node.getBias());
+            }
+            WorkerProtocol.send(channel, out);
+            nextNode = end;
+        }
+
+        private void read() {
+            ByteBuffer in = null;
+            try {
+                while (true) {
+                    in = WorkerProtocol.receive(channel, in);
+                    byte type = in.get();
+                    int id = in.getInt();
+                    switch (type) {
+                        case WorkerProtocol.SCORE -> complete(id, in.getDouble());
+                        case WorkerProtocol.FAILURE -> {
+                            byte[] message = new byte[in.getInt()];
+                            in.get(message);
+                            fitnessFailed(id, new String(message, StandardCharsets.UTF_8));
+                        }
+                        default -> throw new IOException("Unknown message type: " + type);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(this);
+            }
+        }
+
+        private void complete(int id, double score) throws IOException {
+            lock.lock();
+            try {
+                if (dead) {
+                    return;
+                }
+
+                // Workers answer in order, so this is always the oldest request
+                Request request = inFlight.pollFirst();
+                if (request == null || request.id != id) {
+                    throw new IOException("Worker " + slot + " answered request " + id + " out of order");
+                }
+                request.client.setScore(score);
+                if (cache != null) {
+                    cache.put(request.version, score);
+                }
+                startedAt = System.nanoTime();
+                remaining--;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void fitnessFailed(int id, String message) {
+            lock.lock();
+            try {
+                Request request = inFlight.peekFirst();
+                if (!dead && failure == null && request != null && request.id == id) {
+                    failure = "Failed to evaluate client " + request.client.getId() + ": " + message;
+                    changed.signalAll();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void kill() {
+            process.destroyForcibly();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+}
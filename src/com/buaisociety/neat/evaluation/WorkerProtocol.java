@@ -0,0 +1,219 @@
+package com.buaisociety.neat.evaluation;
+
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.Precision;
+import com.buaisociety.neat.genome.Activation;
+import com.buaisociety.neat.genome.Genome;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+/**
+ * The messages sent between a {@link WorkerPool} and its
+ * {@link EvaluationWorker} processes. Every message is a frame of
+ * <code>int length, byte type, payload</code>, where the length counts the
+ * type and payload.
+ *
+ * <pre>
+ * pool -> worker:
+ *   NODES:    int n, n * (int id, double x, double y, double bias)
+ *   EVALUATE: int request, int clientId, genome
+ * worker -> pool:
+ *   HELLO:    int magic, int version, int worker
+ *   SCORE:    int request, double score
+ *   FAILURE:  int request, int n, n * byte message (UTF-8)
+ * genome:     int nodes, int[] ids, value[] biases, byte[] activations,
+ *             int connections, int[] innovations, int[] froms, int[] tos,
+ *             value[] weights, long[] enabled bits
+ * </pre>
+ *
+ * <p>Values are floats for {@link Precision#FLOAT} genomes and doubles
+ * otherwise, so float genomes are sent without losing anything. Workers
+ * answer requests in the order they were sent.
+ */
+final class WorkerProtocol {
+
+    /**
+     * "NWKR" in ASCII.
+     */
+    static final int MAGIC = 0x4E574B52;
+    static final int VERSION = 1;
+
+    static final byte HELLO = 0;
+    static final byte NODES = 1;
+    static final byte EVALUATE = 2;
+    static final byte SCORE = 3;
+    static final byte FAILURE = 4;
+
+    private static final int MAX_FRAME = 1 << 30;
+
+    private WorkerProtocol() {
+    }
+
+    /**
+     * Returns a buffer with room for at least <code>capacity</code> bytes,
+     * which is the given buffer if it is big enough. The buffer is cleared.
+     */
+    static ByteBuffer ensure(ByteBuffer buffer, int capacity) {
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(Math.max(capacity, buffer == null ? 256 : buffer.capacity() * 2));
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Starts a frame of the given type. The length is filled in by
+     * {@link #send(SocketChannel, ByteBuffer)}.
+     */
+    static ByteBuffer begin(ByteBuffer buffer, byte type, int payloadSize) {
+        buffer = ensure(buffer, 5 + payloadSize);
+        buffer.putInt(0).put(type);
+        return buffer;
+    }
+
+    /**
+     * Fills in the length of a frame started by {@link #begin}, then writes
+     * the whole frame.
+     */
+    static void send(SocketChannel channel, ByteBuffer frame) throws IOException {
+        frame.putInt(0, frame.position() - 4);
+        frame.flip();
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+    }
+
+    /**
+     * Reads the next frame. The returned buffer is positioned at the type of
+     * the frame, and may be a new buffer if the given one is too small.
+     *
+     * @throws EOFException If the other side closed the connection.
+     */
+    static ByteBuffer receive(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        buffer = ensure(buffer, 4);
+        buffer.limit(4);
+        readFully(channel, buffer);
+        int length = buffer.getInt(0);
+        if (length < 1 || length > MAX_FRAME) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+
+        buffer = ensure(buffer, length);
+        buffer.limit(length);
+        readFully(channel, buffer);
+        return buffer.flip();
+    }
+
+    private static void readFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed");
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes {@link #putGenome} writes for a genome.
+     */
+    static int genomeSize(Genome genome) {
+        int valueSize = genome.getPrecision() == Precision.FLOAT ? Float.BYTES : Double.BYTES;
+        int nodes = genome.getNodeCount();
+        int connections = genome.getConnectionCount();
+        return 4 + nodes * (4 + valueSize + 1) + 4 + connections * (12 + valueSize) + ((connections + 63) >>> 6) * 8;
+    }
+
+    static void putGenome(ByteBuffer out, Genome genome) {
+        boolean floats = genome.getPrecision() == Precision.FLOAT;
+        int nodeCount = genome.getNodeCount();
+        out.putInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            out.putInt(genome.getNodeId(i));
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            if (floats) {
+                out.putFloat((float) genome.getBias(i));
+            } else {
+                out.putDouble(genome.getBias(i));
+            }
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            out.put((byte) genome.getActivation(i).ordinal());
+        }
+
+        int connectionCount = genome.getConnectionCount();
+        out.putInt(connectionCount);
+        for (int i = 0; i < connectionCount; i++) {
+            out.putInt(genome.getInnovation(i));
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            out.putInt(genome.getFrom(i));
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            out.putInt(genome.getTo(i));
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            if (floats) {
+                out.putFloat((float) genome.getWeight(i));
+            } else {
+                out.putDouble(genome.getWeight(i));
+            }
+        }
+        for (int word = 0; word < (connectionCount + 63) >>> 6; word++) {
+            long bits = 0;
+            int end = Math.min(connectionCount, (word + 1) << 6);
+            for (int i = word << 6; i < end; i++) {
+                if (genome.isEnabled(i)) {
+                    bits |= 1L << i;
+                }
+            }
+            out.putLong(bits);
+        }
+    }
+
+    static Genome getGenome(ByteBuffer in, Neat neat) {
+        boolean floats = neat.getPrecision() == Precision.FLOAT;
+        int nodeCount = in.getInt();
+        int[] ids = new int[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            ids[i] = in.getInt();
+        }
+        double[] biases = new double[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            biases[i] = floats ? in.getFloat() : in.getDouble();
+        }
+
+        Genome genome = new Genome(neat);
+        for (int i = 0; i < nodeCount; i++) {
+            genome.addNode(ids[i], biases[i], Activation.of(in.get()));
+        }
+
+        int connectionCount = in.getInt();
+        int[] innovations = new int[connectionCount];
+        int[] froms = new int[connectionCount];
+        int[] tos = new int[connectionCount];
+        double[] weights = new double[connectionCount];
+        for (int i = 0; i < connectionCount; i++) {
+            innovations[i] = in.getInt();
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            froms[i] = in.getInt();
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            tos[i] = in.getInt();
+        }
+        for (int i = 0; i < connectionCount; i++) {
+            weights[i] = floats ? in.getFloat() : in.getDouble();
+        }
+
+        long bits = 0;
+        for (int i = 0; i < connectionCount; i++) {
+            if ((i & 63) == 0) {
+                bits = in.getLong();
+            }
+            genome.addConnection(innovations[i], froms[i], tos[i], weights[i], (bits & (1L << i)) != 0);
+        }
+        return genome;
+    }
+}
@@ -0,0 +1,213 @@
+package com.buaisociety.neat.genome;
+
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * The activation function of a neuron, which is stored as a gene so that it
+ * can be evolved. The activation "squashes" the weighted sum of a neuron's
+ * inputs into its value.
+ *
+ * <p>Each activation can also be {@link #approximate(double) approximated}.
+ * Activations that need {@link Math#exp(double)} (the most expensive part of
+ * evaluating a network) are approximated with a lookup table and linear
+ * interpolation, accurate to about <code>1e-6</code>. Approximations are
+ * switched on for every calculator built afterward with
+ * {@link #setApproximate(boolean)}.
+ *
+ * <p>None of the constants override any method, so calling an activation is
+ * a single <code>switch</code> that the JIT can inline into the evaluation
+ * loop, instead of a virtual call.
+ */
+public enum Activation {
+
+    /**
+     * A steep sigmoid, <code>1 / (1 + e^(-4.9x))</code>, between 0 and 1. The
+     * default activation.
+     */
+    SIGMOID,
+
+    /**
+     * The hyperbolic tangent, between -1 and 1.
+     */
+    TANH,
+
+    /**
+     * <code>max(0, x)</code>.
+     */
+    RELU,
+
+    /**
+     * <code>x</code>, unchanged.
+     */
+    IDENTITY,
+
+    /**
+     * <code>e^(-x^2)</code>, between 0 and 1, peaking at 0.
+     */
+    GAUSSIAN,
+
+    /**
+     * <code>|x|</code>.
+     */
+    ABS,
+
+    /**
+     * 1 when <code>x &gt; 0</code>, otherwise 0.
+     */
+    STEP;
+
+    private static final Activation[] VALUES = values();
+
+    /**
+     * The number of entries in each lookup table.
+     */
+    private static final int TABLE_SIZE = 4096;
+
+    private static volatile boolean approximate = false;
+
+    /**
+     * Returns the activation with the given ordinal, as stored in genomes.
+     *
+     * @param ordinal The ordinal of the activation.
+     * @return The activation.
+     * @throws IllegalArgumentException If there is no activation with that ordinal.
+     */
+    public static Activation of(int ordinal) {
+        if (ordinal < 0 || ordinal >= VALUES.length) {
+            throw new IllegalArgumentException("Unknown activation: " + ordinal);
+        }
+        return VALUES[ordinal];
+    }
+
+    /**
+     * Returns true if calculators built from now on use the fast
+     * approximations.
+     *
+     * @return true if approximating.
+     */
+    public static boolean isApproximate() {
+        return approximate;
+    }
+
+    /**
+     * Sets whether calculators built from now on use the fast approximations.
+     * Calculators that were already built keep their setting.
+     *
+     * @param approximate true to approximate.
+     */
+    public static void setApproximate(boolean approximate) {
+        Activation.approximate = approximate;
+    }
+
+    /**
+     * Applies this activation function.
+     *
+     * @param x The weighted sum of the neuron's inputs.
+     * @return The activated value.
+     */
+    public double apply(double x) {
+        return switch (this) {
+            case SIGMOID -> 1 / (1 + Math.exp(-4.9 * x));
+            case TANH -> Math.tanh(x);
+            case RELU -> x > 0 ? x : 0.0;
+            case IDENTITY -> x;
+            case GAUSSIAN -> Math.exp(-x * x);
+            case ABS -> Math.abs(x);
+            case STEP -> x > 0 ? 1.0 : 0.0;
+        };
+    }
+
+    /**
+     * Applies this activation function in float precision.
+     *
+     * @param x The weighted sum of the neuron's inputs.
+     * @return The activated value.
+     */
+    public float apply(float x) {
+        if (this == SIGMOID) {
+            return 1f / (1f + (float) Math.exp(-4.9f * x));
+        }
+        return (float) apply((double) x);
+    }
+
+    /**
+     * Applies a fast approximation of this activation function. Activations
+     * that are cheap to calculate are not approximated.
+     *
+     * @param x The weighted sum of the neuron's inputs.
+     * @return The approximately activated value.
+     */
+    public double approximate(double x) {
+        return switch (this) {
+            case SIGMOID -> Tables.SIGMOID.get(x);
+            case TANH -> Tables.TANH.get(x);
+            case GAUSSIAN -> Tables.GAUSSIAN.get(x);
+            default -> apply(x);
+        };
+    }
+
+    /**
+     * Applies a fast approximation of this activation function in float
+     * precision.
+     *
+     * @param x The weighted sum of the neuron's inputs.
+     * @return The approximately activated value.
+     */
+    public float approximate(float x) {
+        return (float) approximate((double) x);
+    }
+
+    /**
+     * Returns true if {@link #approximate(double)} is not the same as
+     * {@link #apply(double)}.
+     *
+     * @return true if this activation uses a lookup table.
+     */
+    public boolean isTabulated() {
+        return this == SIGMOID || this == TANH || this == GAUSSIAN;
+    }
+
+    /**
+     * The lookup tables, created the first time an approximation is used.
+     */
+    private static final class Tables {
+        static final Table SIGMOID = new Table(Activation.SIGMOID::apply, -4.0, 4.0);
+        static final Table TANH = new Table(Math::tanh, -8.0, 8.0);
+        static final Table GAUSSIAN = new Table(x -> Math.exp(-x * x), -4.0, 4.0);
+    }
+
+    /**
+     * A function sampled at evenly spaced points over <code>[min, max]</code>.
+     * Values in between are linearly interpolated, and values outside are
+     * clamped to the first or last sample.
+     */
+    private static final class Table {
+
+        private final double min;
+        private final double scale;
+        private final double[] samples;
+
+        Table(DoubleUnaryOperator function, double min, double max) {
+            this.min = min;
+            this.scale = (TABLE_SIZE - 1) / (max - min);
+            this.samples = new double[TABLE_SIZE];
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                samples[i] = function.applyAsDouble(min + i / scale);
+            }
+        }
+
+        double get(double x) {
+            double position = (x - min) * scale;
+            if (position <= 0) {
+                return samples[0];
+            }
+            if (position >= TABLE_SIZE - 1) {
+                return samples[TABLE_SIZE - 1];
+            }
+
+            int i = (int) position;
+            double fraction = position - i;
+            return samples[i] + (samples[i + 1] - samples[i]) * fraction;
+        }
+    }
+}
@@ -5,8 +5,10 @@ import com.buaisociety.neat.Neat;
 import java.util.Objects;
 
 /**
- * Represents an inheritable connection between 2 nodes, flowing from left -> right.
- * This connection has a weight and can be enabled or disabled.
+ * Represents an inheritable connection between 2 nodes. Connections usually
+ * flow from left -> right, but a connection may also point backwards or from
+ * a node to itself, which makes the network {@link Neat#isRecurrent()
+ * recurrent}. This connection has a weight and can be enabled or disabled.
  *
  * <p>The <code>id</code> of a connection is functionally optional, but is useful for
  * sorting connections in a consistent manner in a {@link Genome}. Sorting is useful
@@ -33,8 +35,8 @@ public class ConnectionGene implements Cloneable {
     private boolean enabled = true;
 
     public ConnectionGene(Neat neat, int id, NodeGene from, NodeGene to) {
-        if (from.getX() >= to.getX()) {
-            throw new IllegalArgumentException("from.getX() (" + from.getX() + ") must be to the left of to.getX() (" + to.getX() + ")");
+        if (to.getId() < neat.getNumInputNodes()) {
+            throw new IllegalArgumentException("Connections cannot flow into input node " + to.getId());
         }
 
         this.neat = neat;
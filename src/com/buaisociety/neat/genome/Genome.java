@@ -1,11 +1,13 @@
 package com.buaisociety.neat.genome;
 
 import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.Precision;
 import com.buaisociety.neat.calculator.Calculator;
+import com.buaisociety.neat.metrics.Timing;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.random.RandomGenerator;
 
 /**
  * Represents the "gene side" of a neural network. This includes {@link NodeGene neurons}
@@ -15,6 +17,21 @@ import java.util.List;
  * (the actual neural network, which has behavior). This class is only the "genotype"
  * (the genetic information that describes the neural network). Interestingly, we can
  * use the genotype to evolve.
+ *
+ * <p>Genes are not stored as objects. Instead, each property of the genes is
+ * stored in its own primitive array, and genes are accessed by their index.
+ * Nodes are sorted by id, and connections are sorted by id (innovation number),
+ * so lookups are a binary search and comparing 2 genomes is a single linear
+ * walk over both. A bitset over node ids makes "does this genome have node X"
+ * a constant time check.
+ *
+ * <p>Cloning a genome does not copy any genes. The clone and the original share
+ * their arrays until one of them writes to them ("copy-on-write"). Structural
+ * changes (adding nodes or connections) copy the id arrays the first time.
+ * Weights and biases are stored in chunks, and only the chunks that are
+ * written to are copied, so mutating a few values of a clone stays cheap.
+ * Each genome (and each of its clones) may only be used by 1 thread at a time,
+ * but genomes that share genes may be used by different threads.
  */
 public class Genome implements Cloneable {
 
@@ -23,74 +40,551 @@ public class Genome implements Cloneable {
         new MutateAddNode(),
         new MutateWeights(),
         new MutateBiases(),
+        new MutateActivation(),
     };
 
-    private final Neat neat;
-    private List<NodeGene> nodeGenes;
-    private List<ConnectionGene> connectionGenes;
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * The weights of excess connections, disjoint connections and the
+     * average weight difference in the {@link #distance(Genome, Genome)
+     * compatibility distance}.
+     * TODO these probably shouldn't be constant
+     */
+    private static final double C1 = 1.0;
+    private static final double C2 = 1.0;
+    private static final double C3 = 0.4;
+
+    /**
+     * Hands out {@link #getVersion() versions}. Shared by every genome, so 2
+     * genomes only have the same version when 1 is an unchanged clone of the
+     * other.
+     */
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private Neat neat;
+    private final Precision precision;
+
+    private long version = VERSIONS.incrementAndGet();
+    private boolean changed = false;
+
+    /**
+     * The token that marks which shared arrays this genome is allowed to
+     * write to. {@link #share()} gives this genome a new token, so it no
+     * longer owns any arrays, and a clone starts without owning any.
+     */
+    private Object owner = new Object();
+    private Object nodesOwner = owner;
+    private Object connectionsOwner = owner;
+    private Object enabledOwner = owner;
+    private Object activationsOwner = owner;
+
+    /**
+     * True if this genome owns none of its arrays, so cloning it does not
+     * need to change it.
+     */
+    private boolean shared = false;
+
+    // Node genes, sorted by id
+    private int nodeCount;
+    private int[] nodeIds;
+    private SharedArray biases;
+
+    /**
+     * The {@link Activation#ordinal() ordinal} of each node's activation.
+     */
+    private byte[] activations;
+
+    /**
+     * Bit <code>id</code> is set when this genome has the node with that id.
+     */
+    private long[] nodeBits;
+
+    // Connection genes, sorted by innovation number
+    private int connectionCount;
+    private int[] innovations;
+    private int[] froms;
+    private int[] tos;
+    private SharedArray weights;
+
+    /**
+     * Bit <code>i</code> is set when the connection at index <code>i</code> is
+     * enabled.
+     */
+    private long[] enabled;
 
     /**
-     * Creates an empty Genome, with no nodes or connections.
+     * Creates an empty Genome, with no nodes or connections. Weights and
+     * biases are stored with the {@link Neat#getPrecision() precision} of
+     * the given instance.
      */
     public Genome(Neat neat) {
         this.neat = neat;
-
-        // Is using an ArrayList the best choice here?
-        // Could we optimize the .contains() calls somehow?
-        nodeGenes = new ArrayList<>();
-        connectionGenes = new ArrayList<>();
+        this.precision = neat.getPrecision();
+
+        nodeIds = new int[INITIAL_CAPACITY];
+        biases = newValues(precision);
+        activations = new byte[INITIAL_CAPACITY];
+        nodeBits = new long[1];
+
+        innovations = new int[INITIAL_CAPACITY];
+        froms = new int[INITIAL_CAPACITY];
+        tos = new int[INITIAL_CAPACITY];
+        weights = newValues(precision);
+        enabled = new long[1];
     }
 
     public Neat getNeat() {
         return neat;
     }
 
-    public List<NodeGene> getNodeGenes() {
-        return nodeGenes;
+    /**
+     * Returns how the weights and biases of this genome are stored. Values
+     * are rounded to this precision when they are set.
+     *
+     * @return The precision of this genome.
+     */
+    public Precision getPrecision() {
+        return precision;
+    }
+
+    private static SharedArray newValues(Precision precision) {
+        return switch (precision) {
+            case DOUBLE -> new SharedDoubleArray();
+            case FLOAT -> new SharedFloatArray();
+        };
+    }
+
+    /**
+     * Returns a number that identifies the current contents of this genome.
+     * Any change to this genome gives it a new version, and an unchanged clone
+     * has the same version as the genome it was cloned from. This makes the
+     * version a cheap key for caching anything computed from a genome.
+     *
+     * @return The version of this genome.
+     */
+    public long getVersion() {
+        if (changed) {
+            version = VERSIONS.incrementAndGet();
+            changed = false;
+        }
+        return version;
+    }
+
+    // ---------------------------------------------------------------------
+    // Nodes
+    // ---------------------------------------------------------------------
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getNodeId(int index) {
+        return nodeIds[index];
+    }
+
+    public double getBias(int index) {
+        return biases.get(index);
+    }
+
+    public void setBias(int index, double bias) {
+        biases.set(index, bias);
+        changed = true;
+    }
+
+    public Activation getActivation(int index) {
+        return Activation.of(activations[index]);
     }
 
+    public void setActivation(int index, Activation activation) {
+        if (activationsOwner != owner) {
+            activations = activations.clone();
+            activationsOwner = owner;
+            shared = false;
+        }
+
+        activations[index] = (byte) activation.ordinal();
+        changed = true;
+    }
+
+    /**
+     * Returns true if this genome has the node with the given id.
+     *
+     * @param id The id of the node.
+     * @return true if this genome has the node.
+     */
+    public boolean containsNode(int id) {
+        int word = id >>> 6;
+        return word < nodeBits.length && (nodeBits[word] & (1L << id)) != 0;
+    }
+
+    /**
+     * Returns the index of the node with the given id, or a negative number
+     * if this genome does not have that node.
+     *
+     * @param id The id of the node.
+     * @return The index of the node.
+     */
+    public int indexOfNode(int id) {
+        if (!containsNode(id)) {
+            return -1;
+        }
+        return Arrays.binarySearch(nodeIds, 0, nodeCount, id);
+    }
+
+    /**
+     * Adds a copy of the given node to this genome.
+     *
+     * @param node The node to copy the id and bias from.
+     * @throws IllegalArgumentException If this genome already has the node.
+     */
     public void addNodeGene(NodeGene node) {
-        if (this.nodeGenes.contains(node)) {
-            throw new IllegalArgumentException("Cannot add duplicate node: " + node);
+        addNode(node.getId(), node.getBias());
+    }
+
+    /**
+     * Adds a node with the default {@link Activation#SIGMOID sigmoid}
+     * activation to this genome, keeping the nodes sorted by id.
+     *
+     * @param id The id of the node.
+     * @param bias The bias of the node.
+     * @return The index the node was inserted at.
+     * @throws IllegalArgumentException If this genome already has the node.
+     */
+    public int addNode(int id, double bias) {
+        return addNode(id, bias, Activation.SIGMOID);
+    }
+
+    /**
+     * Adds a node to this genome, keeping the nodes sorted by id.
+     *
+     * @param id The id of the node.
+     * @param bias The bias of the node.
+     * @param activation The activation function of the node.
+     * @return The index the node was inserted at.
+     * @throws IllegalArgumentException If this genome already has the node.
+     */
+    public int addNode(int id, double bias, Activation activation) {
+        if (containsNode(id)) {
+            throw new IllegalArgumentException("Cannot add duplicate node: " + id);
+        }
+
+        // Copy the shared arrays (if needed) and grow them in 1 step
+        int word = id >>> 6;
+        if (nodesOwner != owner || nodeCount == nodeIds.length || word >= nodeBits.length) {
+            int capacity = nodeCount < nodeIds.length ? nodeIds.length : Math.max(INITIAL_CAPACITY, nodeCount * 2);
+            nodeIds = Arrays.copyOf(nodeIds, capacity);
+            nodeBits = Arrays.copyOf(nodeBits, word < nodeBits.length ? nodeBits.length : Math.max(word + 1, nodeBits.length * 2));
+            nodesOwner = owner;
+            shared = false;
+        }
+        if (activationsOwner != owner || activations.length < nodeIds.length) {
+            activations = Arrays.copyOf(activations, nodeIds.length);
+            activationsOwner = owner;
+            shared = false;
+        }
+
+        // New nodes almost always have the highest id, so check for that
+        // before searching
+        int index = nodeCount;
+        if (nodeCount > 0 && nodeIds[nodeCount - 1] > id) {
+            index = -Arrays.binarySearch(nodeIds, 0, nodeCount, id) - 1;
+            System.arraycopy(nodeIds, index, nodeIds, index + 1, nodeCount - index);
+            System.arraycopy(activations, index, activations, index + 1, nodeCount - index);
+        }
+
+        nodeIds[index] = id;
+        activations[index] = (byte) activation.ordinal();
+        biases.insert(index, nodeCount, bias);
+        nodeCount++;
+
+        nodeBits[word] |= 1L << id;
+        changed = true;
+        return index;
+    }
+
+    // ---------------------------------------------------------------------
+    // Connections
+    // ---------------------------------------------------------------------
+
+    public int getConnectionCount() {
+        return connectionCount;
+    }
+
+    /**
+     * Returns the id (innovation number) of the connection at the given index.
+     *
+     * @param index The index of the connection.
+     * @return The innovation number of the connection.
+     */
+    public int getInnovation(int index) {
+        return innovations[index];
+    }
+
+    /**
+     * Returns the id of the node where the connection at the given index starts.
+     *
+     * @param index The index of the connection.
+     * @return The id of the "from" node.
+     */
+    public int getFrom(int index) {
+        return froms[index];
+    }
+
+    /**
+     * Returns the id of the node where the connection at the given index ends.
+     *
+     * @param index The index of the connection.
+     * @return The id of the "to" node.
+     */
+    public int getTo(int index) {
+        return tos[index];
+    }
+
+    public double getWeight(int index) {
+        return weights.get(index);
+    }
+
+    public void setWeight(int index, double weight) {
+        weights.set(index, weight);
+        changed = true;
+    }
+
+    public boolean isEnabled(int index) {
+        return (enabled[index >>> 6] & (1L << index)) != 0;
+    }
+
+    public void setEnabled(int index, boolean value) {
+        if (enabledOwner != owner) {
+            enabled = enabled.clone();
+            enabledOwner = owner;
+            shared = false;
         }
 
-        this.nodeGenes.add(node);
-        this.nodeGenes.sort(Comparator.comparingInt(NodeGene::getId));
+        if (value) {
+            enabled[index >>> 6] |= 1L << index;
+        } else {
+            enabled[index >>> 6] &= ~(1L << index);
+        }
+        changed = true;
     }
 
-    public List<ConnectionGene> getConnectionGenes() {
-        return connectionGenes;
+    /**
+     * Returns the index of the connection with the given innovation number,
+     * or a negative number if this genome does not have that connection.
+     *
+     * @param innovation The innovation number of the connection.
+     * @return The index of the connection.
+     */
+    public int indexOfConnection(int innovation) {
+        return Arrays.binarySearch(innovations, 0, connectionCount, innovation);
     }
 
+    public boolean containsConnection(int innovation) {
+        return indexOfConnection(innovation) >= 0;
+    }
+
+    /**
+     * Adds a copy of the given connection to this genome.
+     *
+     * @param connection The connection to copy.
+     * @throws IllegalArgumentException If this genome already has the connection.
+     */
     public void addConnectionGene(ConnectionGene connection) {
-        if (this.connectionGenes.contains(connection)) {
-            throw new IllegalArgumentException("Cannot add duplicate connection: " + connection);
+        addConnection(connection.getId(), connection.getFrom().getId(), connection.getTo().getId(), connection.getWeight(), connection.isEnabled());
+    }
+
+    /**
+     * Adds a connection to this genome, keeping the connections sorted by
+     * innovation number.
+     *
+     * @param innovation The innovation number of the connection.
+     * @param from The id of the node where the connection starts.
+     * @param to The id of the node where the connection ends.
+     * @param weight The weight of the connection.
+     * @param isEnabled Whether the connection is enabled.
+     * @return The index the connection was inserted at.
+     * @throws IllegalArgumentException If this genome already has the connection.
+     */
+    public int addConnection(int innovation, int from, int to, double weight, boolean isEnabled) {
+        // Crossover and new innovations append to the end, so check for that
+        // before searching
+        int index = connectionCount;
+        if (connectionCount > 0 && innovations[connectionCount - 1] >= innovation) {
+            index = indexOfConnection(innovation);
+            if (index >= 0) {
+                throw new IllegalArgumentException("Cannot add duplicate connection: " + innovation);
+            }
+            index = -index - 1;
+        }
+
+        // Copy the shared arrays (if needed) and grow them in 1 step
+        if (connectionsOwner != owner || connectionCount == innovations.length) {
+            int capacity = connectionCount < innovations.length ? innovations.length : Math.max(INITIAL_CAPACITY, connectionCount * 2);
+            innovations = Arrays.copyOf(innovations, capacity);
+            froms = Arrays.copyOf(froms, capacity);
+            tos = Arrays.copyOf(tos, capacity);
+            connectionsOwner = owner;
+            shared = false;
+        }
+        if (enabledOwner != owner || (connectionCount >>> 6) >= enabled.length) {
+            enabled = Arrays.copyOf(enabled, Math.max(enabled.length, (innovations.length + 63) >>> 6));
+            enabledOwner = owner;
+            shared = false;
+        }
+
+        if (index < connectionCount) {
+            int moved = connectionCount - index;
+            System.arraycopy(innovations, index, innovations, index + 1, moved);
+            System.arraycopy(froms, index, froms, index + 1, moved);
+            System.arraycopy(tos, index, tos, index + 1, moved);
+            shiftEnabledBits(index);
+        }
+
+        innovations[index] = innovation;
+        froms[index] = from;
+        tos[index] = to;
+        weights.insert(index, connectionCount, weight);
+        connectionCount++;
+        setEnabled(index, isEnabled);
+        return index;
+    }
+
+    /**
+     * Moves the enabled bits at <code>index</code> and above up by 1, making
+     * room for a connection to be inserted at <code>index</code>.
+     */
+    private void shiftEnabledBits(int index) {
+        int word = index >>> 6;
+        int lastWord = connectionCount >>> 6;
+        for (int w = lastWord; w > word; w--) {
+            enabled[w] = (enabled[w] << 1) | (enabled[w - 1] >>> 63);
         }
 
-        this.connectionGenes.add(connection);
-        this.connectionGenes.sort(Comparator.comparingInt(ConnectionGene::getId));
+        long high = -1L << index;
+        enabled[word] = (enabled[word] & ~high) | ((enabled[word] & high) << 1);
     }
 
+    // ---------------------------------------------------------------------
+    // Evolution
+    // ---------------------------------------------------------------------
+
+    /**
+     * Applies every mutation using the shared random of the {@link Neat}
+     * instance. Only use this when mutating 1 genome at a time.
+     */
     public void mutate() {
+        mutate(neat.getRandom());
+    }
+
+    /**
+     * Applies every mutation, drawing from the given random stream.
+     *
+     * @param random The random stream to draw from.
+     */
+    public void mutate(RandomGenerator random) {
+        mutateStructure(random);
+        mutateValues(random);
+    }
+
+    /**
+     * Applies only the {@link Mutation#isStructural() structural} mutations.
+     * These may discover new innovations, so when mutating many genomes, this
+     * should be called in a consistent order to get reproducible ids.
+     *
+     * @param random The random stream to draw from.
+     */
+    public void mutateStructure(RandomGenerator random) {
+        long start = neat.getMetrics().start();
         for (Mutation mutation : MUTATIONS) {
-            mutation.mutate(this);
+            if (mutation.isStructural()) {
+                mutation.mutate(this, random);
+            }
         }
+        neat.getMetrics().stop(Timing.STRUCTURAL_MUTATION, start);
     }
 
+    /**
+     * Applies only the mutations that change values (weights, biases, ...).
+     * These never touch shared state, so many genomes can be mutated in
+     * parallel.
+     *
+     * @param random The random stream to draw from.
+     */
+    public void mutateValues(RandomGenerator random) {
+        long start = neat.getMetrics().start();
+        for (Mutation mutation : MUTATIONS) {
+            if (!mutation.isStructural()) {
+                mutation.mutate(this, random);
+            }
+        }
+        neat.getMetrics().stop(Timing.VALUE_MUTATION, start);
+    }
+
+    /**
+     * Gives up ownership of every array of this genome, so the next change
+     * copies the array first. Cloning a genome that is already shared does
+     * not write to it, so call this once before cloning the same genome from
+     * many threads. Only writes to this genome if it owns an array.
+     */
+    public void share() {
+        if (!shared) {
+            owner = new Object();
+            shared = true;
+        }
+        biases.share();
+        weights.share();
+    }
+
+    /**
+     * Creates a copy of this genome. The clone shares its genes with this
+     * genome until either of them changes, but changing the clone never
+     * changes this genome (and vice versa).
+     *
+     * <p>Calls {@link #share()} first. The same genome may be cloned by many
+     * threads at once once it is shared, as long as no thread is changing it
+     * at the same time.
+     *
+     * @return The copy of this genome.
+     */
     @Override
     public Genome clone() {
         try {
+            // This genome must not own the arrays it is about to share
+            share();
             Genome clone = (Genome) super.clone();
-            clone.nodeGenes = new ArrayList<>();
-            clone.nodeGenes.addAll(this.nodeGenes);
-            clone.connectionGenes = new ArrayList<>();
-            clone.connectionGenes.addAll(this.connectionGenes);
+            clone.owner = new Object();
+            clone.biases = biases.copy();
+            clone.weights = weights.copy();
             return clone;
         } catch (CloneNotSupportedException e) {
             throw new AssertionError();
         }
     }
 
+    /**
+     * Creates a copy of this genome that belongs to another population. Both
+     * populations must share the same {@link InnovationRegistry}, so the
+     * node ids and innovation numbers mean the same thing in both.
+     *
+     * @param neat The population the copy belongs to.
+     * @return The copy of this genome.
+     * @throws IllegalArgumentException If the populations do not share a
+     *                                  registry, or use different precisions.
+     */
+    public Genome copyTo(Neat neat) {
+        if (neat.getRegistry() != this.neat.getRegistry()) {
+            throw new IllegalArgumentException("Cannot copy a genome between populations with different innovation registries");
+        }
+        if (neat.getPrecision() != precision) {
+            throw new IllegalArgumentException("Cannot copy a " + precision + " genome into a " + neat.getPrecision() + " population");
+        }
+
+        Genome copy = clone();
+        copy.neat = neat;
+        return copy;
+    }
+
     /**
      * Calculates the compatibility distance between 2 genomes.
      *
@@ -112,22 +606,26 @@ public class Genome implements Cloneable {
         // We want to iterate over both genomes simultaneously, and compare
         // the connections. When we find a disjoint connection, we want to
         // "pause" the other iterator, so the disjoint iterator can "catch up"
+        int[] innovationsA = a.innovations;
+        int[] innovationsB = b.innovations;
+        int sizeA = a.connectionCount;
+        int sizeB = b.connectionCount;
         int indexA = 0;
         int indexB = 0;
-        while (indexA < a.getConnectionGenes().size() && indexB < b.getConnectionGenes().size()) {
-            ConnectionGene connectionA = a.getConnectionGenes().get(indexA);
-            ConnectionGene connectionB = b.getConnectionGenes().get(indexB);
+        while (indexA < sizeA && indexB < sizeB) {
+            int innovationA = innovationsA[indexA];
+            int innovationB = innovationsB[indexB];
 
             // Same connection! :)
-            if (connectionA.getId() == connectionB.getId()) {
+            if (innovationA == innovationB) {
                 similar++;
-                weightDiff += Math.abs(connectionA.getWeight() - connectionB.getWeight());
+                weightDiff += Math.abs(a.weights.get(indexA) - b.weights.get(indexB));
                 indexA++;
                 indexB++;
             }
 
             // Connection A is missing in B
-            else if (connectionA.getId() < connectionB.getId()) {
+            else if (innovationA < innovationB) {
                 disjoint++;
                 indexA++;
             }
@@ -140,23 +638,52 @@ public class Genome implements Cloneable {
         }
 
         // The remaining connections are disjoint
-        int excess = a.getConnectionGenes().size() - indexA + b.getConnectionGenes().size() - indexB;
+        int excess = sizeA - indexA + sizeB - indexB;
 
         // Normalize the weight difference
         weightDiff /= Math.max(1, similar);
 
-        int n = Math.max(a.getConnectionGenes().size(), b.getConnectionGenes().size());
+        // The compatibility distance formula
+        int n = normalizer(sizeA, sizeB);
+        return C1 * excess / n + C2 * disjoint / n + C3 * weightDiff;
+    }
+
+    /**
+     * Returns a lower bound of {@link #distance(Genome, Genome)} between 2
+     * genomes with the given numbers of connections, when at least
+     * <code>differing</code> connections are in only 1 of the genomes. The
+     * weight difference is never negative, so it is left out. The bound is
+     * rounded down slightly, so it is never above the exact distance.
+     *
+     * @param differing The least number of excess and disjoint connections.
+     * @param sizeA The number of connections of the first genome.
+     * @param sizeB The number of connections of the second genome.
+     * @return The lower bound of the compatibility distance.
+     */
+    public static double distanceLowerBound(int differing, int sizeA, int sizeB) {
+        return Math.min(C1, C2) * differing / normalizer(sizeA, sizeB) * (1.0 - 1e-9);
+    }
+
+    private static int normalizer(int sizeA, int sizeB) {
+        int n = Math.max(sizeA, sizeB);
         if (n < 20) {
             // Smaller genomes are penalized more for excess connections
             n = 1;
         }
+        return n;
+    }
 
-        // The compatibility distance formula
-        // TODO these probably shouldn't be constant
-        double c1 = 1.0;
-        double c2 = 1.0;
-        double c3 = 0.4;
-        return c1 * excess / n + c2 * disjoint / n + c3 * weightDiff;
+    /**
+     * Crosses over 2 genomes using the shared random of the {@link Neat}
+     * instance.
+     *
+     * @param a The first parent genome.
+     * @param b The second parent genome.
+     * @return The child genome.
+     * @see #crossOver(Genome, Genome, RandomGenerator)
+     */
+    public static Genome crossOver(Genome a, Genome b) {
+        return crossOver(a, b, a.getNeat().getRandom());
     }
 
     /**
@@ -167,63 +694,73 @@ public class Genome implements Cloneable {
      *
      * @param a The first parent genome.
      * @param b The second parent genome.
+     * @param random The random stream to draw from.
      * @return The child genome.
      */
-    public static Genome crossOver(Genome a, Genome b) {
+    public static Genome crossOver(Genome a, Genome b, RandomGenerator random) {
         Neat neat = a.getNeat();
+        long start = neat.getMetrics().start();
 
         Genome child = neat.newGenome(true);
 
-        // We want to iterate over both genomes simultaneously, and compare
+        // We want to iterate over both genomes simultaneously, and compare.
+        // Both parents are sorted, so the child's connections are always
+        // appended to the end.
         int indexA = 0;
         int indexB = 0;
-        while (indexA < a.getConnectionGenes().size() && indexB < b.getConnectionGenes().size()) {
-            ConnectionGene connectionA = a.getConnectionGenes().get(indexA);
-            ConnectionGene connectionB = b.getConnectionGenes().get(indexB);
+        while (indexA < a.connectionCount && indexB < b.connectionCount) {
+            int innovationA = a.innovations[indexA];
+            int innovationB = b.innovations[indexB];
 
-            if (connectionA.getId() == connectionB.getId()) {
+            if (innovationA == innovationB) {
                 // Randomly choose a parent to inherit the connection from
-                if (neat.getRandom().nextBoolean()) {
-                    addConnection(child, connectionA);
+                if (random.nextBoolean()) {
+                    child.inheritConnection(a, indexA);
                 } else {
-                    addConnection(child, connectionB);
+                    child.inheritConnection(b, indexB);
                 }
 
                 indexA++;
                 indexB++;
-            } else if (connectionA.getId() < connectionB.getId()) {
-                addConnection(child, connectionA);
+            } else if (innovationA < innovationB) {
+                child.inheritConnection(a, indexA);
                 indexA++;
             } else {
-                addConnection(child, connectionB);
+                child.inheritConnection(b, indexB);
                 indexB++;
             }
         }
 
         // Add the remaining connections
-        while (indexA < a.getConnectionGenes().size()) {
-            addConnection(child, a.getConnectionGenes().get(indexA));
+        while (indexA < a.connectionCount) {
+            child.inheritConnection(a, indexA);
             indexA++;
         }
 
-        while (indexB < b.getConnectionGenes().size()) {
-            addConnection(child, b.getConnectionGenes().get(indexB));
+        while (indexB < b.connectionCount) {
+            child.inheritConnection(b, indexB);
             indexB++;
         }
 
+        neat.getMetrics().stop(Timing.CROSSOVER, start);
         return child;
     }
 
-    private static void addConnection(Genome child, ConnectionGene connection) {
-        ConnectionGene copy = connection.clone();
-        child.addConnectionGene(copy);
+    /**
+     * Copies the connection at <code>index</code> of the parent into this
+     * genome, along with its nodes if this genome does not have them yet.
+     * Nodes are inherited from the same parent as the connection.
+     */
+    private void inheritConnection(Genome parent, int index) {
+        addConnection(parent.innovations[index], parent.froms[index], parent.tos[index], parent.weights.get(index), parent.isEnabled(index));
+        inheritNode(parent, parent.froms[index]);
+        inheritNode(parent, parent.tos[index]);
+    }
 
-        // Add the neurons if they weren't there before
-        if (!child.getNodeGenes().contains(copy.getFrom())) {
-            child.addNodeGene(copy.getFrom());
-        }
-        if (!child.getNodeGenes().contains(copy.getTo())) {
-            child.addNodeGene(copy.getTo());
+    private void inheritNode(Genome parent, int id) {
+        if (!containsNode(id)) {
+            int index = parent.indexOfNode(id);
+            addNode(id, parent.biases.get(index), parent.getActivation(index));
         }
     }
 }
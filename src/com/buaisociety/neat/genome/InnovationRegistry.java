@@ -0,0 +1,248 @@
+package com.buaisociety.neat.genome;
+
+import com.buaisociety.neat.Neat;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out the ids ("innovation numbers") of nodes and connections, and
+ * remembers which structures have already been discovered so that every
+ * genome that discovers the same structure gets the same id.
+ *
+ * <p>This registry is safe to use from many threads at once. Ids come from
+ * atomic counters, and discovered structures are stored in concurrent maps
+ * keyed by the (from, to) node ids packed into a <code>long</code>. Lookups of
+ * structures that already exist do not lock at all. When 2 threads discover
+ * the same new structure at the same time, only 1 of them creates it and both
+ * get the same id.
+ */
+public class InnovationRegistry {
+
+    private final Neat neat;
+
+    private final AtomicInteger nodeCounter = new AtomicInteger();
+    private final AtomicInteger connectionCounter = new AtomicInteger();
+
+    private final Map<Integer, NodeGene> nodes = new ConcurrentHashMap<>();
+    private final Map<Long, ConnectionGene> connections = new ConcurrentHashMap<>();
+    private final Map<Long, NodeGene> replacementNodes = new ConcurrentHashMap<>();
+
+    public InnovationRegistry(Neat neat) {
+        this.neat = neat;
+    }
+
+    /**
+     * Packs the ids of 2 nodes into a single key.
+     *
+     * @param from The id of the node where the connection starts.
+     * @param to The id of the node where the connection ends.
+     * @return The key for the (from, to) pair.
+     */
+    public static long key(int from, int to) {
+        return ((long) from << 32) | (to & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Creates a new node with the next available id.
+     *
+     * @param x The x position of the new node.
+     * @param y The y position of the new node.
+     * @return The new node.
+     */
+    public NodeGene newNode(double x, double y) {
+        NodeGene node = new NodeGene(neat, nodeCounter.getAndIncrement());
+        node.setX(x);
+        node.setY(y);
+        nodes.put(node.getId(), node);
+        return node;
+    }
+
+    /**
+     * Returns the node with the given id, or null if it does not exist.
+     *
+     * @param id The id of the node.
+     * @return The node with the given id.
+     */
+    public NodeGene getNode(int id) {
+        return nodes.get(id);
+    }
+
+    /**
+     * Returns the connection between the 2 given nodes, creating it with the
+     * next available id if it has never been discovered before.
+     *
+     * <p>The returned connection is the shared original. Genomes should clone
+     * it before changing any of its values.
+     *
+     * @param from The node where the connection starts.
+     * @param to The node where the connection ends.
+     * @return The shared connection between the 2 nodes.
+     */
+    public ConnectionGene getConnection(NodeGene from, NodeGene to) {
+        return getConnection(from.getId(), to.getId());
+    }
+
+    /**
+     * Returns the connection between the 2 nodes with the given ids, creating
+     * it with the next available id if it has never been discovered before.
+     *
+     * @param from The id of the node where the connection starts.
+     * @param to The id of the node where the connection ends.
+     * @return The shared connection between the 2 nodes.
+     */
+    public ConnectionGene getConnection(int from, int to) {
+        long key = key(from, to);
+
+        // Most structures have already been discovered, so try a lock-free
+        // lookup before falling back to the (locking) computeIfAbsent.
+        ConnectionGene connection = connections.get(key);
+        if (connection == null) {
+            NodeGene fromNode = nodes.get(from);
+            NodeGene toNode = nodes.get(to);
+            connection = connections.computeIfAbsent(key, k -> new ConnectionGene(neat, connectionCounter.getAndIncrement(), fromNode, toNode));
+        }
+        return connection;
+    }
+
+    /**
+     * Returns the node that replaces (splits) the given connection, creating
+     * it halfway between the 2 ends of the connection if the connection has
+     * never been split before.
+     *
+     * @param connection The connection being split.
+     * @return The shared node that splits the connection.
+     */
+    public NodeGene getReplacementNode(ConnectionGene connection) {
+        return getReplacementNode(connection.getFrom().getId(), connection.getTo().getId());
+    }
+
+    /**
+     * Returns the node that replaces (splits) the connection between the 2
+     * nodes with the given ids, creating it halfway between the 2 nodes if
+     * the connection has never been split before.
+     *
+     * @param from The id of the node where the split connection starts.
+     * @param to The id of the node where the split connection ends.
+     * @return The shared node that splits the connection.
+     */
+    public NodeGene getReplacementNode(int from, int to) {
+        long key = key(from, to);
+
+        NodeGene node = replacementNodes.get(key);
+        if (node == null) {
+            NodeGene fromNode = nodes.get(from);
+            NodeGene toNode = nodes.get(to);
+            node = replacementNodes.computeIfAbsent(key, k -> newNode(
+                (fromNode.getX() + toNode.getX()) / 2.0,
+                (fromNode.getY() + toNode.getY()) / 2.0
+            ));
+        }
+        return node;
+    }
+
+    /**
+     * Adds a node with a known id, as read from a checkpoint. Ids handed out
+     * afterwards are always higher than the id of every restored node.
+     *
+     * @param id The id of the node.
+     * @param x The x position of the node.
+     * @param y The y position of the node.
+     * @param bias The bias of the node.
+     * @return The restored node.
+     * @throws IllegalStateException If a node with the same id already exists.
+     */
+    public NodeGene restoreNode(int id, double x, double y, double bias) {
+        NodeGene node = new NodeGene(neat, id);
+        node.setX(x);
+        node.setY(y);
+        node.setBias(bias);
+        if (nodes.putIfAbsent(id, node) != null) {
+            throw new IllegalStateException("Cannot restore duplicate node: " + id);
+        }
+        nodeCounter.accumulateAndGet(id + 1, Math::max);
+        return node;
+    }
+
+    /**
+     * Adds a connection with a known id, as read from a checkpoint. Both of
+     * its nodes must have been restored first.
+     *
+     * @param id The id of the connection.
+     * @param from The id of the node where the connection starts.
+     * @param to The id of the node where the connection ends.
+     * @return The restored connection.
+     * @throws IllegalStateException If either node is missing, or the connection already exists.
+     */
+    public ConnectionGene restoreConnection(int id, int from, int to) {
+        NodeGene fromNode = nodes.get(from);
+        NodeGene toNode = nodes.get(to);
+        if (fromNode == null || toNode == null) {
+            throw new IllegalStateException("Cannot restore connection " + id + " between unknown nodes " + from + " -> " + to);
+        }
+
+        ConnectionGene connection = new ConnectionGene(neat, id, fromNode, toNode);
+        if (connections.putIfAbsent(key(from, to), connection) != null) {
+            throw new IllegalStateException("Cannot restore duplicate connection: " + from + " -> " + to);
+        }
+        connectionCounter.accumulateAndGet(id + 1, Math::max);
+        return connection;
+    }
+
+    /**
+     * Remembers which node splits a connection, as read from a checkpoint.
+     * The node must have been restored first.
+     *
+     * @param key The {@link #key(int, int) key} of the split connection.
+     * @param nodeId The id of the node that splits the connection.
+     * @throws IllegalStateException If the node is missing.
+     */
+    public void restoreReplacementNode(long key, int nodeId) {
+        NodeGene node = nodes.get(nodeId);
+        if (node == null) {
+            throw new IllegalStateException("Cannot restore unknown replacement node: " + nodeId);
+        }
+        replacementNodes.put(key, node);
+    }
+
+    public int getNodeCount() {
+        return nodeCounter.get();
+    }
+
+    public int getConnectionCount() {
+        return connectionCounter.get();
+    }
+
+    /**
+     * Returns every node created by this registry, in no particular order.
+     *
+     * @return A view of every node.
+     */
+    public Collection<NodeGene> getNodes() {
+        return nodes.values();
+    }
+
+    /**
+     * Returns every connection discovered by this registry, in no particular
+     * order.
+     *
+     * @return A view of every connection.
+     */
+    public Collection<ConnectionGene> getConnections() {
+        return connections.values();
+    }
+
+    /**
+     * Returns a snapshot of which node replaces each split connection, keyed
+     * by {@link #key(int, int)} of the split connection.
+     *
+     * @return A copy of the replacement nodes.
+     */
+    public List<Map.Entry<Long, NodeGene>> getReplacementNodes() {
+        return new ArrayList<>(replacementNodes.entrySet());
+    }
+}
@@ -0,0 +1,36 @@
+package com.buaisociety.neat.genome;
+
+import java.util.List;
+import java.util.random.RandomGenerator;
+
+/**
+ * Loops through every neuron in a network and sometimes changes its
+ * activation function to one of the {@link com.buaisociety.neat.Neat#getActivations()
+ * activations} the population may use.
+ */
+public class MutateActivation implements Mutation {
+
+    @Override
+    public void mutate(Genome genome, RandomGenerator rand) {
+        // With only 1 choice there is nothing to mutate. Returning before
+        // drawing any random numbers keeps the rest of the mutations the same.
+        List<Activation> choices = genome.getNeat().getActivations();
+        if (choices.size() < 2) {
+            return;
+        }
+
+        int inputCount = genome.getNeat().getNumInputNodes();
+        for (int i = 0; i < genome.getNodeCount(); i++) {
+            // Input neurons are never activated
+            if (genome.getNodeId(i) < inputCount) {
+                continue;
+            }
+
+            // only 5% of the time
+            if (rand.nextDouble() > 0.05)
+                continue;
+
+            genome.setActivation(i, choices.get(rand.nextInt(choices.size())));
+        }
+    }
+}
@@ -1,50 +1,71 @@
 package com.buaisociety.neat.genome;
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 /**
  * This mutation randomly selects 2 nodes, and tries to make a connection
- * between them.
+ * between them. Connections flow left -> right, unless the population is
+ * {@link com.buaisociety.neat.Neat#isRecurrent() recurrent}, in which case
+ * they may also point backwards or from a node to itself.
  */
 public class MutateAddConnection implements Mutation {
 
     @Override
-    public void mutate(Genome genome) {
-        Random rand = genome.getNeat().getRandom();
-
+    public void mutate(Genome genome, RandomGenerator rand) {
         // Only a 5% chance to add a new connection
         if (rand.nextDouble() > 0.05)
             return;
 
+        InnovationRegistry registry = genome.getNeat().getRegistry();
+        int inputs = genome.getNeat().getNumInputNodes();
+        boolean recurrent = genome.getNeat().isRecurrent();
         int attempts = 100;
         while (attempts-- > 0) {
-            int randomIndex1 = rand.nextInt(genome.getNodeGenes().size());
-            int randomIndex2 = rand.nextInt(genome.getNodeGenes().size());
+            int randomIndex1 = rand.nextInt(genome.getNodeCount());
+            int randomIndex2 = rand.nextInt(genome.getNodeCount());
 
-            NodeGene from = genome.getNodeGenes().get(randomIndex1);
-            NodeGene to = genome.getNodeGenes().get(randomIndex2);
+            NodeGene from = registry.getNode(genome.getNodeId(randomIndex1));
+            NodeGene to = registry.getNode(genome.getNodeId(randomIndex2));
 
-            // Swap to make sure connections flow left -> right
-            if (from.getX() > to.getX()) {
-                NodeGene temp = from;
-                from = to;
-                to = temp;
-            }
+            if (recurrent) {
+                // Any direction is allowed, as long as nothing flows into an
+                // input
+                if (to.getId() < inputs) {
+                    if (from.getId() < inputs) {
+                        continue;
+                    }
+                    NodeGene temp = from;
+                    from = to;
+                    to = temp;
+                }
+            } else {
+                // Swap to make sure connections flow left -> right
+                if (from.getX() > to.getX()) {
+                    NodeGene temp = from;
+                    from = to;
+                    to = temp;
+                }
 
-            // If the x positions are the super close, skip
-            if (Math.abs(to.getX() - from.getX()) < 0.0001) {
-                continue;
+                // If the x positions are the super close, skip
+                if (Math.abs(to.getX() - from.getX()) < 0.0001) {
+                    continue;
+                }
             }
 
             // If a connection between these 2 nodes already exists, try again
-            ConnectionGene connection = genome.getNeat().newConnection(from, to);
-            if (genome.getConnectionGenes().contains(connection)) {
+            ConnectionGene connection = registry.getConnection(from, to);
+            if (genome.containsConnection(connection.getId())) {
                 continue;
             }
 
             // Success! Add the connection and stop
-            genome.addConnectionGene(connection);
+            genome.addConnection(connection.getId(), from.getId(), to.getId(), 0.0, true);
             break;
         }
     }
+
+    @Override
+    public boolean isStructural() {
+        return true;
+    }
 }
@@ -1,31 +1,36 @@
 package com.buaisociety.neat.genome;
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class MutateAddNode implements Mutation {
 
     @Override
-    public void mutate(Genome genome) {
-        Random rand = genome.getNeat().getRandom();
-
+    public void mutate(Genome genome, RandomGenerator rand) {
         // Only a 5% chance to add a new node
         if (rand.nextDouble() > 0.05)
             return;
 
-        ConnectionGene randomConnection = genome.getConnectionGenes().get(rand.nextInt(genome.getConnectionGenes().size()));
-        NodeGene middle = genome.getNeat().newReplacementConnection(randomConnection);
-        if (genome.getNodeGenes().contains(middle))
+        InnovationRegistry registry = genome.getNeat().getRegistry();
+        int randomConnection = rand.nextInt(genome.getConnectionCount());
+        int from = genome.getFrom(randomConnection);
+        int to = genome.getTo(randomConnection);
+
+        NodeGene middle = registry.getReplacementNode(from, to);
+        if (genome.containsNode(middle.getId()))
             return;
 
-        ConnectionGene a = genome.getNeat().newConnection(randomConnection.getFrom(), middle);
-        ConnectionGene b = genome.getNeat().newConnection(middle, randomConnection.getTo());
+        ConnectionGene a = registry.getConnection(from, middle.getId());
+        ConnectionGene b = registry.getConnection(middle.getId(), to);
+        double weight = genome.getWeight(randomConnection);
+        genome.setEnabled(randomConnection, false);
 
-        a.setWeight(1.0);
-        b.setWeight(randomConnection.getWeight());
-        randomConnection.setEnabled(false);
+        genome.addNode(middle.getId(), middle.getBias());
+        genome.addConnection(a.getId(), from, middle.getId(), 1.0, true);
+        genome.addConnection(b.getId(), middle.getId(), to, weight, true);
+    }
 
-        genome.addNodeGene(middle);
-        genome.addConnectionGene(a);
-        genome.addConnectionGene(b);
+    @Override
+    public boolean isStructural() {
+        return true;
     }
 }
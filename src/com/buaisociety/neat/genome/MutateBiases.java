@@ -1,6 +1,6 @@
 package com.buaisociety.neat.genome;
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 /**
  * Loops through every neuron in a network and changes the bias value.
@@ -8,28 +8,28 @@ import java.util.Random;
 public class MutateBiases implements Mutation {
 
     @Override
-    public void mutate(Genome genome) {
-        Random rand = genome.getNeat().getRandom();
-
-        for (NodeGene node : genome.getNodeGenes()) {
+    public void mutate(Genome genome, RandomGenerator rand) {
+        for (int i = 0; i < genome.getNodeCount(); i++) {
             // only 20% of the time
             if (rand.nextDouble() > 0.20)
                 continue;
 
             // Either completely randomize, or slightly modify the bias
+            double bias;
             if (rand.nextDouble() > 0.80) {
-                node.setBias(rand.nextDouble() * 2 - 1);
+                bias = rand.nextDouble() * 2 - 1;
             } else {
                 double shift = rand.nextDouble() * 0.8 - 0.4;
-                node.setBias(node.getBias() + shift);
+                bias = genome.getBias(i) + shift;
             }
 
             // Clamp the bias to the range [-5, 5], to prevent extreme values
-            if (node.getBias() < -5) {
-                node.setBias(-5);
-            } else if (node.getBias() > 5) {
-                node.setBias(5);
+            if (bias < -5) {
+                bias = -5;
+            } else if (bias > 5) {
+                bias = 5;
             }
+            genome.setBias(i, bias);
         }
     }
 }
@@ -1,19 +1,17 @@
 package com.buaisociety.neat.genome;
 
-import java.util.Random;
+import java.util.random.RandomGenerator;
 
 public class MutateWeights implements Mutation {
 
     @Override
-    public void mutate(Genome genome) {
-        Random rand = genome.getNeat().getRandom();
-
-        for (ConnectionGene connection : genome.getConnectionGenes()) {
+    public void mutate(Genome genome, RandomGenerator rand) {
+        for (int i = 0; i < genome.getConnectionCount(); i++) {
             if (rand.nextDouble() < 0.80) {
                 double shift = rand.nextDouble(0.4) - 0.2;
-                connection.setWeight(connection.getWeight() + shift);
+                genome.setWeight(i, genome.getWeight(i) + shift);
             } else {
-                connection.setWeight(rand.nextDouble(2.0) - 1.0);
+                genome.setWeight(i, rand.nextDouble(2.0) - 1.0);
             }
         }
     }
@@ -1,5 +1,7 @@
 package com.buaisociety.neat.genome;
 
+import java.util.random.RandomGenerator;
+
 /**
  * Represents a random change that may be applied to a {@link Genome}.
  */
@@ -9,6 +11,19 @@ public interface Mutation {
      * Applies this mutation to the given {@link Genome}.
      *
      * @param genome The genome to apply the mutation to.
+     * @param random The random stream to draw from. Each genome being
+     *               mutated in parallel should have its own stream.
+     */
+    void mutate(Genome genome, RandomGenerator random);
+
+    /**
+     * Returns true if this mutation may add nodes or connections. Structural
+     * mutations discover new innovations, so they have to be applied in a
+     * consistent order for the innovation ids to be reproducible.
+     *
+     * @return true if this mutation changes the structure of the genome.
      */
-    void mutate(Genome genome);
+    default boolean isStructural() {
+        return false;
+    }
 }
@@ -0,0 +1,41 @@
+package com.buaisociety.neat.genome;
+
+/**
+ * A growable array of gene values that can be copied in constant-ish time.
+ * Values are always passed as doubles, but may be stored with less
+ * {@link com.buaisociety.neat.Precision precision}.
+ *
+ * @see SharedDoubleArray
+ * @see SharedFloatArray
+ */
+interface SharedArray {
+
+    double get(int index);
+
+    void set(int index, double value);
+
+    /**
+     * Inserts a value at <code>index</code>, moving every value at and above
+     * it up by 1.
+     *
+     * @param index The index to insert at.
+     * @param size The number of values currently stored.
+     * @param value The value to insert.
+     */
+    void insert(int index, int size, double value);
+
+    /**
+     * Gives up ownership of every chunk, so the next write copies the chunk
+     * first. Only writes to this array if it owns a chunk.
+     */
+    void share();
+
+    /**
+     * Creates a copy that shares all of its storage with this array. Calls
+     * {@link #share()} first, so this array is only written to if it owns a
+     * chunk. After a share, many threads may copy this array at once.
+     *
+     * @return The copy.
+     */
+    SharedArray copy();
+}
@@ -0,0 +1,112 @@
+package com.buaisociety.neat.genome;
+
+import java.util.Arrays;
+
+/**
+ * A growable array of floats that can be copied in constant-ish time. The
+ * values are split into fixed size chunks, and copies share their chunks until
+ * one of them writes to a chunk. Only that chunk is copied before the write.
+ *
+ * <p>Ownership of a chunk is tracked with a token: a copy may write into a
+ * chunk in place only if the chunk was created (or copied) with the copy's
+ * current token. {@link #share()} gives the array a new token, so it no
+ * longer owns any of its chunks, and a copy starts without owning any.
+ * Since a shared array only gets a new token once it owns a chunk again,
+ * copying a shared array does not write to it.
+ *
+ * <p>The same as {@link SharedDoubleArray}, but with half the memory. Values
+ * are rounded to the nearest float when they are stored.
+ */
+final class SharedFloatArray implements SharedArray {
+
+    private static final int CHUNK_SHIFT = SharedDoubleArray.CHUNK_SHIFT;
+    private static final int CHUNK_SIZE = SharedDoubleArray.CHUNK_SIZE;
+    private static final int CHUNK_MASK = SharedDoubleArray.CHUNK_MASK;
+
+    private float[][] chunks;
+    private Object[] owners;
+    private Object owner = new Object();
+
+    /**
+     * True if this array owns none of its chunks.
+     */
+    private boolean shared = true;
+
+    SharedFloatArray() {
+        this.chunks = new float[1][];
+        this.owners = new Object[1];
+    }
+
+    private SharedFloatArray(float[][] chunks, Object[] owners) {
+        this.chunks = chunks;
+        this.owners = owners;
+    }
+
+    @Override
+    public double get(int index) {
+        return chunks[index >>> CHUNK_SHIFT][index & CHUNK_MASK];
+    }
+
+    @Override
+    public void set(int index, double value) {
+        writableChunk(index >>> CHUNK_SHIFT)[index & CHUNK_MASK] = (float) value;
+    }
+
+    @Override
+    public void insert(int index, int size, double value) {
+        int firstChunk = index >>> CHUNK_SHIFT;
+        int lastChunk = size >>> CHUNK_SHIFT;
+
+        // Chunks are processed from the end, so the last value of the previous
+        // chunk can be carried into the start of the current chunk before the
+        // previous chunk is shifted
+        for (int c = lastChunk; c > firstChunk; c--) {
+            float[] chunk = writableChunk(c);
+            int used = Math.min(CHUNK_SIZE, size + 1 - (c << CHUNK_SHIFT));
+            System.arraycopy(chunk, 0, chunk, 1, used - 1);
+            chunk[0] = chunks[c - 1][CHUNK_MASK];
+        }
+
+        float[] chunk = writableChunk(firstChunk);
+        int offset = index & CHUNK_MASK;
+        int used = Math.min(CHUNK_SIZE, size + 1 - (firstChunk << CHUNK_SHIFT));
+        System.arraycopy(chunk, offset, chunk, offset + 1, used - 1 - offset);
+        chunk[offset] = (float) value;
+    }
+
+    @Override
+    public void share() {
+        if (!shared) {
+            owner = new Object();
+            shared = true;
+        }
+    }
+
+    @Override
+    public SharedFloatArray copy() {
+        // This array must not own the chunks it is about to share
+        share();
+        return new SharedFloatArray(chunks.clone(), owners.clone());
+    }
+
+    /**
+     * Returns the chunk at the given index, copying it first (or creating it)
+     * if this array does not own it.
+     */
+    private float[] writableChunk(int c) {
+        if (c >= chunks.length) {
+            int length = Math.max(c + 1, chunks.length * 2);
+            chunks = Arrays.copyOf(chunks, length);
+            owners = Arrays.copyOf(owners, length);
+        }
+
+        float[] chunk = chunks[c];
+        if (owners[c] != owner) {
+            chunk = chunk == null ? new float[CHUNK_SIZE] : chunk.clone();
+            chunks[c] = chunk;
+            owners[c] = owner;
+            shared = false;
+        }
+        return chunk;
+    }
+}
@@ -0,0 +1,89 @@
+package com.buaisociety.neat.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The JFR event emitted by {@link Metrics} at the end of every generation.
+ * Recorded by default when a recording is running, and shows up in JDK
+ * Mission Control under "NEAT".
+ */
+@Name("com.buaisociety.neat.Generation")
+@Label("Generation")
+@Category("NEAT")
+@Description("The time spent in each part of 1 NEAT generation, and the population afterwards")
+@StackTrace(false)
+final class GenerationEvent extends Event {
+
+    @Label("Generation")
+    int generation;
+
+    @Label("Clients")
+    int clients;
+
+    @Label("Species")
+    int species;
+
+    @Label("Registry Nodes")
+    int registryNodes;
+
+    @Label("Registry Connections")
+    int registryConnections;
+
+    @Label("New Nodes")
+    int newNodes;
+
+    @Label("New Connections")
+    int newConnections;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+
+    @Label("Mean Nodes")
+    double meanNodes;
+
+    @Label("Mean Connections")
+    double meanConnections;
+
+    @Label("Max Connections")
+    long maxConnections;
+
+    @Label("Evaluation")
+    @Timespan
+    long evaluation;
+
+    @Label("Speciation")
+    @Timespan
+    long speciation;
+
+    @Label("Selection")
+    @Timespan
+    long selection;
+
+    @Label("Structural Mutation")
+    @Timespan
+    long structuralMutation;
+
+    @Label("Value Mutation")
+    @Timespan
+    long valueMutation;
+
+    @Label("Distance")
+    @Timespan
+    long distance;
+
+    @Label("Crossover")
+    @Timespan
+    long crossover;
+
+    @Label("Calculator Construction")
+    @Timespan
+    long calculator;
+}
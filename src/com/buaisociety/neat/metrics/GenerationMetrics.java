@@ -0,0 +1,162 @@
+package com.buaisociety.neat.metrics;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * What happened in 1 generation: how long each {@link Timing} took, how much
+ * was allocated, and what the population looked like afterwards.
+ *
+ * <p>A generation covers everything since the previous generation finished
+ * evolving. Usually that is the evaluation of the previous population, then
+ * the {@link com.buaisociety.neat.Neat#evolve()} that created this one.
+ */
+public class GenerationMetrics {
+
+    private final int generation;
+    private final int clients;
+    private final int species;
+    private final int registryNodes;
+    private final int registryConnections;
+    private final int newNodes;
+    private final int newConnections;
+    private final long allocatedBytes;
+    private final Map<Timing, Histogram.Snapshot> timings;
+    private final Histogram.Snapshot nodeCounts;
+    private final Histogram.Snapshot connectionCounts;
+
+    public GenerationMetrics(int generation, int clients, int species, int registryNodes, int registryConnections,
+                             int newNodes, int newConnections, long allocatedBytes, Map<Timing, Histogram.Snapshot> timings,
+                             Histogram.Snapshot nodeCounts, Histogram.Snapshot connectionCounts) {
+        this.generation = generation;
+        this.clients = clients;
+        this.species = species;
+        this.registryNodes = registryNodes;
+        this.registryConnections = registryConnections;
+        this.newNodes = newNodes;
+        this.newConnections = newConnections;
+        this.allocatedBytes = allocatedBytes;
+        this.timings = new EnumMap<>(timings);
+        this.nodeCounts = nodeCounts;
+        this.connectionCounts = connectionCounts;
+    }
+
+    public int getGeneration() {
+        return generation;
+    }
+
+    public int getClients() {
+        return clients;
+    }
+
+    public int getSpecies() {
+        return species;
+    }
+
+    /**
+     * Returns the number of nodes ever discovered, by any genome.
+     *
+     * @return The number of nodes in the innovation registry.
+     */
+    public int getRegistryNodes() {
+        return registryNodes;
+    }
+
+    /**
+     * Returns the number of connections ever discovered, by any genome.
+     *
+     * @return The number of connections in the innovation registry.
+     */
+    public int getRegistryConnections() {
+        return registryConnections;
+    }
+
+    /**
+     * Returns the number of nodes discovered in this generation, or since the
+     * registry was created for the first generation. Populations that share a
+     * registry see each other's discoveries.
+     *
+     * @return The growth of the registry's nodes.
+     */
+    public int getNewNodes() {
+        return newNodes;
+    }
+
+    /**
+     * Returns the number of connections discovered in this generation.
+     *
+     * @return The growth of the registry's connections.
+     */
+    public int getNewConnections() {
+        return newConnections;
+    }
+
+    /**
+     * Returns the number of bytes allocated by every live thread of the JVM
+     * during this generation, or -1 if the JVM cannot measure allocations.
+     * Other work in the same JVM is counted too.
+     *
+     * @return The allocated bytes.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes;
+    }
+
+    /**
+     * Returns the durations recorded for the given timing in this
+     * generation, in nanoseconds.
+     *
+     * @param timing The part of the generation.
+     * @return The durations.
+     */
+    public Histogram.Snapshot getTiming(Timing timing) {
+        return timings.getOrDefault(timing, Histogram.Snapshot.empty());
+    }
+
+    /**
+     * Returns the number of nodes in each client's genome, after evolving.
+     *
+     * @return The distribution of genome sizes.
+     */
+    public Histogram.Snapshot getNodeCounts() {
+        return nodeCounts;
+    }
+
+    /**
+     * Returns the number of connections in each client's genome, after
+     * evolving.
+     *
+     * @return The distribution of genome sizes.
+     */
+    public Histogram.Snapshot getConnectionCounts() {
+        return connectionCounts;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("GenerationMetrics{")
+            .append("generation=").append(generation)
+            .append(", clients=").append(clients)
+            .append(", species=").append(species)
+            .append(", registryNodes=").append(registryNodes)
+            .append(", registryConnections=").append(registryConnections)
+            .append(", allocatedKiB=").append(allocatedBytes < 0 ? -1 : allocatedBytes / 1024)
+            .append(", meanNodes=").append(nodeCounts.getMean())
+            .append(", meanConnections=").append(connectionCounts.getMean());
+        for (Timing timing : Timing.values()) {
+            Histogram.Snapshot snapshot = getTiming(timing);
+            if (snapshot.getCount() > 0) {
+                builder.append(", ").append(camelCase(timing)).append("Micros=").append(snapshot.getSum() / 1000);
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    private static String camelCase(Timing timing) {
+        StringBuilder builder = new StringBuilder();
+        for (String word : timing.name().toLowerCase().split("_")) {
+            builder.append(builder.isEmpty() ? word : Character.toUpperCase(word.charAt(0)) + word.substring(1));
+        }
+        return builder.toString();
+    }
+}
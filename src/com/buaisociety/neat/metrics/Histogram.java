@@ -0,0 +1,202 @@
+package com.buaisociety.neat.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how often values fall into each of a fixed set of buckets, from many
+ * threads at once. Buckets are spaced like HdrHistogram's: every power of 2
+ * is split into {@value #SUB_BUCKETS} equal buckets, so percentiles are
+ * accurate to within 12.5% at any scale. Values below 0 are counted as 0.
+ *
+ * <p>Recording a value is a few {@link LongAdder} increments, and never
+ * allocates or blocks, so histograms may be used in hot paths.
+ */
+public final class Histogram {
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+    /**
+     * Enough buckets for {@link Long#MAX_VALUE}.
+     */
+    static final int BUCKETS = (63 - SUB_BITS + 1) * SUB_BUCKETS + SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+
+        counts[bucket(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /**
+     * Returns the values recorded so far. Values recorded while the snapshot
+     * is taken may or may not be included.
+     *
+     * @return The snapshot.
+     */
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts[i].sum();
+            count += copy[i];
+        }
+        return new Snapshot(copy, count, sum.sum(), max.get());
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    static long highestValue(int bucket) {
+        return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(bucket + 1) - 1;
+    }
+
+    /**
+     * The values in a {@link Histogram} at 1 point in time, or the values
+     * recorded between 2 points in time.
+     */
+    public static final class Snapshot {
+
+        private static final Snapshot EMPTY = new Snapshot(new long[BUCKETS], 0, 0, 0);
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public static Snapshot empty() {
+            return EMPTY;
+        }
+
+        /**
+         * Creates a snapshot of the given values, without a histogram.
+         *
+         * @param values The values.
+         * @return The snapshot.
+         */
+        public static Snapshot of(long... values) {
+            long[] counts = new long[BUCKETS];
+            long sum = 0;
+            long max = 0;
+            for (long value : values) {
+                value = Math.max(value, 0);
+                counts[bucket(value)]++;
+                sum += value;
+                max = Math.max(max, value);
+            }
+            return new Snapshot(counts, values.length, sum, max);
+        }
+
+        /**
+         * Returns the values recorded after the given snapshot was taken,
+         * and before this one was. The maximum is estimated from the buckets,
+         * since the exact maximum of the difference is not known.
+         *
+         * @param earlier An earlier snapshot of the same histogram.
+         * @return The difference.
+         */
+        public Snapshot minus(Snapshot earlier) {
+            long[] difference = new long[BUCKETS];
+            long highest = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                difference[i] = counts[i] - earlier.counts[i];
+                if (difference[i] > 0) {
+                    highest = Math.min(highestValue(i), max);
+                }
+            }
+            return new Snapshot(difference, count - earlier.count, sum - earlier.sum, highest);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        /**
+         * Returns a value that the given fraction of the values are at or
+         * below. The value is the top of the bucket the percentile falls in,
+         * so it is never lower than the exact percentile.
+         *
+         * @param percentile The fraction of values, from 0 to 1.
+         * @return The value at the percentile, or 0 if nothing was recorded.
+         */
+        public long getPercentile(double percentile) {
+            if (percentile < 0.0 || percentile > 1.0) {
+                throw new IllegalArgumentException("percentile must be between 0 and 1, got " + percentile);
+            }
+            if (count == 0) {
+                return 0;
+            }
+
+            long target = Math.max(1, (long) Math.ceil(percentile * count));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot{" +
+                "count=" + count +
+                ", mean=" + getMean() +
+                ", p50=" + getPercentile(0.5) +
+                ", p99=" + getPercentile(0.99) +
+                ", max=" + max +
+                '}';
+        }
+    }
+}
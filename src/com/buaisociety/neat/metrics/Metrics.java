@@ -0,0 +1,343 @@
+package com.buaisociety.neat.metrics;
+
+import com.buaisociety.neat.Client;
+import com.buaisociety.neat.Neat;
+import com.buaisociety.neat.genome.Genome;
+import com.buaisociety.neat.genome.InnovationRegistry;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Times the hot paths of a {@link Neat}, and sums them up once per
+ * generation into {@link GenerationMetrics}. Every {@link Neat} has its own
+ * metrics, see {@link Neat#getMetrics()}.
+ *
+ * <p>Each {@link Timing} records into a {@link Histogram}, which only costs
+ * 2 calls to {@link System#nanoTime()} and a few uncontended increments, so
+ * metrics are enabled by default. When a generation finishes, the metrics
+ * <ol>
+ *     <li>are passed to every {@link MetricsListener},</li>
+ *     <li>are shown by the {@link NeatMetricsMXBean JMX bean}, if it is
+ *     {@link #registerMBean(String) registered},</li>
+ *     <li>are committed as a JFR event named
+ *     <code>com.buaisociety.neat.Generation</code>, if a recording is running.</li>
+ * </ol>
+ *
+ * <p>Timings are recorded from any thread, but {@link #endGeneration()} is
+ * only called by the thread that evolves the population, from
+ * {@link Neat#evolve()} or a
+ * {@link com.buaisociety.neat.SteadyStateEvolution steady-state run}.
+ */
+public class Metrics implements NeatMetricsMXBean {
+
+    private static final long DISABLED = Long.MIN_VALUE;
+    private static final Timing[] TIMINGS = Timing.values();
+
+    private final Neat neat;
+    private final Histogram[] histograms = new Histogram[TIMINGS.length];
+    private final List<MetricsListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean enabled = true;
+
+    private Histogram.Snapshot[] previous = new Histogram.Snapshot[TIMINGS.length];
+    private long previousAllocated;
+    private int previousNodes;
+    private int previousConnections;
+    private volatile GenerationMetrics last;
+    private ObjectName objectName;
+
+    public Metrics(Neat neat) {
+        this.neat = neat;
+        for (int i = 0; i < TIMINGS.length; i++) {
+            histograms[i] = new Histogram();
+            previous[i] = Histogram.Snapshot.empty();
+        }
+        this.previousAllocated = allocatedBytes();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turns recording on or off. While off, nothing is timed and no
+     * generation metrics are created.
+     *
+     * @param enabled Whether to record metrics.
+     */
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Returns every duration recorded for the given timing since this
+     * instance was created, in nanoseconds.
+     *
+     * @param timing The part of the generation.
+     * @return The histogram of durations.
+     */
+    public Histogram getHistogram(Timing timing) {
+        return histograms[timing.ordinal()];
+    }
+
+    /**
+     * Starts timing something. Pass the result to {@link #stop}.
+     *
+     * @return The start time, or a marker that makes {@link #stop} do nothing
+     * when metrics are disabled.
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : DISABLED;
+    }
+
+    /**
+     * Records the time since {@link #start()}.
+     *
+     * @param timing What was timed.
+     * @param start The value returned by {@link #start()}.
+     */
+    public void stop(Timing timing, long start) {
+        if (start != DISABLED) {
+            histograms[timing.ordinal()].record(System.nanoTime() - start);
+        }
+    }
+
+    public void addListener(MetricsListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MetricsListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Returns the metrics of the last finished generation.
+     *
+     * @return The metrics, or null if no generation finished while enabled.
+     */
+    public GenerationMetrics getLast() {
+        return last;
+    }
+
+    /**
+     * Sums up the generation that just finished, and publishes it. Called by
+     * {@link Neat#evolve()}, and by steady-state runs after every population
+     * size of replacements.
+     *
+     * @return The metrics of the generation, or null if disabled.
+     */
+    public GenerationMetrics endGeneration() {
+        if (!enabled) {
+            return null;
+        }
+
+        // Step 1: What was recorded since the last generation
+        Map<Timing, Histogram.Snapshot> timings = new EnumMap<>(Timing.class);
+        Histogram.Snapshot[] current = new Histogram.Snapshot[TIMINGS.length];
+        for (int i = 0; i < TIMINGS.length; i++) {
+            current[i] = histograms[i].snapshot();
+            timings.put(TIMINGS[i], current[i].minus(previous[i]));
+        }
+        previous = current;
+
+        long allocated = allocatedBytes();
+        long allocatedBytes = allocated < 0 ? -1 : Math.max(0, allocated - previousAllocated);
+        previousAllocated = allocated;
+
+        // Step 2: What the population looks like now
+        List<Client> clients = neat.getClients();
+        long[] nodes = new long[clients.size()];
+        long[] connections = new long[clients.size()];
+        for (int i = 0; i < clients.size(); i++) {
+            Genome genome = clients.get(i).getGenome();
+            nodes[i] = genome.getNodeCount();
+            connections[i] = genome.getConnectionCount();
+        }
+
+        InnovationRegistry registry = neat.getRegistry();
+        int registryNodes = registry.getNodeCount();
+        int registryConnections = registry.getConnectionCount();
+        GenerationMetrics metrics = new GenerationMetrics(neat.getGenerationNumber(), clients.size(),
+            neat.getAllSpecies().size(), registryNodes, registryConnections, registryNodes - previousNodes,
+            registryConnections - previousConnections, allocatedBytes, timings, Histogram.Snapshot.of(nodes),
+            Histogram.Snapshot.of(connections));
+        previousNodes = registryNodes;
+        previousConnections = registryConnections;
+
+        // Step 3: Publish
+        last = metrics;
+        commitEvent(metrics);
+        for (MetricsListener listener : listeners) {
+            listener.onGeneration(metrics);
+        }
+        return metrics;
+    }
+
+    private static void commitEvent(GenerationMetrics metrics) {
+        GenerationEvent event = new GenerationEvent();
+        if (!event.isEnabled()) {
+            return;
+        }
+
+        event.generation = metrics.getGeneration();
+        event.clients = metrics.getClients();
+        event.species = metrics.getSpecies();
+        event.registryNodes = metrics.getRegistryNodes();
+        event.registryConnections = metrics.getRegistryConnections();
+        event.newNodes = metrics.getNewNodes();
+        event.newConnections = metrics.getNewConnections();
+        event.allocated = metrics.getAllocatedBytes();
+        event.meanNodes = metrics.getNodeCounts().getMean();
+        event.meanConnections = metrics.getConnectionCounts().getMean();
+        event.maxConnections = metrics.getConnectionCounts().getMax();
+        event.evaluation = metrics.getTiming(Timing.EVALUATION).getSum();
+        event.speciation = metrics.getTiming(Timing.SPECIATION).getSum();
+        event.selection = metrics.getTiming(Timing.SELECTION).getSum();
+        event.structuralMutation = metrics.getTiming(Timing.STRUCTURAL_MUTATION).getSum();
+        event.valueMutation = metrics.getTiming(Timing.VALUE_MUTATION).getSum();
+        event.distance = metrics.getTiming(Timing.DISTANCE).getSum();
+        event.crossover = metrics.getTiming(Timing.CROSSOVER).getSum();
+        event.calculator = metrics.getTiming(Timing.CALCULATOR).getSum();
+        event.commit();
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by every live thread, or
+     * -1 if the JVM cannot tell. Threads that died are not counted, so the
+     * difference between 2 calls is only exact with long-lived threads.
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean threads) || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+
+        long total = 0;
+        for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, as
+     * <code>com.buaisociety.neat:type=Metrics,name=&lt;name&gt;</code>.
+     *
+     * @param name The name of the population, unique within the JVM.
+     */
+    public synchronized void registerMBean(String name) {
+        if (objectName != null) {
+            throw new IllegalStateException("Already registered as " + objectName);
+        }
+
+        try {
+            ObjectName objectName = new ObjectName("com.buaisociety.neat:type=Metrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            this.objectName = objectName;
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to register the metrics of " + name, e);
+        }
+    }
+
+    /**
+     * Removes these metrics from the platform MBean server, if registered.
+     */
+    public synchronized void unregisterMBean() {
+        if (objectName == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new IllegalStateException("Failed to unregister " + objectName, e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    private GenerationMetrics lastOrEmpty() {
+        GenerationMetrics metrics = last;
+        if (metrics == null) {
+            Histogram.Snapshot empty = Histogram.Snapshot.empty();
+            metrics = new GenerationMetrics(0, 0, 0, 0, 0, 0, 0, 0, Map.of(), empty, empty);
+        }
+        return metrics;
+    }
+
+    @Override
+    public int getGeneration() {
+        return lastOrEmpty().getGeneration();
+    }
+
+    @Override
+    public int getClients() {
+        return lastOrEmpty().getClients();
+    }
+
+    @Override
+    public int getSpecies() {
+        return lastOrEmpty().getSpecies();
+    }
+
+    @Override
+    public int getRegistryNodes() {
+        return lastOrEmpty().getRegistryNodes();
+    }
+
+    @Override
+    public int getRegistryConnections() {
+        return lastOrEmpty().getRegistryConnections();
+    }
+
+    @Override
+    public long getAllocatedBytes() {
+        return lastOrEmpty().getAllocatedBytes();
+    }
+
+    @Override
+    public double getMeanNodes() {
+        return lastOrEmpty().getNodeCounts().getMean();
+    }
+
+    @Override
+    public double getMeanConnections() {
+        return lastOrEmpty().getConnectionCounts().getMean();
+    }
+
+    @Override
+    public long getMaxConnections() {
+        return lastOrEmpty().getConnectionCounts().getMax();
+    }
+
+    @Override
+    public Map<String, Long> getNanos() {
+        GenerationMetrics metrics = lastOrEmpty();
+        Map<String, Long> nanos = new LinkedHashMap<>();
+        for (Timing timing : TIMINGS) {
+            nanos.put(timing.name(), metrics.getTiming(timing).getSum());
+        }
+        return nanos;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        GenerationMetrics metrics = lastOrEmpty();
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Timing timing : TIMINGS) {
+            counts.put(timing.name(), metrics.getTiming(timing).getCount());
+        }
+        return counts;
+    }
+}
@@ -0,0 +1,16 @@
+package com.buaisociety.neat.metrics;
+
+/**
+ * Receives the {@link GenerationMetrics} of every generation.
+ */
+@FunctionalInterface
+public interface MetricsListener {
+
+    /**
+     * Called on the thread that called {@link com.buaisociety.neat.Neat#evolve()},
+     * after the generation is finished. Slow listeners slow down evolution.
+     *
+     * @param metrics The metrics of the generation.
+     */
+    void onGeneration(GenerationMetrics metrics);
+}
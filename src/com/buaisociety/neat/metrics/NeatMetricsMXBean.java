@@ -0,0 +1,47 @@
+package com.buaisociety.neat.metrics;
+
+import java.util.Map;
+
+/**
+ * The JMX view of a {@link Metrics}, registered with
+ * {@link Metrics#registerMBean(String)}. Everything except
+ * {@link #isEnabled()} describes the last finished generation.
+ */
+public interface NeatMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    int getGeneration();
+
+    int getClients();
+
+    int getSpecies();
+
+    int getRegistryNodes();
+
+    int getRegistryConnections();
+
+    long getAllocatedBytes();
+
+    double getMeanNodes();
+
+    double getMeanConnections();
+
+    long getMaxConnections();
+
+    /**
+     * Returns the total time spent in each {@link Timing}, by name.
+     *
+     * @return The time, in nanoseconds.
+     */
+    Map<String, Long> getNanos();
+
+    /**
+     * Returns how many times each {@link Timing} was recorded, by name.
+     *
+     * @return The counts.
+     */
+    Map<String, Long> getCounts();
+}
@@ -0,0 +1,54 @@
+package com.buaisociety.neat.metrics;
+
+/**
+ * The parts of a generation that {@link Metrics} times. Each has its own
+ * {@link Histogram} of durations, in nanoseconds, with 1 value per call.
+ */
+public enum Timing {
+
+    /**
+     * 1 call to {@link com.buaisociety.neat.Neat#evaluate}, which scores the
+     * whole population.
+     */
+    EVALUATION,
+
+    /**
+     * 1 call to {@link com.buaisociety.neat.Neat#sortIntoSpecies()}.
+     */
+    SPECIATION,
+
+    /**
+     * Killing the worst clients and cloning the survivors, once per
+     * {@link com.buaisociety.neat.Neat#evolve()}.
+     */
+    SELECTION,
+
+    /**
+     * 1 call to {@link com.buaisociety.neat.genome.Genome#mutateStructure}.
+     */
+    STRUCTURAL_MUTATION,
+
+    /**
+     * 1 call to {@link com.buaisociety.neat.genome.Genome#mutateValues}.
+     */
+    VALUE_MUTATION,
+
+    /**
+     * Comparing every client with the species during 1 call to
+     * {@link com.buaisociety.neat.Neat#sortIntoSpecies()}, which is mostly
+     * calculating {@link com.buaisociety.neat.genome.Genome#distance
+     * distances}. Single distances are too quick to time on their own.
+     */
+    DISTANCE,
+
+    /**
+     * 1 call to {@link com.buaisociety.neat.genome.Genome#crossOver}.
+     */
+    CROSSOVER,
+
+    /**
+     * Building 1 {@link com.buaisociety.neat.calculator.Calculator} for a
+     * client.
+     */
+    CALCULATOR
+}